@@ -0,0 +1,159 @@
+package com.truphone.benchmark;
+
+import com.phone.device.DeviceManagerApplication;
+import com.phone.device.threads.VirtualThreads;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of concurrent GET /api/device/{id} against a database that takes SlowStatements.DELAY_MILLIS per statement,
+ * served by the Tomcat thread pool (server.tomcat.threads.max, 200 by default) or by a virtual thread per request
+ * (device.threads.virtual, needs Java 21, the trials with virtual=true fail on older runtimes). The caches are off
+ * and the connection pool holds a connection per request, so only the request threads limit the concurrency.
+ *
+ * The time is the time of a whole burst of inFlight requests. Once per trial the largest number of requests waiting
+ * on the database at the same time, the latency percentiles of a burst, the platform threads of the JVM (client
+ * included) and the heap used per request in flight are printed. The heap figure is rough, it includes garbage, and
+ * the stacks of platform threads are not on the heap at all, see the printed thread count (each reserves -Xss).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrencyBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    @Param({"false", "true"})
+    private boolean virtual;
+
+    @Param({"200", "2000"})
+    private int inFlight;
+
+    private ServletWebServerApplicationContext context;
+    private HttpClient client;
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (virtual && !VirtualThreads.isSupported()) {
+            throw new IllegalStateException("Java " + Runtime.version().feature() + " has no virtual threads");
+        }
+        context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(DeviceManagerApplication.class)
+                .run("--server.port=0", "--spring.main.banner-mode=off", "--logging.level.root=warn",
+                        "--device.threads.virtual=" + virtual,
+                        "--server.tomcat.max-connections=" + (inFlight * 2),
+                        "--spring.datasource.hikari.maximum-pool-size=" + inFlight,
+                        "--spring.datasource.hikari.minimum-idle=10",
+                        "--spring.jpa.properties.hibernate.session_factory.statement_inspector=" + SlowStatements.class.getName(),
+                        "--device.cache.enabled=false",
+                        "--device.response-cache.enabled=false",
+                        "--device.coalescing.enabled=false");
+        Devices.seed(context.getBean(JdbcTemplate.class), ROWS);
+        baseUrl = "http://localhost:" + context.getWebServer().getPort() + "/api/device/";
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        report();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int burst() {
+        return send(null);
+    }
+
+    /**
+     * Runs one burst while sampling the database concurrency, threads and heap, and prints what it saw.
+     */
+    private void report() throws InterruptedException {
+        // Warm the pool and the connections first, the first burst opens them.
+        send(null);
+        send(null);
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int[] peak = new int[3];
+        long[] heapPeak = {heapBefore};
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak[0] = Math.max(peak[0], SlowStatements.IN_FLIGHT.get());
+                peak[1] = Math.max(peak[1], threads.getThreadCount());
+                heapPeak[0] = Math.max(heapPeak[0], memory.getHeapMemoryUsage().getUsed());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+        long[] latencies = new long[inFlight];
+        long started = System.nanoTime();
+        send(latencies);
+        long burstMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        sampler.interrupt();
+        sampler.join();
+        Arrays.sort(latencies);
+        System.out.printf("%nvirtual=%s inFlight=%d: burst %d ms, latency p50 %d ms p99 %d ms max %d ms, "
+                        + "%d requests on the database at once, %d platform threads, ~%d KB heap per request in flight%n",
+                virtual, inFlight, burstMillis, millis(latencies, 0.5), millis(latencies, 0.99), millis(latencies, 1.0),
+                peak[0], peak[1], (heapPeak[0] - heapBefore) / 1024 / Math.max(1, peak[0]));
+    }
+
+    private static long millis(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(0, index)]);
+    }
+
+    /**
+     * Sends inFlight requests at once and waits for all of them.
+     * @param latencies Filled with the latency of every request in nanoseconds, may be null
+     * @return Number of requests answered with 200
+     */
+    private int send(long[] latencies) {
+        List<CompletableFuture<Integer>> responses = new ArrayList<>(inFlight);
+        for (int i = 0; i < inFlight; i++) {
+            int request = i;
+            long started = System.nanoTime();
+            HttpRequest get = HttpRequest.newBuilder(URI.create(baseUrl + ThreadLocalRandom.current().nextLong(1, ROWS + 1))).build();
+            responses.add(client.sendAsync(get, HttpResponse.BodyHandlers.discarding()).thenApply(response -> {
+                if (latencies != null) {
+                    latencies[request] = System.nanoTime() - started;
+                }
+                return response.statusCode();
+            }));
+        }
+        int ok = 0;
+        for (CompletableFuture<Integer> response : responses) {
+            if (response.join() == 200) {
+                ok++;
+            }
+        }
+        if (ok != inFlight) {
+            throw new IllegalStateException((inFlight - ok) + " of " + inFlight + " requests failed");
+        }
+        return ok;
+    }
+}
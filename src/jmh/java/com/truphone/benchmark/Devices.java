@@ -0,0 +1,48 @@
+package com.truphone.benchmark;
+
+import com.phone.device.entity.Device;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class Devices {
+
+    static final String[] BRANDS = {"Apple", "Samsung", "Nokia", "Sony", "Xiaomi", "OnePlus", "Motorola", "Huawei",
+            "Google", "Oppo", "Vivo", "Realme", "Asus", "Lenovo", "HTC", "LG", "ZTE", "Alcatel", "Fairphone", "BlackBerry"};
+
+    private Devices() {
+    }
+
+    static Device create(long id) {
+        Device device = new Device();
+        device.setId(id);
+        device.setName("Model " + id);
+        device.setBrand(BRANDS[(int) (id % BRANDS.length)] + " " + (id % 97));
+        device.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+        device.setUpdatedAt(device.getCreatedAt());
+        return device;
+    }
+
+    /**
+     * Inserts the given number of rows with plain JDBC batches, which is much faster than going through JPA. The
+     * sequence is moved past the inserted ids so the application can keep creating Devices afterwards. The pooled
+     * optimizer treats a sequence value as the upper end of a block of allocationSize ids, hence the extra 50.
+     */
+    static void seed(JdbcTemplate jdbcTemplate, int rows) {
+        int batch = 10_000;
+        for (int from = 1; from <= rows; from += batch) {
+            List<Object[]> args = new ArrayList<>(batch);
+            for (long id = from; id < from + batch && id <= rows; id++) {
+                Device device = create(id);
+                args.add(new Object[]{id, device.getName(), device.getBrand(), device.getCreatedAt(), device.getUpdatedAt(), 0L});
+            }
+            jdbcTemplate.batchUpdate("insert into device (id, name, brand, created_at, updated_at, version) values (?, ?, ?, ?, ?, ?)", args);
+        }
+        jdbcTemplate.execute("alter sequence device_seq restart with " + (rows + 50));
+    }
+}
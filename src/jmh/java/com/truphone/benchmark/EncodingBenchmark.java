@@ -0,0 +1,70 @@
+package com.truphone.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.entity.Device;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the List<Device> returned by /list and /search in every format the controller negotiates, with and
+ * without the gzip the server applies above server.compression.min-response-size. The ObjectMappers are built the way
+ * Spring builds the ones of its message converters.
+ *
+ * The time is the encode time, the bytes on the wire of every combination are printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    @Param({"1000", "100000"})
+    private int listSize;
+
+    @Param({"json", "cbor", "smile"})
+    private String format;
+
+    @Param({"false", "true"})
+    private boolean gzip;
+
+    private ObjectMapper objectMapper;
+    private List<Device> devices;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (format) {
+            case "cbor":
+                objectMapper = Jackson2ObjectMapperBuilder.cbor().build();
+                break;
+            case "smile":
+                objectMapper = Jackson2ObjectMapperBuilder.smile().build();
+                break;
+            default:
+                objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        }
+        devices = new ArrayList<>(listSize);
+        for (long id = 1; id <= listSize; id++) {
+            devices.add(Devices.create(id));
+        }
+        System.out.printf("%n%s gzip=%s %d devices: %d bytes%n", format, gzip, listSize, encode().length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(listSize * 64);
+        try (OutputStream out = gzip ? new GZIPOutputStream(bytes, 8192) : bytes) {
+            objectMapper.writeValue(out, devices);
+        }
+        return bytes.toByteArray();
+    }
+}
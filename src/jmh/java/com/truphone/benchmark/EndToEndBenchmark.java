@@ -0,0 +1,94 @@
+package com.truphone.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.DeviceManagerApplication;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The API over real HTTP on a random port, including Tomcat, Spring MVC, validation, Jackson, Hibernate and H2.
+ * The read and update benchmarks work on a seeded table, lifecycle creates, reads, patches and deletes one Device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    private ServletWebServerApplicationContext context;
+    private HttpClient client;
+    private ObjectMapper objectMapper;
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(DeviceManagerApplication.class)
+                .run("--server.port=0", "--spring.main.banner-mode=off", "--logging.level.root=warn");
+        Devices.seed(context.getBean(JdbcTemplate.class), ROWS);
+        baseUrl = "http://localhost:" + context.getWebServer().getPort() + "/api/device";
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        objectMapper = new ObjectMapper();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int create() throws IOException, InterruptedException {
+        return send(json("POST", "", "{\"name\":\"Model X\",\"brand\":\"Nokia\"}"), 201).statusCode();
+    }
+
+    @Benchmark
+    public String get() throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(baseUrl + "/" + randomId())).build(), 200).body();
+    }
+
+    @Benchmark
+    public int patch() throws IOException, InterruptedException {
+        return send(json("PATCH", "", "{\"id\":" + randomId() + ",\"name\":\"Model Y\"}"), 204).statusCode();
+    }
+
+    @Benchmark
+    public int lifecycle() throws IOException, InterruptedException {
+        String created = send(json("POST", "/batch", "[{\"name\":\"Model X\",\"brand\":\"Nokia\"}]"), 200).body();
+        long id = objectMapper.readTree(created).get(0).get("id").asLong();
+        send(HttpRequest.newBuilder(URI.create(baseUrl + "/" + id)).build(), 200);
+        send(json("PATCH", "", "{\"id\":" + id + ",\"brand\":\"Sony\"}"), 204);
+        return send(HttpRequest.newBuilder(URI.create(baseUrl + "/" + id)).DELETE().build(), 204).statusCode();
+    }
+
+    private static long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, ROWS + 1);
+    }
+
+    private HttpRequest json(String method, String path, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .method(method, HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private HttpResponse<String> send(HttpRequest request, int expectedStatus) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus) {
+            throw new IllegalStateException(request.method() + " " + request.uri() + " returned " + response.statusCode());
+        }
+        return response;
+    }
+}
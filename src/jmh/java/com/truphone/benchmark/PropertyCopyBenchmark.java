@@ -0,0 +1,90 @@
+package com.truphone.benchmark;
+
+import com.phone.device.entity.Device;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+import java.beans.PropertyDescriptor;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Cost of applying a partial update in memory: the reflection based copy that PATCH used to do (getNullPropertyNames
+ * followed by BeanUtils.copyProperties) against copying through a fixed list of getters and setters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyCopyBenchmark {
+
+    private static final List<Field> FIELDS = List.of(
+            new Field(Device::getName, Device::setName),
+            new Field(Device::getBrand, Device::setBrand));
+
+    private Device patch;
+    private Device target;
+
+    @Setup
+    public void setUp() {
+        patch = new Device();
+        patch.setId(1L);
+        patch.setBrand("Nokia");
+        target = new Device();
+        target.setId(1L);
+        target.setName("3310");
+        target.setBrand("nokia");
+    }
+
+    @Benchmark
+    public Device beanUtilsCopy() {
+        BeanUtils.copyProperties(patch, target, getNullPropertyNames(patch));
+        return target;
+    }
+
+    @Benchmark
+    public Device accessorCopy() {
+        for (Field field : FIELDS) {
+            String value = field.getter.apply(patch);
+            if (value != null) {
+                field.setter.accept(target, value);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * The helper PATCH used before it was replaced by a targeted UPDATE, kept here as the baseline.
+     */
+    private static String[] getNullPropertyNames(Object source) {
+        final BeanWrapper src = new BeanWrapperImpl(source);
+        PropertyDescriptor[] pds = src.getPropertyDescriptors();
+
+        Set<String> emptyNames = new HashSet<>();
+        for (PropertyDescriptor pd : pds) {
+            Object srcValue = src.getPropertyValue(pd.getName());
+            if (srcValue == null)
+                emptyNames.add(pd.getName());
+        }
+        String[] result = new String[emptyNames.size()];
+        return emptyNames.toArray(result);
+    }
+
+    private static final class Field {
+        private final Function<Device, String> getter;
+        private final BiConsumer<Device, String> setter;
+
+        private Field(Function<Device, String> getter, BiConsumer<Device, String> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+}
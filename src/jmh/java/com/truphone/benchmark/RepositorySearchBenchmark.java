@@ -0,0 +1,63 @@
+package com.truphone.benchmark;
+
+import com.phone.device.DeviceManagerApplication;
+import com.phone.device.entity.Device;
+import com.phone.device.jpa.DeviceRepository;
+import com.phone.device.search.DeviceSearchIndex;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brand substring search against H2 at different table sizes: the LIKE query of the repository, which scans the whole
+ * table, against the ids answered by the in memory trigram index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class RepositorySearchBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int rows;
+
+    @Param({"sam", "fairphone 4"})
+    private String term;
+
+    private ConfigurableApplicationContext context;
+    private DeviceRepository deviceRepository;
+    private DeviceSearchIndex deviceSearchIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(DeviceManagerApplication.class)
+                .web(WebApplicationType.NONE)
+                .run("--spring.main.banner-mode=off", "--logging.level.root=warn");
+        Devices.seed(context.getBean(JdbcTemplate.class), rows);
+        deviceRepository = context.getBean(DeviceRepository.class);
+        deviceSearchIndex = context.getBean(DeviceSearchIndex.class);
+        deviceSearchIndex.rebuild();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<Device> repositoryLike() {
+        return deviceRepository.findByBrandContainingIgnoreCase(term);
+    }
+
+    @Benchmark
+    public long[] searchIndex() {
+        return deviceSearchIndex.findIdsByBrandContaining(term).orElseThrow();
+    }
+}
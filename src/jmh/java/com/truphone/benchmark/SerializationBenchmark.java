@@ -0,0 +1,51 @@
+package com.truphone.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.entity.Device;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialization of a single Device and of the List<Device> returned by /list and /search, with an ObjectMapper
+ * configured the way Spring Boot configures the one used by the controllers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int listSize;
+
+    private ObjectMapper objectMapper;
+    private Device device;
+    private List<Device> devices;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        devices = new ArrayList<>(listSize);
+        for (long id = 1; id <= listSize; id++) {
+            devices.add(Devices.create(id));
+        }
+        device = devices.get(0);
+    }
+
+    @Benchmark
+    public byte[] device() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(device);
+    }
+
+    @Benchmark
+    public byte[] deviceList() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(devices);
+    }
+}
@@ -0,0 +1,30 @@
+package com.truphone.benchmark;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes every SQL statement Hibernate prepares take DELAY_MILLIS longer, like a database that is slow or far away, and
+ * counts the requests waiting on it. Registered through hibernate.session_factory.statement_inspector.
+ */
+public class SlowStatements implements StatementInspector {
+
+    static final long DELAY_MILLIS = 20;
+
+    static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+
+    @Override
+    public String inspect(String sql) {
+        IN_FLIGHT.incrementAndGet();
+        try {
+            TimeUnit.MILLISECONDS.sleep(DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IN_FLIGHT.decrementAndGet();
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,154 @@
+package com.phone.device.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Bounded read-through cache of Devices by id.
+ *
+ * Entries are evicted by size and by age. Every DeviceEvent invalidates the entry of its Device in the thread of the
+ * write, after the write has been committed, so once a write returns no reader can get the old Device. An invalidation
+ * that races with a load of the same id waits for the load to finish and then removes what it loaded. Bulk loads are
+ * not atomic per key, they only fill the cache when no write happened while they were loading.
+ *
+ * The cache holds copies, never the entity managed by the persistence context of the request that loaded it.
+ * Missing ids are not cached. It can be turned off with device.cache.enabled, for example in a profile.
+ * The counters are also published as cache.* metrics with the tag cache=device.
+ */
+@Component
+public class DeviceCache implements MeterBinder {
+
+    private final boolean enabled;
+    private final Cache<Long, Device> cache;
+
+    /**
+     * Number of writes seen so far, guarded by itself. Lets a bulk load find out whether it may have read a Device that
+     * was written, and invalidated, while it was loading.
+     */
+    private final long[] writes = new long[1];
+
+    @Autowired
+    public DeviceCache(@Value("${device.cache.enabled:true}") boolean enabled,
+                       @Value("${device.cache.maximum-size:10000}") long maximumSize,
+                       @Value("${device.cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the cached Device or loads it with the given loader and caches it.
+     * @param id Device id
+     * @param loader Loads the Device from the store
+     * @return The Device, empty if it does not exist
+     */
+    public Optional<Device> get(Long id, Function<Long, Optional<Device>> loader) {
+        if (!enabled) {
+            return loader.apply(id);
+        }
+        return Optional.ofNullable(cache.get(id, key -> loader.apply(key).map(DeviceCache::copy).orElse(null)));
+    }
+
+    /**
+     * Returns the cached Devices and loads the others with the given loader in one call.
+     * @param ids Distinct Device ids
+     * @param loader Loads the Devices with the given ids from the store, ids that do not exist are left out
+     * @return The Devices found, by id
+     */
+    public Map<Long, Device> getAll(Collection<Long> ids, Function<List<Long>, List<Device>> loader) {
+        Map<Long, Device> found = new HashMap<>();
+        if (!enabled) {
+            loader.apply(new ArrayList<>(ids)).forEach(device -> found.put(device.getId(), device));
+            return found;
+        }
+        found.putAll(cache.getAllPresent(ids));
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            if (!found.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return found;
+        }
+        long writesBefore;
+        synchronized (writes) {
+            writesBefore = writes[0];
+        }
+        Map<Long, Device> loaded = new HashMap<>();
+        loader.apply(missing).forEach(device -> loaded.put(device.getId(), copy(device)));
+        synchronized (writes) {
+            if (writes[0] == writesBefore) {
+                cache.putAll(loaded);
+            }
+        }
+        found.putAll(loaded);
+        return found;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "device");
+    }
+
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE + 1)
+    public void onDeviceEvent(DeviceEvent event) {
+        synchronized (writes) {
+            writes[0]++;
+        }
+        cache.invalidate(event.getId());
+    }
+
+    /**
+     * Hit, miss and eviction counters and the current size of the cache.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", cache.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    private static Device copy(Device device) {
+        Device copy = new Device();
+        copy.setId(device.getId());
+        copy.setName(device.getName());
+        copy.setBrand(device.getBrand());
+        copy.setCreatedAt(device.getCreatedAt());
+        copy.setUpdatedAt(device.getUpdatedAt());
+        copy.setVersion(device.getVersion());
+        return copy;
+    }
+}
@@ -0,0 +1,36 @@
+package com.phone.device.cache;
+
+import com.phone.device.event.DeviceEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version of the whole Device collection, moved forward by every DeviceEvent. Used as the ETag of the listing
+ * endpoints so that polling clients get a 304 without the table being read.
+ *
+ * The ETag also contains the start time of the application, the version restarts from zero on every start and
+ * the in memory database does not survive a restart either.
+ */
+@Component
+public class DeviceCollectionVersion {
+
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Weak ETag of the current version. Must be taken before the Devices are read, so the data sent with it is never
+     * older than the version it claims. It is weak because the same version is sent as JSON, CBOR or Smile, gzipped
+     * or not; Tomcat does not compress a response with a strong ETag.
+     * @return String Quoted weak ETag
+     */
+    public String eTag() {
+        return "W/\"" + epoch + "-" + Long.toHexString(version.get()) + "\"";
+    }
+
+    @EventListener
+    public void onDeviceEvent(DeviceEvent event) {
+        version.incrementAndGet();
+    }
+}
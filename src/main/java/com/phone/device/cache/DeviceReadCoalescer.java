@@ -0,0 +1,122 @@
+package com.phone.device.cache;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical reads that arrive while one of them is running, for the bursts of requests for the same Device
+ * or the same search that a launch brings: the first request runs the query, the ones arriving before it is done wait
+ * for it and share its result, so the burst takes one connection instead of one each.
+ *
+ * Lookups by id are coalesced per id, in front of the store, under the DeviceCache (which coalesces its own loads but
+ * can be disabled). Searches are coalesced per search term and fields, the whole search including the search index.
+ *
+ * A DeviceEvent makes new reads of its Device, and every new search, run a new query, so a request that started after
+ * a write never shares a result read before it. The listener runs first, before the DeviceCache is invalidated and
+ * DeviceCollectionVersion moves on, so neither a reload of the cache nor a search that has taken the new collection
+ * ETag can join a read running from before the write.
+ *
+ * Can be turned off with device.coalescing.enabled. The shared and the run queries are counted in
+ * device.reads.coalesced and device.reads.queries, tagged with the read.
+ */
+@Component
+public class DeviceReadCoalescer implements MeterBinder {
+
+    private final boolean enabled;
+    private final SingleFlight<Long, Optional<Device>> byId = new SingleFlight<>();
+    private final SingleFlight<List<Object>, List<?>> searches = new SingleFlight<>();
+
+    @Autowired
+    public DeviceReadCoalescer(@Value("${device.coalescing.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param id Device id
+     * @param loader Reads the Device from the store
+     * @return The Device, shared with the concurrent requests for the same id
+     */
+    public Optional<Device> findById(Long id, Function<Long, Optional<Device>> loader) {
+        if (!enabled) {
+            return loader.apply(id);
+        }
+        return byId.run(id, () -> loader.apply(id));
+    }
+
+    /**
+     * @param term The search term
+     * @param fields The selected fields, null for whole Devices
+     * @param search Runs the search
+     * @return The Devices or DeviceViews found, shared with the concurrent requests for the same search
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> search(String term, Set<DeviceView.Field> fields, Supplier<List<T>> search) {
+        if (!enabled) {
+            return search.get();
+        }
+        return (List<T>) searches.run(Arrays.asList(term, fields), search::get);
+    }
+
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onDeviceEvent(DeviceEvent event) {
+        byId.forget(event.getId());
+        searches.forgetAll();
+    }
+
+    /**
+     * Queries run and requests that shared the result of a running query, per read.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("findById", stats(byId));
+        stats.put("search", stats(searches));
+        return stats;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        bind(registry, "findById", byId);
+        bind(registry, "search", searches);
+    }
+
+    private static Map<String, Object> stats(SingleFlight<?, ?> flights) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queries", flights.queries());
+        stats.put("coalesced", flights.joined());
+        stats.put("running", flights.running());
+        return stats;
+    }
+
+    private static void bind(MeterRegistry registry, String read, SingleFlight<?, ?> flights) {
+        FunctionCounter.builder("device.reads.coalesced", flights, SingleFlight::joined)
+                .description("Reads answered with the result of an identical read that was already running")
+                .tag("read", read)
+                .register(registry);
+        FunctionCounter.builder("device.reads.queries", flights, SingleFlight::queries)
+                .description("Coalescable reads that ran their own query")
+                .tag("read", read)
+                .register(registry);
+    }
+}
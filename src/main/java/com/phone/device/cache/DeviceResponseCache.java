@@ -0,0 +1,216 @@
+package com.phone.device.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.http.HttpMessageConverters;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of single Device responses as they are sent, in every format GET /api/device/{id} negotiates, so that
+ * a hot Device is written to the response as bytes without running Jackson (or reading the store) again.
+ *
+ * Entries are keyed by id and format and carry the version and updatedAt the bytes were encoded from, which is what the
+ * ETag and Last-Modified of the response are derived from. They are invalidated by every DeviceEvent like the
+ * DeviceCache, an invalidation that races with an encoding of the same entry waits for it and then removes it. The
+ * bytes are encoded with the ObjectMappers of Spring's message converters, so a cached response is the same as an
+ * uncached one.
+ *
+ * The cache is bounded by the bytes it holds (device.response-cache.maximum-bytes) and by age. It can be turned off
+ * with device.response-cache.enabled. The counters are also published as cache.* metrics with the tag
+ * cache=device-response, the bytes held as device.response.cache.bytes.
+ */
+@Component
+public class DeviceResponseCache implements MeterBinder {
+
+    /**
+     * Estimated heap of an entry besides its bytes: key, entry, Encoded and array header.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * The formats a Device response is cached in, in the order they are preferred for Accept: *&#47;*.
+     */
+    public enum Format {
+        JSON(MediaType.APPLICATION_JSON, MappingJackson2HttpMessageConverter.class),
+        CBOR(MediaType.APPLICATION_CBOR, MappingJackson2CborHttpMessageConverter.class),
+        SMILE(new MediaType("application", "x-jackson-smile"), MappingJackson2SmileHttpMessageConverter.class);
+
+        private final MediaType mediaType;
+        private final Class<? extends AbstractJackson2HttpMessageConverter> converter;
+
+        Format(MediaType mediaType, Class<? extends AbstractJackson2HttpMessageConverter> converter) {
+            this.mediaType = mediaType;
+            this.converter = converter;
+        }
+
+        public MediaType mediaType() {
+            return mediaType;
+        }
+
+        /**
+         * Picks the format for an Accept header the way Spring would: by quality, then specificity, then format order.
+         * @param accept The Accept header, null when the client did not send one
+         * @return The format, JSON when none of the accepted media types matches
+         */
+        public static Format negotiate(String accept) {
+            if (accept == null || accept.isBlank()) {
+                return JSON;
+            }
+            List<MediaType> accepted = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(accepted);
+            for (MediaType mediaType : accepted) {
+                for (Format format : values()) {
+                    if (mediaType.isCompatibleWith(format.mediaType)) {
+                        return format;
+                    }
+                }
+            }
+            return JSON;
+        }
+    }
+
+    /**
+     * One cached response body.
+     */
+    @Getter
+    public static final class Encoded {
+        private final byte[] body;
+        private final Long version;
+        private final Timestamp updatedAt;
+
+        private Encoded(byte[] body, Long version, Timestamp updatedAt) {
+            this.body = body;
+            this.version = version;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    private final boolean enabled;
+    private final Cache<Long, Encoded> cache;
+    private final ObjectMapper[] objectMappers = new ObjectMapper[Format.values().length];
+
+    @Autowired
+    public DeviceResponseCache(HttpMessageConverters converters,
+                               @Value("${device.response-cache.enabled:true}") boolean enabled,
+                               @Value("${device.response-cache.maximum-bytes:16MB}") DataSize maximumBytes,
+                               @Value("${device.response-cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes.toBytes())
+                .<Long, Encoded>weigher((key, encoded) -> encoded.body.length + ENTRY_OVERHEAD)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        for (Format format : Format.values()) {
+            objectMappers[format.ordinal()] = converters.getConverters().stream()
+                    .filter(format.converter::isInstance)
+                    .map(converter -> ((AbstractJackson2HttpMessageConverter) converter).getObjectMapper())
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No message converter for " + format.mediaType));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached response body or loads the Device with the given loader, encodes and caches it.
+     * @param id Device id
+     * @param format Negotiated format
+     * @param loader Loads the Device
+     * @return The encoded Device, empty if it does not exist
+     */
+    public Optional<Encoded> get(long id, Format format, Function<Long, Optional<Device>> loader) {
+        return Optional.ofNullable(cache.get(key(id, format), key -> loader.apply(id)
+                .map(device -> new Encoded(encode(device, format), device.getVersion(), device.getUpdatedAt()))
+                .orElse(null)));
+    }
+
+    /**
+     * Runs right after DeviceCache.onDeviceEvent: an entry encoded from a Device still in the DeviceCache would
+     * otherwise outlive the invalidation.
+     */
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE + 2)
+    public void onDeviceEvent(DeviceEvent event) {
+        for (Format format : Format.values()) {
+            cache.invalidate(key(event.getId(), format));
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counters, the number of cached responses and the bytes they hold.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", cache.estimatedSize());
+        result.put("bytes", weightedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "device-response");
+        Gauge.builder("device.response.cache.bytes", this, DeviceResponseCache::weightedSize)
+                .description("Bytes held by the cached Device responses, including an estimate of the entry overhead")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private long weightedSize() {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+    }
+
+    private byte[] encode(Device device, Format format) {
+        try {
+            return objectMappers[format.ordinal()].writeValueAsBytes(device);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Packs id and format into one key, ids stay far below 2^61.
+     */
+    private static long key(long id, Format format) {
+        return id << 2 | format.ordinal();
+    }
+}
@@ -0,0 +1,102 @@
+package com.phone.device.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one query per key at a time: a caller asking for a key whose query is already running waits for that
+ * query and gets its result (or its exception) instead of running its own. Nothing is kept once the query is done,
+ * the next caller runs a new one.
+ *
+ * forget drops a running query from the map without stopping it. The callers already waiting for it still get its
+ * result, callers coming after it run a new query, which is what a write has to do so that nobody who started
+ * reading after the write gets a result read before it.
+ *
+ * Callers waiting for a query share the result object, it must not be modified.
+ * @param <K> Key, with equals and hashCode
+ * @param <V> Result of the query
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    /**
+     * Returns the result of the query running for the key, or runs the given one.
+     * @param key Key of the query
+     * @param query Runs the query in the calling thread when no query for the key is running
+     * @return V Result of the query that ran
+     */
+    public V run(K key, Supplier<V> query) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            joined.increment();
+            return await(running);
+        }
+        queries.increment();
+        try {
+            V result = query.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * New callers for the key run a new query, callers already waiting keep waiting for the running one.
+     */
+    public void forget(K key) {
+        flights.remove(key);
+    }
+
+    /**
+     * forget for every key.
+     */
+    public void forgetAll() {
+        flights.clear();
+    }
+
+    /**
+     * @return Number of queries run
+     */
+    public long queries() {
+        return queries.sum();
+    }
+
+    /**
+     * @return Number of callers that got the result of a query run for another caller
+     */
+    public long joined() {
+        return joined.sum();
+    }
+
+    /**
+     * @return Number of queries running now
+     */
+    public int running() {
+        return flights.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
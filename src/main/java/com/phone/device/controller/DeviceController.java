@@ -1,27 +1,64 @@
 package com.phone.device.controller;
 
+import com.phone.device.cache.DeviceCache;
+import com.phone.device.cache.DeviceCollectionVersion;
+import com.phone.device.cache.DeviceReadCoalescer;
+import com.phone.device.cache.DeviceResponseCache;
+import com.phone.device.dto.AsyncCreate;
+import com.phone.device.dto.BatchItemResult;
+import com.phone.device.dto.DeleteResult;
+import com.phone.device.dto.DeviceLookupResult;
+import com.phone.device.dto.DeviceView;
+import com.phone.device.dto.ImportJob;
+import com.phone.device.dto.KeysetSlice;
 import com.phone.device.entity.Device;
 import com.phone.device.entity.OnCreate;
 import com.phone.device.entity.OnUpdate;
-import com.phone.device.jpa.DeviceRepository;
-import org.springframework.beans.BeanUtils;
-import org.springframework.beans.BeanWrapper;
-import org.springframework.beans.BeanWrapperImpl;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.feed.DeviceChangeFeed;
+import com.phone.device.replica.ReplicaRouter;
+import com.phone.device.search.DeviceBrandCounts;
+import com.phone.device.search.DeviceSearchIndex;
+import com.phone.device.service.DeviceBatchService;
+import com.phone.device.service.DeviceDeleteService;
+import com.phone.device.service.DeviceExportService;
+import com.phone.device.service.DeviceImportService;
+import com.phone.device.service.DeviceWriteBehindService;
+import com.phone.device.store.DeviceStore;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
-import java.beans.PropertyDescriptor;
-import java.util.HashSet;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * This class provides the REST endpoints for managing Devices.
@@ -30,123 +67,746 @@ import java.util.Set;
  * construction injection provides immutable objects which is thread safe in a multi-threaded environment. Even if we
  * do not have a multi-threaded environment, I would prefer to use constructor injection which is more of a best practice
  * that I learnt over the years.
+ *
+ * The GET endpoints and the batch endpoints answer in JSON, CBOR or Smile, chosen by the Accept header, and the
+ * request bodies can be sent in any of them. The binary formats are smaller and cheaper to encode than JSON, mostly
+ * because numbers and timestamps are not written as text. Error messages are always JSON.
  */
 @RestController
 @RequestMapping("/api/device")
 public class DeviceController {
 
-    private final DeviceRepository deviceRepository;
+    /**
+     * Media type of Jackson's Smile format, Spring has no constant for it.
+     */
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+
+    private final DeviceStore deviceStore;
+    private final DeviceBatchService deviceBatchService;
+    private final DeviceExportService deviceExportService;
+    private final DeviceImportService deviceImportService;
+    private final DeviceDeleteService deviceDeleteService;
+    private final DeviceWriteBehindService writeBehindService;
+    private final DeviceSearchIndex deviceSearchIndex;
+    private final DeviceBrandCounts brandCounts;
+    private final DeviceCache deviceCache;
+    private final DeviceResponseCache responseCache;
+    private final DeviceReadCoalescer readCoalescer;
+    private final ReplicaRouter replicaRouter;
+    private final DeviceCollectionVersion collectionVersion;
+    private final DeviceChangeFeed changeFeed;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int batchMaxItems;
+    private final int pagingMaxSize;
+    private final int lookupMaxIds;
+    private final int lookupChunkSize;
+    private final int deleteMaxIds;
 
     @Autowired
-    public DeviceController(DeviceRepository deviceRepository) {
-        this.deviceRepository = deviceRepository;
+    public DeviceController(DeviceStore deviceStore,
+                            DeviceBatchService deviceBatchService,
+                            DeviceExportService deviceExportService,
+                            DeviceImportService deviceImportService,
+                            DeviceDeleteService deviceDeleteService,
+                            DeviceWriteBehindService writeBehindService,
+                            DeviceSearchIndex deviceSearchIndex,
+                            DeviceBrandCounts brandCounts,
+                            DeviceCache deviceCache,
+                            DeviceResponseCache responseCache,
+                            DeviceReadCoalescer readCoalescer,
+                            ReplicaRouter replicaRouter,
+                            DeviceCollectionVersion collectionVersion,
+                            DeviceChangeFeed changeFeed,
+                            ApplicationEventPublisher eventPublisher,
+                            @Value("${device.batch.max-items:10000}") int batchMaxItems,
+                            @Value("${device.paging.max-size:1000}") int pagingMaxSize,
+                            @Value("${device.lookup.max-ids:1000}") int lookupMaxIds,
+                            @Value("${device.lookup.chunk-size:500}") int lookupChunkSize,
+                            @Value("${device.delete.max-ids:10000}") int deleteMaxIds) {
+        this.deviceStore = deviceStore;
+        this.deviceBatchService = deviceBatchService;
+        this.deviceExportService = deviceExportService;
+        this.deviceImportService = deviceImportService;
+        this.deviceDeleteService = deviceDeleteService;
+        this.writeBehindService = writeBehindService;
+        this.deviceSearchIndex = deviceSearchIndex;
+        this.brandCounts = brandCounts;
+        this.deviceCache = deviceCache;
+        this.responseCache = responseCache;
+        this.readCoalescer = readCoalescer;
+        this.replicaRouter = replicaRouter;
+        this.collectionVersion = collectionVersion;
+        this.changeFeed = changeFeed;
+        this.eventPublisher = eventPublisher;
+        this.batchMaxItems = batchMaxItems;
+        this.pagingMaxSize = pagingMaxSize;
+        this.lookupMaxIds = lookupMaxIds;
+        this.lookupChunkSize = lookupChunkSize;
+        this.deleteMaxIds = deleteMaxIds;
     }
 
     /**
-     * Fetches a single Device by Id.
+     * Fetches a single Device by Id, through the read-through DeviceCache.
+     * The response carries an ETag derived from id and version and a Last-Modified, Spring answers If-None-Match and
+     * If-Modified-Since with 304 Not Modified before the Device is serialized.
+     * With the DeviceResponseCache enabled the response is written from the bytes encoded for the negotiated format.
      * @param id The id of the Device as Long
+     * @param accept The Accept header of the request
      * @return Device
      */
-    @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @GetMapping(value = "/{id}", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
     @ResponseBody
-    public ResponseEntity<Device> getDevice(@PathVariable @Min(1) Long id) {
-        return deviceRepository.findById(id)
-            .map(ResponseEntity::ok)
+    public ResponseEntity<?> getDevice(@PathVariable @Min(1) Long id,
+                                       @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (!responseCache.isEnabled()) {
+            return deviceCache.get(id, this::findById)
+                .map(device -> withValidators(device.getId(), device.getVersion(), device.getUpdatedAt()).body(device))
+                .orElse(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        }
+        DeviceResponseCache.Format format = DeviceResponseCache.Format.negotiate(accept);
+        return responseCache.get(id, format, key -> deviceCache.get(key, this::findById))
+            .map(encoded -> withValidators(id, encoded.getVersion(), encoded.getUpdatedAt())
+                    .contentType(format.mediaType())
+                    .body(encoded.getBody()))
             .orElse(new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
 
+    /**
+     * Reads a Device from the store, sharing the read with concurrent requests for the same id. Reads from a replica
+     * unless the Device has just been written.
+     */
+    private Optional<Device> findById(Long id) {
+        return readCoalescer.findById(id, key -> replicaRouter.findById(key, () -> deviceStore.findById(key)));
+    }
+
+    /**
+     * A helper method for the Bad Request responses. The message is written as JSON whatever format the client
+     * accepts, so the content type is set explicitly.
+     * @param message Error message, it may quote request parameters
+     * @return ResponseEntity with a json body of the message
+     */
+    private static ResponseEntity<Map<String, String>> badRequest(String message) {
+        return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON).body(message(message));
+    }
+
+    /**
+     * The body of the error responses, serialized by Jackson so quotes and backslashes in the message are escaped.
+     * @param message Error message
+     * @return Map with the message
+     */
+    private static Map<String, String> message(String message) {
+        return Map.of("message", message);
+    }
+
+    /**
+     * A helper method for adding the validators of conditional requests to a single Device response.
+     * @param id The id of the Device to be returned
+     * @param version Its version, for the ETag
+     * @param updatedAt Its update timestamp, for Last-Modified
+     * @return ResponseEntity builder with the validators the Device has been stored with
+     */
+    private static ResponseEntity.BodyBuilder withValidators(Long id, Long version, Timestamp updatedAt) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (version != null) {
+            response.eTag(eTag(id, version));
+        }
+        if (updatedAt != null) {
+            response.lastModified(updatedAt.getTime());
+        }
+        if (version != null || updatedAt != null) {
+            response.varyBy(HttpHeaders.ACCEPT);
+        }
+        return response;
+    }
+
+    /**
+     * The strong ETag of a single Device, the same in every format.
+     */
+    private static String eTag(long id, long version) {
+        return "\"" + id + "-" + version + "\"";
+    }
+
+    /**
+     * Finds the version a PATCH expects from its If-Match header, the ETag of the Device given to an earlier GET.
+     * @param id The id of the Device to be updated
+     * @param ifMatch Comma separated ETags or *
+     * @return The version of the first ETag of the Device, -1 for * and null when no ETag is one of the Device. Weak
+     * ETags never match.
+     */
+    private static Long expectedVersion(long id, String ifMatch) {
+        String prefix = "\"" + id + "-";
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return -1L;
+            }
+            if (tag.startsWith(prefix) && tag.endsWith("\"") && tag.length() > prefix.length() + 1) {
+                try {
+                    return Long.parseLong(tag.substring(prefix.length(), tag.length() - 1));
+                } catch (NumberFormatException e) {
+                    // not one of our ETags, try the next one
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetches many Devices by id in one request, for example /api/device/lookup?ids=1,2,3.
+     * @param ids The ids of the Devices
+     * @return DeviceLookupResult The Devices in request order and the ids that were not found
+     */
+    @GetMapping(value = "/lookup", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> lookupDevices(@RequestParam List<Long> ids) {
+        return lookup(ids);
+    }
+
+    /**
+     * Same as lookupDevices, with the ids as a json array in the body for lists too long for a query string.
+     * @param ids The ids of the Devices
+     * @return DeviceLookupResult The Devices in request order and the ids that were not found
+     */
+    @PostMapping(value = "/lookup", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> lookupDevicesByBody(@RequestBody List<Long> ids) {
+        return lookup(ids);
+    }
+
+    /**
+     * Removes duplicate ids, takes what it can from the DeviceCache and loads the rest with chunked IN queries.
+     */
+    private ResponseEntity<?> lookup(List<Long> ids) {
+        if(ids.contains(null)) {
+            return badRequest("Device ids must not be null.");
+        }
+        LinkedHashSet<Long> uniqueIds = new LinkedHashSet<>(ids);
+        if(uniqueIds.size() > lookupMaxIds) {
+            return badRequest("A lookup can contain at most " + lookupMaxIds + " ids.");
+        }
+        Map<Long, Device> found = deviceCache.getAll(uniqueIds, this::findAllByIdInChunks);
+        List<Device> devices = new ArrayList<>(found.size());
+        List<Long> missing = new ArrayList<>();
+        for (Long id : uniqueIds) {
+            Device device = found.get(id);
+            if (device == null) {
+                missing.add(id);
+            } else {
+                devices.add(device);
+            }
+        }
+        return ResponseEntity.ok(new DeviceLookupResult(devices, missing));
+    }
+
     /**
      * Creates a New Device.
+     * With Prefer: respond-async the Device is validated and queued for the write-behind writer, which stores the
+     * queued Devices in groups. The answer is 202 Accepted with the AsyncCreate to follow on /async/{trackingId},
+     * or 503 Service Unavailable when the queue is full.
      * @param device The Device to be created
+     * @param prefer The Prefer header of the request
      *
      */
     @PostMapping()
-    public ResponseEntity<?> addDevice(@RequestBody @Validated(OnCreate.class) Device device) {
+    public ResponseEntity<?> addDevice(@RequestBody @Validated(OnCreate.class) Device device,
+                                       @RequestHeader(value = "Prefer", required = false) String prefer) {
         device.setId(null);
-        deviceRepository.saveAndFlush(device);
+        device.setVersion(null);
+        if (writeBehindService.isEnabled() && respondAsync(prefer)) {
+            return writeBehindService.submit(device)
+                .<ResponseEntity<?>>map(tracking -> ResponseEntity.accepted()
+                        .location(ServletUriComponentsBuilder.fromCurrentRequestUri()
+                                .path("/async/{trackingId}")
+                                .buildAndExpand(tracking.getTrackingId())
+                                .toUri())
+                        .header("Preference-Applied", "respond-async")
+                        .body(tracking))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "1")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(message("The write-behind queue is full.")));
+        }
+        deviceStore.create(device);
+        eventPublisher.publishEvent(DeviceEvent.created(device));
         return ResponseEntity.status(HttpStatus.CREATED).build();
     }
 
+    /**
+     * Whether the Prefer header asks for an asynchronous answer, RFC 7240.
+     * @param prefer The Prefer header, comma separated preferences with optional parameters
+     * @return true when one of the preferences is respond-async
+     */
+    private static boolean respondAsync(String prefer) {
+        if (prefer == null) {
+            return false;
+        }
+        return Arrays.stream(prefer.split(","))
+                .map(preference -> preference.split(";", 2)[0].trim())
+                .anyMatch("respond-async"::equalsIgnoreCase);
+    }
+
+    /**
+     * Status of a Device created with Prefer: respond-async.
+     * @param trackingId The tracking id returned by the create
+     * @return AsyncCreate with the id of the Device once it is stored, Not Found when the tracking is unknown or too old
+     */
+    @GetMapping(value = "/async/{trackingId}", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<AsyncCreate> asyncCreate(@PathVariable String trackingId) {
+        return writeBehindService.find(trackingId)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Queue depth and counters of the write-behind creates.
+     * @return Map of statistic name to value
+     */
+    @GetMapping(value = "/async", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<Map<String, Object>> asyncStats() {
+        return ResponseEntity.ok(writeBehindService.stats());
+    }
+
+    /**
+     * Creates many Devices in one request. Every element is validated on its own, valid elements are stored in
+     * chunked JDBC batches and invalid ones are reported back without failing the rest of the request.
+     * @param devices The Devices to be created
+     * @return List<BatchItemResult> One result per element with either the created id or the validation errors
+     */
+    @PostMapping(value = "/batch", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> addDevices(@RequestBody List<Device> devices) {
+        if(devices.size() > batchMaxItems) {
+            return badRequest("A batch can contain at most " + batchMaxItems + " devices.");
+        }
+        List<BatchItemResult> results = deviceBatchService.createAll(devices);
+        return ResponseEntity.ok(results);
+    }
+
+
+    /**
+     * Imports Devices from a CSV (text/csv) or NDJSON (application/x-ndjson) upload of any size. Once the CSV header
+     * is read the upload is accepted, with the job in Location, and the response streams the job as NDJSON while the
+     * body is parsed and stored in chunks: the job as it starts, its progress every device.import.progress-interval
+     * and the finished job as the last line. Rows that fail validation are counted and reported without stopping the
+     * import. The job can also be followed on /import/{jobId} while the upload is running.
+     * @param contentType Format of the body, with an optional charset
+     * @param body The upload
+     * @return StreamingResponseBody Accepted with the ImportJob lines: rows read, imported and rejected, rows per
+     * second and the first rejected rows. Bad Request with the failed ImportJob when the body could not be read or the
+     * CSV header is missing
+     */
+    @PostMapping(value = "/import", consumes = {"text/csv", MediaType.APPLICATION_NDJSON_VALUE}, produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> importDevices(@RequestHeader(HttpHeaders.CONTENT_TYPE) MediaType contentType, InputStream body) {
+        DeviceImportService.Upload upload = deviceImportService.open(body, contentType);
+        if(upload.getJob().getStatus() == ImportJob.Status.FAILED) {
+            return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON).body(upload::streamTo);
+        }
+        return ResponseEntity.accepted()
+                .location(ServletUriComponentsBuilder.fromCurrentRequestUri()
+                        .path("/{jobId}")
+                        .buildAndExpand(upload.getJob().getId())
+                        .toUri())
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(upload::streamTo);
+    }
+
+    /**
+     * Progress of a running or recent import.
+     * @param jobId The id returned by the import
+     * @return ImportJob, Not Found when the job is unknown or too old
+     */
+    @GetMapping(value = "/import/{jobId}", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<ImportJob> importJob(@PathVariable String jobId) {
+        return deviceImportService.find(jobId)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Running and recent imports, oldest first.
+     * @return List<ImportJob>
+     */
+    @GetMapping(value = "/import", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<List<ImportJob>> importJobs() {
+        return ResponseEntity.ok(deviceImportService.jobs());
+    }
+
+    /**
+     * List all devices. The ETag is the version of the whole collection, a matching If-None-Match is answered with
+     * 304 Not Modified without reading the table.
+     * @param fields Optional comma separated fields to return, for example id,name. Only those columns are read and
+     *               serialized, the id is always included
+     * @return List<Device> List of Device as Json, Bad Request for an unknown field
+     */
+    @GetMapping(value = "/list", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> listAll(@RequestParam(required = false) String fields, WebRequest webRequest) {
+        Set<DeviceView.Field> selected;
+        try {
+            selected = fields != null ? DeviceView.parseFields(fields) : null;
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        String eTag = collectionVersion.eTag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        if (selected != null) {
+            return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(deviceStore.findAllViews(selected));
+        }
+        return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(deviceStore.findAll());
+    }
+
+    /**
+     * Streams all devices as newline delimited JSON. Selected on /list when the client sends
+     * Accept: application/x-ndjson, and always on /export. Unlike listAll the table is never held in memory, every
+     * Device is written to the response as soon as it is read.
+     * @return StreamingResponseBody One Device Json per line
+     */
+    @GetMapping(value = {"/list", "/export"}, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportAll() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(deviceExportService::writeNdjson);
+    }
 
+    /**
+     * Feed of Device changes as Server-Sent Events, for mirrors that sync incrementally. Every event carries the change
+     * with its sequence number and an id that an EventSource sends back as Last-Event-ID when it reconnects. To build
+     * a mirror, subscribe first and then read /list, the changes apply idempotently on top of it.
+     * @param lastEventId The id of the last event seen, sent by an EventSource when it reconnects
+     * @param since The id of the last event seen or a sequence number, for clients that can not set the header;
+     *              without either only the changes to come are sent
+     * @return SseEmitter The event stream, Gone when the changes after the given position are no longer kept and the
+     * mirror has to sync from /list again, Bad Request for a malformed position, Service Unavailable when
+     * device.changes.max-subscribers are connected
+     */
+    @GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> changes(@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                              @RequestParam(required = false) String since) {
+        String position = lastEventId != null ? lastEventId : since;
+        long after;
+        if(position == null) {
+            after = changeFeed.lastSeq();
+        } else {
+            OptionalLong resumed;
+            try {
+                resumed = changeFeed.resumeAfter(position);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            }
+            if(resumed.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.GONE).build();
+            }
+            after = resumed.getAsLong();
+        }
+        try {
+            return ResponseEntity.ok(changeFeed.subscribe(after));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    @GetMapping(value = "/paged-list", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> pagedList(@RequestParam(defaultValue = "0") int page, @RequestParam(defaultValue = "3") int size,
+                                       @RequestParam(required = false) String fields, WebRequest webRequest) {
+        Set<DeviceView.Field> selected;
+        try {
+            selected = fields != null ? DeviceView.parseFields(fields) : null;
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        String eTag = collectionVersion.eTag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        if (selected != null) {
+            return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(deviceStore.findAllViews(selected, PageRequest.of(page, size)));
+        }
+        return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(deviceStore.findAll(PageRequest.of(page, size)));
+    }
 
     /**
-     * List all devices
-     * @return List<Device> List of Device as Json
+     * Cursor based listing, selected on /paged-list when the after parameter is sent (empty for the first page).
+     * There is no count query and no offset, so walking the whole catalogue costs the same for every page.
+     * Uses the collection version as ETag like listAll.
+     * @param after The next cursor of the previous page, empty for the first page
+     * @param size Page size, capped at device.paging.max-size
+     * @param fields Optional fields to return, like listAll
+     * @return KeysetSlice<Device> The page with the cursor of the next one
      */
-    @GetMapping(value = "/list", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<List<Device>> listAll() {
-        return ResponseEntity.ok(deviceRepository.findAll());
+    @GetMapping(value = "/paged-list", params = "after", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> keysetList(@RequestParam String after, @RequestParam(defaultValue = "3") int size,
+                                        @RequestParam(required = false) String fields, WebRequest webRequest) {
+        if(size < 1) {
+            return badRequest("Page size must be at least 1.");
+        }
+        long lastId;
+        try {
+            lastId = KeysetSlice.decodeCursor(after);
+        } catch (IllegalArgumentException e) {
+            return badRequest("Invalid cursor.");
+        }
+        Set<DeviceView.Field> selected;
+        try {
+            selected = fields != null ? DeviceView.parseFields(fields) : null;
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        String eTag = collectionVersion.eTag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        int pageSize = Math.min(size, pagingMaxSize);
+        if (selected != null) {
+            return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(keysetSlice(deviceStore.findViewsAfter(lastId, pageSize, selected), DeviceView::getId));
+        }
+        return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(keysetSlice(deviceStore.findAfter(lastId, pageSize), Device::getId));
     }
 
-    @GetMapping(value = "/paged-list", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Page<Device>> pagedList(@RequestParam(defaultValue = "0") int page, @RequestParam(defaultValue = "3") int size) {
-        return ResponseEntity.ok(deviceRepository.findAll(PageRequest.of(page, size)));
+    /**
+     * A helper method for turning a Slice into a KeysetSlice with the cursor of its last element.
+     */
+    private static <T> KeysetSlice<T> keysetSlice(Slice<T> slice, Function<T, Long> id) {
+        List<T> content = slice.getContent();
+        String next = slice.hasNext() ? KeysetSlice.encodeCursor(id.apply(content.get(content.size() - 1))) : null;
+        return new KeysetSlice<>(content, slice.getSize(), slice.hasNext(), next);
     }
 
     /**
-     * Search by Brand Name.
+     * Search by Brand Name. Answered from the in memory trigram index when it is available, the matching Devices are
+     * then loaded by id. Falls back to the brand query of the DeviceStore otherwise. Uses the collection version as
+     * ETag like listAll. Identical searches arriving while one is running share its result (DeviceReadCoalescer).
      * @param searchTerm Search Term
+     * @param fields Optional fields to return, like listAll
      * @return List<Device>
      */
-    @GetMapping(value = "/search/{searchTerm}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<List<Device>> search(@PathVariable @NotBlank @Min(1) String searchTerm) {
-        return ResponseEntity.ok(deviceRepository.findByBrandContainingIgnoreCase(searchTerm));
+    @GetMapping(value = "/search/{searchTerm}", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> search(@PathVariable @NotBlank @Min(1) String searchTerm,
+                                    @RequestParam(required = false) String fields, WebRequest webRequest) {
+        Set<DeviceView.Field> selected;
+        try {
+            selected = fields != null ? DeviceView.parseFields(fields) : null;
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        String eTag = collectionVersion.eTag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        if (selected != null) {
+            return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(readCoalescer.search(searchTerm, selected,
+                    () -> deviceSearchIndex.findIdsByBrandContaining(searchTerm)
+                            .map(found -> findViewsInIdOrder(found, selected))
+                            .orElseGet(() -> deviceStore.findViewsByBrandContainingIgnoreCase(searchTerm, selected))));
+        }
+        return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(readCoalescer.search(searchTerm, null,
+                () -> deviceSearchIndex.findIdsByBrandContaining(searchTerm)
+                        .map(this::findAllInIdOrder)
+                        .orElseGet(() -> deviceStore.findByBrandContainingIgnoreCase(searchTerm))));
     }
 
     /**
-     * Update Device information, partial as well as full.
-     * @param device The Device Data, must contain id to be updated.
-     * @return Http Status
+     * Number of Devices per brand, most Devices first, from the in memory DeviceBrandCounts (or the DeviceStore when
+     * they are disabled). Uses the collection version as ETag like listAll.
+     * @param prefix Only brands starting with it, ignoring case
+     * @param top Only this many brands with the most Devices
+     * @return Map of brand to number of Devices, Bad Request when top is less than 1
      */
-    @PatchMapping(produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> updateDevice(@Validated(OnUpdate.class) @RequestBody Device device) {
-        if(device.getId() == null ) {
-            return ResponseEntity.badRequest().body("{\n\"message\":\"Device Not found or Invalid Device Id.\"\n}");
+    @GetMapping(value = "/brands", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<?> brands(@RequestParam(required = false) String prefix, @RequestParam(required = false) Integer top,
+                                    WebRequest webRequest) {
+        if(top != null && top < 1) {
+            return badRequest("top must be at least 1.");
         }
-        if(device.getName() == null && device.getBrand() == null) {
-            return ResponseEntity.badRequest().body("{\n\"message\":\"At least one of name or device value are needed.\"\n}");
+        String eTag = collectionVersion.eTag();
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
         }
-        Device oldDevice = deviceRepository.getById(device.getId());
-        BeanUtils.copyProperties(device, oldDevice,getNullPropertyNames(device));
-        System.out.println(oldDevice);
-        deviceRepository.saveAndFlush(oldDevice);
-        return ResponseEntity.noContent().build();
+        return ResponseEntity.ok().eTag(eTag).varyBy(HttpHeaders.ACCEPT).body(brandCounts.top(prefix, top)
+                .orElseGet(() -> DeviceBrandCounts.top(deviceStore.countByBrand(), prefix, top)));
+    }
+
+    /**
+     * Size and estimated memory of the brand search index.
+     * @return Map of statistic name to value
+     */
+    @GetMapping(value = "/search-index", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<Map<String, Object>> searchIndexStats() {
+        return ResponseEntity.ok(deviceSearchIndex.stats());
+    }
+
+    /**
+     * Hit, miss and eviction counters of the Device cache, those of the response cache under responses and the
+     * coalesced reads under coalescing.
+     * @return Map of statistic name to value
+     */
+    @GetMapping(value = "/cache", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        Map<String, Object> stats = deviceCache.stats();
+        stats.put("responses", responseCache.stats());
+        stats.put("coalescing", readCoalescer.stats());
+        return ResponseEntity.ok(stats);
+    }
+
+    /**
+     * Backend of the DeviceStore and, for the file store, restore and snapshot times. With read replicas also their
+     * health and lag.
+     * @return Map of statistic name to value
+     */
+    @GetMapping(value = "/store", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<Map<String, Object>> storeStats() {
+        if (!replicaRouter.isEnabled()) {
+            return ResponseEntity.ok(deviceStore.stats());
+        }
+        Map<String, Object> stats = new LinkedHashMap<>(deviceStore.stats());
+        stats.put("replication", replicaRouter.stats());
+        return ResponseEntity.ok(stats);
     }
 
     /**
-     * A helper method for extracting field names with null value.
-     * @param source The object from which the null field names will be extracted.
-     * @return Array of String with properties that are null in the object.
+     * Writes a snapshot of the DeviceStore now, so that the next start has less log to replay.
+     * @return Map of statistic name to value, or Bad Request when the store does not take snapshots
      */
-    private static String[] getNullPropertyNames(Object source) {
-        final BeanWrapper src = new BeanWrapperImpl(source);
-        PropertyDescriptor[] pds = src.getPropertyDescriptors();
+    @PostMapping(value = "/store/snapshot", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> snapshotStore() {
+        if(!deviceStore.snapshot()) {
+            return badRequest("The device store does not take snapshots.");
+        }
+        return ResponseEntity.ok(deviceStore.stats());
+    }
 
-        Set<String> emptyNames = new HashSet<>();
-        for (PropertyDescriptor pd : pds) {
-            Object srcValue = src.getPropertyValue(pd.getName());
-            if (srcValue == null)
-                emptyNames.add(pd.getName());
+    /**
+     * Loads the Devices with the given ids, ordered by id like the brand query of the DeviceStore.
+     */
+    private List<Device> findAllInIdOrder(long[] ids) {
+        List<Device> devices = findAllByIdInChunks(Arrays.stream(ids).boxed().collect(Collectors.toList()));
+        devices.sort(Comparator.comparing(Device::getId));
+        return devices;
+    }
+
+    /**
+     * Loads the views of the Devices with the given ids in chunks like findAllByIdInChunks, ordered by id.
+     */
+    private List<DeviceView> findViewsInIdOrder(long[] ids, Set<DeviceView.Field> fields) {
+        List<Long> boxed = Arrays.stream(ids).boxed().collect(Collectors.toList());
+        List<DeviceView> views = new ArrayList<>(ids.length);
+        for (int from = 0; from < boxed.size(); from += lookupChunkSize) {
+            views.addAll(deviceStore.findViewsById(boxed.subList(from, Math.min(from + lookupChunkSize, boxed.size())), fields));
+        }
+        views.sort(Comparator.comparing(DeviceView::getId));
+        return views;
+    }
+
+    /**
+     * Loads the Devices with the given ids with one IN query per device.lookup.chunk-size ids, so that the statement
+     * stays small enough for the database to cache its plan.
+     * @param ids Device ids
+     * @return List<Device> The Devices found, in no particular order
+     */
+    private List<Device> findAllByIdInChunks(List<Long> ids) {
+        List<Device> devices = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size(); from += lookupChunkSize) {
+            devices.addAll(deviceStore.findAllById(ids.subList(from, Math.min(from + lookupChunkSize, ids.size()))));
+        }
+        return devices;
+    }
+
+    /**
+     * Update Device information, partial as well as full. Runs a single UPDATE over the supplied fields without
+     * loading the Device first.
+     * With an If-Match header holding the ETag of the Device, or a version in the body, the UPDATE only applies to that
+     * version of the Device, so of two clients updating what they read only the first succeeds. The other gets
+     * 412 Precondition Failed (If-Match) or 409 Conflict (version) and can read the Device again. If-Match, * included,
+     * fails with 412 as well when the Device does not exist.
+     * @param device The Device Data, must contain id to be updated.
+     * @param ifMatch ETags of the Device the update is meant for, or *
+     * @return Http Status, with the new ETag of the Device when the update was conditional
+     */
+    @PatchMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> updateDevice(@Validated(OnUpdate.class) @RequestBody Device device,
+                                          @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if(device.getId() == null ) {
+            return badRequest("Device Not found or Invalid Device Id.");
+        }
+        if(device.getName() == null && device.getBrand() == null) {
+            return badRequest("At least one of name or device value are needed.");
+        }
+        if(ifMatch != null) {
+            Long expected = expectedVersion(device.getId(), ifMatch);
+            if(expected == null) {
+                return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(message("If-Match does not contain the ETag of the Device."));
+            }
+            if(expected >= 0) {
+                if(device.getVersion() != null && device.getVersion() != expected.longValue()) {
+                    return badRequest("The version does not match If-Match.");
+                }
+                device.setVersion(expected);
+            }
         }
-        String[] result = new String[emptyNames.size()];
-        return emptyNames.toArray(result);
+        Long version = device.getVersion();
+        if(deviceStore.updateNonNullFields(device) == 0) {
+            if(ifMatch == null && version == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(message("Device Not found or Invalid Device Id."));
+            }
+            if(!deviceStore.existsById(device.getId())) {
+                // If-Match, * included, never matches a Device that does not exist (RFC 9110 13.1.1)
+                return ifMatch != null
+                        ? ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(message("Device Not found or Invalid Device Id."))
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND).body(message("Device Not found or Invalid Device Id."));
+            }
+            return ResponseEntity.status(ifMatch != null ? HttpStatus.PRECONDITION_FAILED : HttpStatus.CONFLICT)
+                    .body(message("The Device has been changed since version " + version + "."));
+        }
+        if(version == null) {
+            eventPublisher.publishEvent(DeviceEvent.updated(device));
+            return ResponseEntity.noContent().build();
+        }
+        device.setVersion(version + 1);
+        eventPublisher.publishEvent(DeviceEvent.updated(device));
+        return ResponseEntity.noContent().eTag(eTag(device.getId(), version + 1)).build();
     }
 
     /**
-     * Deletes a Device with the given id
+     * Deletes a Device with the given id, with a single DELETE statement.
      * @param id Device Id
-     * @return HTTP Status
+     * @return HTTP Status, Not Found when there is no Device with the given id
      */
 
     @DeleteMapping(value="/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> deleteDevice(@PathVariable @Min(1) @NotBlank Long id) {
-        if(deviceRepository.existsById(id)) {
-            deviceRepository.deleteById(id);
-            return ResponseEntity.noContent().build();
+        if(deviceStore.deleteById(id) == 0) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(message("Device Not found or Invalid Device Id."));
         }
-        else {
-            return ResponseEntity.badRequest().build();
+        eventPublisher.publishEvent(DeviceEvent.deleted(id));
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Deletes many Devices by id, with one DELETE ... WHERE id IN statement per device.delete.chunk-size ids.
+     * @param ids Json array of Device ids
+     * @return DeleteResult The number of distinct ids and of Devices deleted
+     */
+    @DeleteMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> deleteDevices(@RequestBody List<Long> ids) {
+        if(ids.contains(null)) {
+            return badRequest("Device ids must not be null.");
+        }
+        List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        if(uniqueIds.size() > deleteMaxIds) {
+            return badRequest("A delete can contain at most " + deleteMaxIds + " ids.");
+        }
+        int deleted = deviceDeleteService.deleteAllById(uniqueIds);
+        return ResponseEntity.ok(new DeleteResult(uniqueIds.size(), deleted));
+    }
+
+    /**
+     * Deletes every Device of a brand, for example DELETE /api/device?brand=Nokia. The brand must match exactly.
+     * @param brand Brand name
+     * @return DeleteResult The number of Devices deleted
+     */
+    @DeleteMapping(params = "brand", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> deleteBrand(@RequestParam String brand) {
+        if(brand.isBlank()) {
+            return badRequest("brand is required.");
         }
+        return ResponseEntity.ok(new DeleteResult(null, deviceDeleteService.deleteByBrand(brand)));
     }
 
 }
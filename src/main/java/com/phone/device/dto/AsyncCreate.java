@@ -0,0 +1,41 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Tracks a Device accepted by POST /api/device with Prefer: respond-async until the write-behind writer has stored it.
+ * The writer thread is the only writer, the fields are volatile so that GET /api/device/async/{trackingId} can report
+ * them at any time.
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AsyncCreate {
+
+    public enum Status {QUEUED, CREATED, FAILED}
+
+    private final String trackingId = UUID.randomUUID().toString();
+    private final Instant acceptedAt = Instant.now();
+    private volatile Status status = Status.QUEUED;
+    /**
+     * Id of the created Device.
+     */
+    private volatile Long id;
+    private volatile Instant writtenAt;
+    private volatile String message;
+
+    public void created(long id) {
+        this.id = id;
+        this.writtenAt = Instant.now();
+        this.status = Status.CREATED;
+    }
+
+    public void failed(String message) {
+        this.message = message;
+        this.writtenAt = Instant.now();
+        this.status = Status.FAILED;
+    }
+}
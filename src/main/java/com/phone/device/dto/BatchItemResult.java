@@ -0,0 +1,27 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * The outcome of a single element of a batch request. The index refers to the position of the element in the request
+ * array, so clients can correlate results even when some of the elements were rejected.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+
+    private final int index;
+
+    private int status;
+
+    private Long id;
+
+    private List<String> errors;
+
+    public BatchItemResult(int index) {
+        this.index = index;
+    }
+}
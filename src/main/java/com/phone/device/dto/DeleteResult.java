@@ -0,0 +1,16 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+/**
+ * Outcome of a bulk delete. requested is the number of distinct ids sent, absent for a delete by brand.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeleteResult {
+
+    private final Integer requested;
+
+    private final int deleted;
+}
@@ -0,0 +1,34 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.phone.device.event.DeviceEvent;
+import lombok.Data;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+
+/**
+ * One entry of the change feed. seq increases by one per change. CREATED carries the whole Device, UPDATED only the
+ * fields that were changed (the others are absent) and DELETED only the id. CREATED and UPDATED carry the version the
+ * Device has after the change, a mirror drops a change whose version is not newer than the one it holds.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeviceChange {
+
+    private final long seq;
+
+    private final DeviceEvent.Type type;
+
+    private final long id;
+
+    private final String name;
+
+    private final String brand;
+
+    private final Timestamp createdAt;
+
+    private final Long version;
+
+    private final Instant at;
+}
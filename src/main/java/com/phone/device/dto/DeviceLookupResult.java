@@ -0,0 +1,18 @@
+package com.phone.device.dto;
+
+import com.phone.device.entity.Device;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Result of a lookup of many Devices by id. The Devices are in the order their ids were requested, duplicates
+ * removed, and the ids without a Device are listed in missing.
+ */
+@Data
+public class DeviceLookupResult {
+
+    private final List<Device> devices;
+
+    private final List<Long> missing;
+}
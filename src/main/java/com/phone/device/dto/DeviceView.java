@@ -0,0 +1,77 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Projection of a Device onto the fields a client asked for with fields=, serialized like the Device itself but
+ * without the fields that were not asked for. Views are plain objects, never managed by the persistence context.
+ *
+ * The id is always part of a view, the cursor of the keyset listing and the id order of the search depend on it.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeviceView {
+
+    /**
+     * The fields that can be selected, named like the properties of Device.
+     */
+    public enum Field {
+        ID("id", (view, value) -> view.setId((Long) value)),
+        NAME("name", (view, value) -> view.setName((String) value)),
+        BRAND("brand", (view, value) -> view.setBrand((String) value)),
+        CREATED_AT("createdAt", (view, value) -> view.setCreatedAt((Timestamp) value));
+
+        private final String property;
+        private final BiConsumer<DeviceView, Object> setter;
+
+        Field(String property, BiConsumer<DeviceView, Object> setter) {
+            this.property = property;
+            this.setter = setter;
+        }
+
+        public String property() {
+            return property;
+        }
+
+        public void set(DeviceView view, Object value) {
+            setter.accept(view, value);
+        }
+    }
+
+    private Long id;
+
+    private String name;
+
+    private String brand;
+
+    private Timestamp createdAt;
+
+    /**
+     * Parses the fields parameter of a listing.
+     * @param fields Comma separated property names, for example id,name
+     * @return The selected fields, always including the id
+     * @throws IllegalArgumentException When a name is not one of the Fields
+     */
+    public static Set<Field> parseFields(String fields) {
+        Set<Field> selected = EnumSet.of(Field.ID);
+        for (String name : fields.split(",")) {
+            String property = name.trim();
+            if (property.isEmpty()) {
+                continue;
+            }
+            selected.add(Arrays.stream(Field.values())
+                    .filter(field -> field.property.equals(property))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown field " + property
+                            + ", fields can be id, name, brand and createdAt.")));
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,86 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Progress and outcome of a bulk import. The importing thread is the only writer, the counters are volatile so that
+ * GET /api/device/import/{id} can report them while the import is running.
+ *
+ * Only the first few rejected rows are kept with their errors, rowsRejected counts all of them, so that the memory
+ * used does not depend on the size or quality of the file.
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportJob {
+
+    public enum Status {RUNNING, COMPLETED, FAILED}
+
+    private final String id = UUID.randomUUID().toString();
+    private final String format;
+    private final Instant startedAt = Instant.now();
+    private volatile Instant finishedAt;
+    private volatile Status status = Status.RUNNING;
+    private volatile String message;
+    private volatile long rowsRead;
+    private volatile long rowsImported;
+    private volatile long rowsRejected;
+    private final List<RejectedRow> rejections = new CopyOnWriteArrayList<>();
+    @JsonIgnore
+    private final int maxRejections;
+
+    public ImportJob(String format, int maxRejections) {
+        this.format = format;
+        this.maxRejections = maxRejections;
+    }
+
+    /**
+     * @return Rows read per second since the import started, up to now or to its end
+     */
+    public long getRowsPerSecond() {
+        Instant end = finishedAt != null ? finishedAt : Instant.now();
+        long millis = Math.max(1, end.toEpochMilli() - startedAt.toEpochMilli());
+        return rowsRead * 1000 / millis;
+    }
+
+    public void rowRead() {
+        rowsRead++;
+    }
+
+    public void imported(int rows) {
+        rowsImported += rows;
+    }
+
+    public void rejected(long line, List<String> errors) {
+        rowsRejected++;
+        if (rejections.size() < maxRejections) {
+            rejections.add(new RejectedRow(line, errors));
+        }
+    }
+
+    public void finish(Status status, String message) {
+        this.message = message;
+        this.finishedAt = Instant.now();
+        this.status = status;
+    }
+
+    /**
+     * A row that was not imported, by line number in the uploaded file (the CSV header is line 1).
+     */
+    @Getter
+    public static class RejectedRow {
+        private final long line;
+        private final List<String> errors;
+
+        public RejectedRow(long line, List<String> errors) {
+            this.line = line;
+            this.errors = errors;
+        }
+    }
+}
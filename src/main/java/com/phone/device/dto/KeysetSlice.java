@@ -0,0 +1,52 @@
+package com.phone.device.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a keyset (cursor) paginated listing. Unlike Spring's Page there is no total count, the client keeps
+ * asking with the next cursor until hasNext is false. The cursor is opaque for the client, it encodes the id of the
+ * last element of this page.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class KeysetSlice<T> {
+
+    private final List<T> content;
+
+    private final int size;
+
+    private final boolean hasNext;
+
+    private final String next;
+
+    /**
+     * Encodes the last seen id as an url safe cursor.
+     * @param id The id of the last element returned to the client
+     * @return String The cursor
+     */
+    public static String encodeCursor(long id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(Long.BYTES).putLong(id).array());
+    }
+
+    /**
+     * Decodes a cursor created by encodeCursor. An empty cursor means the start of the listing.
+     * @param cursor The cursor sent by the client
+     * @return long The last seen id
+     * @throws IllegalArgumentException If the cursor was not created by encodeCursor
+     */
+    public static long decodeCursor(String cursor) {
+        if (cursor.isEmpty()) {
+            return 0L;
+        }
+        byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+        if (bytes.length != Long.BYTES) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+}
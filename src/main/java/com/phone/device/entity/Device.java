@@ -12,6 +12,7 @@ import java.sql.Timestamp;
 
 @Data
 @Entity
+@Table(indexes = @Index(name = "device_brand_idx", columnList = "brand"))
 @DynamicUpdate
 /*
   You can use GenerationType.AUTO, GenerationType.IDENTITY, GenerationType.SEQUENCE (There is also TABLE, which simulates Sequence but I have have not used it before
@@ -19,22 +20,31 @@ import java.sql.Timestamp;
   SEQUENCE is generally used as it uses the Database's Sequence, if No specific Sequence is given using @SequenceGenerator then the default sequence of the
   database will be used.
 
-  In this class we use AUTO Id generator of the H2 database. The device name being not-null and createdAt and updatedAt Timestamp is managed by JPA automatically
-  with the relevant annotations given below for them.
+  In this class we use a SEQUENCE generator with an allocationSize greater than one, which makes Hibernate use its pooled optimizer. Hibernate
+  reserves a block of ids with a single sequence call and hands them out from memory, so bulk inserts do not pay one sequence round trip per row
+  and the inserts can be grouped into JDBC batches (see hibernate.jdbc.batch_size in application.yaml). The device name being not-null and
+  createdAt and updatedAt Timestamp is managed by JPA automatically with the relevant annotations given below for them.
+
+  The index on brand serves the exact brand lookups such as the brand wide delete.
 
   DynamicUpdate annotation makes sure that the update is done only on fields that has got changed.
 
+  version is the optimistic lock of the Device, it starts at 0 and every update increments it. The ETag of a Device is
+  made of its id and version, a PATCH carrying it in If-Match (or the version in its body) is written with a single
+  UPDATE ... WHERE id = ? AND version = ? and rejected when another writer got there first.
+
   Testing - Unit testing is written only to test the functionality and not classes, so unit testing is out of scope for entity classes for this exercise.
 
  */
 public class Device {
     /**
-     * BeanUtils.copyProperties require a default constructor.
+     * JPA and Jackson require a default constructor.
      */
     public Device() {}
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "device_seq")
+    @SequenceGenerator(name = "device_seq", sequenceName = "device_seq", allocationSize = 50)
 
     private Long id;
     @Column(nullable = false)
@@ -52,4 +62,8 @@ public class Device {
     @JsonIgnore
     @Column(name = "updated_at")
     private Timestamp updatedAt;
+
+    @Version
+    @Column(nullable = false)
+    private Long version;
 }
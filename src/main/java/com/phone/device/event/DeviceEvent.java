@@ -0,0 +1,46 @@
+package com.phone.device.event;
+
+import com.phone.device.entity.Device;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Published through Spring's ApplicationEventPublisher after a Device has been written. The listeners are called
+ * synchronously in the thread of the write, so anything derived from the Devices (indexes, caches, counters) is up to
+ * date before the HTTP response is sent.
+ */
+@Getter
+@ToString
+public class DeviceEvent {
+
+    public enum Type {
+        CREATED, UPDATED, DELETED
+    }
+
+    private final Type type;
+
+    private final long id;
+
+    /**
+     * CREATED: the Device as stored. UPDATED: the patch, fields left null were not changed. DELETED: null.
+     */
+    private final Device device;
+
+    private DeviceEvent(Type type, long id, Device device) {
+        this.type = type;
+        this.id = id;
+        this.device = device;
+    }
+
+    public static DeviceEvent created(Device device) {
+        return new DeviceEvent(Type.CREATED, device.getId(), device);
+    }
+
+    public static DeviceEvent updated(Device device) {
+        return new DeviceEvent(Type.UPDATED, device.getId(), device);
+    }
+
+    public static DeviceEvent deleted(long id) {
+        return new DeviceEvent(Type.DELETED, id, null);
+    }
+}
@@ -0,0 +1,274 @@
+package com.phone.device.feed;
+
+import com.phone.device.dto.DeviceChange;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feed of Device changes for mirrors that sync incrementally instead of polling the list.
+ *
+ * Every DeviceEvent becomes a DeviceChange with the next sequence number and is kept in a ring of the last
+ * device.changes.buffer-size changes. A subscriber names the last sequence number it has seen and gets every change
+ * after it, first from the ring and then as they happen, as Server-Sent Events whose id is epoch:seq, so an
+ * EventSource that reconnects resumes where it stopped through Last-Event-ID. The epoch changes with every start of the
+ * application, where the sequence numbers restart at 1, so an id of a previous run is never mistaken for a current one.
+ *
+ * Writers only append to the ring, they never wait for a subscriber. Every subscriber has its own thread that sends
+ * the changes it has not seen yet, blocking on its connection, so a slow subscriber only slows itself down. A
+ * subscriber that falls further behind than the ring holds gets a reset event and is disconnected, it has to sync
+ * from /api/device/list again. The same holds for a subscriber that asks for a sequence number no longer in the ring.
+ *
+ * Changes are numbered when their event is published, after the write has been committed, so two concurrent writes
+ * of the same Device may be numbered in the other order than they were committed. Their version is the one the store
+ * wrote, so a mirror applies a change of a Device only when its version is newer than the one it holds.
+ */
+@Component
+public class DeviceChangeFeed implements MeterBinder {
+
+    /**
+     * Changes sent per wake up of a subscriber thread.
+     */
+    private static final int SEND_BATCH = 256;
+
+    private final DeviceChange[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private long lastSeq;
+
+    private final Duration heartbeat;
+    private final Duration timeout;
+    private final ThreadPoolExecutor senders;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private volatile Counter resetCounter;
+
+    @Autowired
+    public DeviceChangeFeed(@Value("${device.changes.buffer-size:10000}") int bufferSize,
+                            @Value("${device.changes.max-subscribers:100}") int maxSubscribers,
+                            @Value("${device.changes.heartbeat:15s}") Duration heartbeat,
+                            @Value("${device.changes.timeout:30m}") Duration timeout) {
+        this.ring = new DeviceChange[bufferSize];
+        this.heartbeat = heartbeat;
+        this.timeout = timeout;
+        AtomicInteger threads = new AtomicInteger();
+        this.senders = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "device-changes-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @EventListener
+    public void onDeviceEvent(DeviceEvent event) {
+        Device device = event.getDevice();
+        lock.lock();
+        try {
+            long seq = ++lastSeq;
+            ring[(int) (seq % ring.length)] = new DeviceChange(seq, event.getType(), event.getId(),
+                    device != null ? device.getName() : null,
+                    device != null ? device.getBrand() : null,
+                    event.getType() == DeviceEvent.Type.CREATED ? device.getCreatedAt() : null,
+                    device != null ? device.getVersion() : null,
+                    Instant.now());
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last change, 0 when there was none
+     */
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds where a subscriber resumes.
+     * @param position The Last-Event-ID of a previous subscription (epoch:seq), or a sequence number of this run
+     * @return The sequence number to send the changes after, empty when the position belongs to a previous run or
+     * the changes after it are no longer in the ring
+     * @throws IllegalArgumentException When the position is malformed
+     */
+    public OptionalLong resumeAfter(String position) {
+        int separator = position.indexOf(':');
+        if (separator >= 0 && !position.substring(0, separator).equals(epoch)) {
+            return OptionalLong.empty();
+        }
+        long seq = Long.parseLong(position.substring(separator + 1).trim());
+        lock.lock();
+        try {
+            return seq >= oldestResumable() && seq <= lastSeq ? OptionalLong.of(seq) : OptionalLong.empty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts sending the changes after the given sequence number to a new SseEmitter.
+     * @param after Last sequence number seen by the subscriber, lastSeq() for only the changes to come
+     * @return The emitter to return from the controller
+     * @throws RejectedExecutionException When device.changes.max-subscribers are already connected
+     */
+    public SseEmitter subscribe(long after) {
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        Subscriber subscriber = new Subscriber(emitter, after);
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(error -> subscriber.close());
+        subscribers.add(subscriber);
+        try {
+            senders.execute(subscriber);
+        } catch (RejectedExecutionException e) {
+            subscribers.remove(subscriber);
+            throw e;
+        }
+        return emitter;
+    }
+
+    /**
+     * Changes after the given sequence number, at most max of them. Called with the lock held.
+     * @return The changes, empty when there is none yet, or null when some of them are no longer in the ring
+     */
+    private List<DeviceChange> after(long seq, int max) {
+        if (seq < oldestResumable()) {
+            return null;
+        }
+        int count = (int) Math.min(max, lastSeq - seq);
+        List<DeviceChange> changes = new ArrayList<>(Math.max(count, 0));
+        for (long next = seq + 1; next <= seq + count; next++) {
+            changes.add(ring[(int) (next % ring.length)]);
+        }
+        return changes;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("device.changes.subscribers", subscribers, Set::size)
+                .description("Connected change feed subscribers")
+                .register(registry);
+        Gauge.builder("device.changes.sequence", this, DeviceChangeFeed::lastSeq)
+                .description("Sequence number of the last change")
+                .register(registry);
+        resetCounter = Counter.builder("device.changes.resets")
+                .description("Subscribers disconnected because they fell behind the change buffer")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+        senders.shutdownNow();
+    }
+
+    private long oldestResumable() {
+        return Math.max(0, lastSeq - ring.length);
+    }
+
+    /**
+     * Sends the changes to one subscriber, in its own thread.
+     */
+    private class Subscriber implements Runnable {
+        private final SseEmitter emitter;
+        private long cursor;
+        private volatile boolean closed;
+
+        Subscriber(SseEmitter emitter, long after) {
+            this.emitter = emitter;
+            this.cursor = after;
+        }
+
+        void close() {
+            closed = true;
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    List<DeviceChange> changes = next();
+                    if (changes == null) {
+                        if (resetCounter != null) {
+                            resetCounter.increment();
+                        }
+                        emitter.send(SseEmitter.event().name("reset")
+                                .data("{\"message\":\"Changes after " + cursor + " are no longer available.\"}",
+                                        MediaType.APPLICATION_JSON));
+                        emitter.complete();
+                        return;
+                    }
+                    if (changes.isEmpty()) {
+                        emitter.send(SseEmitter.event().comment("heartbeat"));
+                        continue;
+                    }
+                    for (DeviceChange change : changes) {
+                        emitter.send(SseEmitter.event()
+                                .id(epoch + ":" + change.getSeq())
+                                .name(change.getType().name().toLowerCase(Locale.ENGLISH))
+                                .data(change, MediaType.APPLICATION_JSON));
+                        cursor = change.getSeq();
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                // The subscriber disconnected or the emitter has been completed.
+                emitter.completeWithError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                emitter.complete();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Waits up to one heartbeat for changes after the cursor.
+         */
+        private List<DeviceChange> next() throws InterruptedException {
+            lock.lock();
+            try {
+                long nanos = heartbeat.toNanos();
+                while (lastSeq <= cursor && cursor >= oldestResumable() && nanos > 0 && !closed) {
+                    nanos = appended.awaitNanos(nanos);
+                }
+                return after(cursor, SEND_BATCH);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
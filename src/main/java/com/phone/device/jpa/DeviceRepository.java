@@ -1,9 +1,21 @@
 package com.phone.device.jpa;
 
 import com.phone.device.entity.Device;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.QueryHint;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
 
 /**
  * There will be a question on why use JpaRepository and n ot CrudRepository?
@@ -12,7 +24,56 @@ import java.util.List;
  * JpaRepository is also helpful in case of batch operations like deleteInBatch().
  * JpaRepository returns a List<Device> instead of Iterable<Device> in findAll, which is a bit convenient.
  */
-public interface DeviceRepository extends JpaRepository<Device, Long> {
+public interface DeviceRepository extends JpaRepository<Device, Long>, DeviceRepositoryCustom {
+    @Transactional(readOnly = true)
     List<Device> findByBrandContainingIgnoreCase(String name);
 
+    /**
+     * Keyset pagination, the next page starts right after the last seen id. The primary key index serves both the
+     * condition and the ordering, so every page costs the same whatever its depth, and a Slice never runs a count query.
+     * @param id The last seen id, 0 for the first page
+     * @param pageable Must be the first page sorted by id, only its size is used
+     * @return Slice<Device> The Devices after the given id
+     */
+    @Transactional(readOnly = true)
+    Slice<Device> findByIdGreaterThan(Long id, Pageable pageable);
+
+    /**
+     * Reads all Devices through a forward-only cursor instead of materializing the whole table. The rows are fetched
+     * from the driver in blocks of the given fetch size and loaded read-only, so Hibernate keeps no snapshot for dirty
+     * checking. Must be called inside a transaction and the Stream must be closed by the caller.
+     * @return Stream<Device> All Devices ordered by id
+     */
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("select d from Device d order by d.id")
+    Stream<Device> streamAllBy();
+
+    /**
+     * Deletes one Device with a single statement, unlike deleteById which loads the entity first.
+     * @param id Device id
+     * @return int Number of Devices deleted, 0 or 1
+     */
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("delete from Device d where d.id = :id")
+    int deleteWhereId(@Param("id") long id);
+
+    /**
+     * Ids of the Devices of the given brand after the given id, one chunk of a brand wide delete.
+     * @param brand Exact brand
+     * @param after The last id of the previous chunk, 0 for the first one
+     * @param pageable The chunk size, unsorted
+     * @return List<Long> Ids in ascending order
+     */
+    @Query("select d.id from Device d where d.brand = :brand and d.id > :after order by d.id")
+    List<Long> findIdsByBrand(@Param("brand") String brand, @Param("after") long after, Pageable pageable);
+
+    /**
+     * Number of Devices per brand, served by the brand index.
+     * @return List<Object[]> Pairs of brand and count
+     */
+    @Transactional(readOnly = true)
+    @Query("select d.brand, count(d) from Device d group by d.brand")
+    List<Object[]> countByBrand();
+
 }
@@ -0,0 +1,73 @@
+package com.phone.device.jpa;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Repository operations that Spring Data can not derive, implemented in DeviceRepositoryCustomImpl.
+ */
+public interface DeviceRepositoryCustom {
+
+    /**
+     * Partially updates a Device with one UPDATE statement over the non null fields of the patch, without loading it,
+     * and increments its version.
+     * @param patch Must contain the id, null fields are left unchanged. When it has a version the Device is only
+     *              updated if it still has that version.
+     * @return int Number of rows updated, 0 when no Device has the given id (and version)
+     */
+    int updateNonNullFields(Device patch);
+
+    /**
+     * Deletes the Devices with the given ids and tells which ones existed: the rows are selected for update and then
+     * deleted in one transaction, so a concurrent delete of the same ids can not report them twice.
+     * @param ids Device ids, callers keep the list to a few hundred ids
+     * @return List<Long> Ids of the Devices deleted
+     */
+    List<Long> deleteWhereIdInReturningIds(Collection<Long> ids);
+
+    /**
+     * Same as deleteWhereIdInReturningIds, only deleting the Devices that are still of the given brand, one chunk of a
+     * brand wide delete.
+     * @param brand Exact brand
+     * @param ids Device ids found by findIdsByBrand
+     * @return List<Long> Ids of the Devices deleted
+     */
+    List<Long> deleteWhereBrandAndIdInReturningIds(String brand, Collection<Long> ids);
+
+    /**
+     * The listings below select only the columns of the given fields and return DeviceViews, no entity is loaded into
+     * the persistence context. They are ordered by id.
+     * @param fields The fields to select, must contain the id
+     * @return List<DeviceView> All Devices
+     */
+    List<DeviceView> findAllViews(Set<DeviceView.Field> fields);
+
+    /**
+     * @param pageable Page number and size, its sort is ignored
+     * @return Page<DeviceView> One page, with the total count
+     */
+    Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable);
+
+    /**
+     * Keyset pagination like DeviceRepository.findByIdGreaterThan.
+     * @return Slice<DeviceView> At most size Devices after the given id
+     */
+    Slice<DeviceView> findViewsByIdGreaterThan(long id, int size, Set<DeviceView.Field> fields);
+
+    /**
+     * @param ids Device ids, callers keep the list to a few hundred ids
+     */
+    List<DeviceView> findViewsByIdIn(Collection<Long> ids, Set<DeviceView.Field> fields);
+
+    /**
+     * Same match as DeviceRepository.findByBrandContainingIgnoreCase.
+     */
+    List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields);
+}
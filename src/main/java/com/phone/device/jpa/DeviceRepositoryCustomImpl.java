@@ -0,0 +1,243 @@
+package com.phone.device.jpa;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.jpa.repository.query.EscapeCharacter;
+import org.springframework.data.support.PageableExecutionUtils;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The partial update replaces loading the entity, copying the non null properties with BeanUtils and saving it.
+ *
+ * The patchable fields are listed once with plain getters, so nothing is looked up by reflection per request, and the
+ * JPQL for every combination of supplied fields is built up front. Hibernate parses each of them once and keeps the
+ * plan in its query plan cache. A bulk update does not run @UpdateTimestamp nor increment the @Version, so updatedAt and
+ * version are set by the statement. A patch carrying a version gets the statement with the version in its WHERE clause,
+ * which makes the check and the write one atomic statement without a lock held across requests.
+ *
+ * The listings of DeviceViews work the same way: the select list for every combination of DeviceView fields is built
+ * up front, the query returns Tuples of just those columns and every Tuple is copied into a DeviceView, so Hibernate
+ * neither hydrates nor tracks a Device.
+ */
+public class DeviceRepositoryCustomImpl implements DeviceRepositoryCustom {
+
+    private static final List<PatchableField> FIELDS = List.of(
+            new PatchableField("name", Device::getName),
+            new PatchableField("brand", Device::getBrand));
+
+    /**
+     * Indexed by the bit mask of the supplied fields, index 0 (nothing supplied) is unused.
+     */
+    private static final String[] UPDATES = new String[1 << FIELDS.size()];
+
+    /**
+     * Same as UPDATES, only updating the Device when it still has the expected version.
+     */
+    private static final String[] CONDITIONAL_UPDATES = new String[UPDATES.length];
+
+    static {
+        for (int mask = 1; mask < UPDATES.length; mask++) {
+            StringBuilder jpql = new StringBuilder("update Device d set d.updatedAt = :updatedAt, d.version = d.version + 1");
+            for (int i = 0; i < FIELDS.size(); i++) {
+                if ((mask & (1 << i)) != 0) {
+                    String name = FIELDS.get(i).name;
+                    jpql.append(", d.").append(name).append(" = :").append(name);
+                }
+            }
+            UPDATES[mask] = jpql.append(" where d.id = :id").toString();
+            CONDITIONAL_UPDATES[mask] = jpql.append(" and d.version = :version").toString();
+        }
+    }
+
+    private static final DeviceView.Field[] VIEW_FIELDS = DeviceView.Field.values();
+
+    /**
+     * Indexed by the bit mask of the selected fields (bit = ordinal).
+     */
+    private static final String[] SELECTS = new String[1 << VIEW_FIELDS.length];
+
+    static {
+        for (int mask = 1; mask < SELECTS.length; mask++) {
+            StringBuilder jpql = new StringBuilder("select ");
+            for (DeviceView.Field field : VIEW_FIELDS) {
+                if ((mask & (1 << field.ordinal())) != 0) {
+                    if (jpql.length() > "select ".length()) {
+                        jpql.append(", ");
+                    }
+                    jpql.append("d.").append(field.property()).append(" as ").append(field.property());
+                }
+            }
+            SELECTS[mask] = jpql.append(" from Device d").toString();
+        }
+    }
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    @Transactional
+    public int updateNonNullFields(Device patch) {
+        int mask = 0;
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (FIELDS.get(i).getter.apply(patch) != null) {
+                mask |= 1 << i;
+            }
+        }
+        if (mask == 0) {
+            throw new IllegalArgumentException("At least one field of the patch must be set");
+        }
+        Query update = entityManager.createQuery(patch.getVersion() == null ? UPDATES[mask] : CONDITIONAL_UPDATES[mask])
+                .setParameter("id", patch.getId())
+                .setParameter("updatedAt", Timestamp.from(Instant.now()));
+        if (patch.getVersion() != null) {
+            update.setParameter("version", patch.getVersion());
+        }
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if ((mask & (1 << i)) != 0) {
+                update.setParameter(FIELDS.get(i).name, FIELDS.get(i).getter.apply(patch));
+            }
+        }
+        if (update.executeUpdate() == 0) {
+            return 0;
+        }
+        // The row stays locked until the commit, so the version read back is the one this update wrote.
+        patch.setVersion(patch.getVersion() != null ? patch.getVersion() + 1 : entityManager
+                .createQuery("select d.version from Device d where d.id = :id", Long.class)
+                .setParameter("id", patch.getId())
+                .getSingleResult());
+        return 1;
+    }
+
+    @Override
+    @Transactional
+    public List<Long> deleteWhereIdInReturningIds(Collection<Long> ids) {
+        return deleteSelected(entityManager.createQuery("select d.id from Device d where d.id in :ids", Long.class)
+                .setParameter("ids", ids));
+    }
+
+    @Override
+    @Transactional
+    public List<Long> deleteWhereBrandAndIdInReturningIds(String brand, Collection<Long> ids) {
+        return deleteSelected(entityManager.createQuery(
+                        "select d.id from Device d where d.id in :ids and d.brand = :brand", Long.class)
+                .setParameter("ids", ids)
+                .setParameter("brand", brand));
+    }
+
+    /**
+     * Locks the rows the query selects and deletes them. Like the @Modifying deletes the persistence context is
+     * cleared, it may hold some of the deleted Devices.
+     *
+     * This is two statements and not one DELETE on purpose: the caller publishes a DELETED event per id, so it needs
+     * the ids that were actually deleted and the executeUpdate count can not tell which ones they were. JPQL has no
+     * DELETE ... RETURNING, so the rows are locked while they are read, which keeps a concurrent delete of the same ids
+     * from reporting them as well, and the DELETE only touches the rows already locked.
+     */
+    private List<Long> deleteSelected(TypedQuery<Long> select) {
+        List<Long> found = select.setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList();
+        if (!found.isEmpty()) {
+            entityManager.createQuery("delete from Device d where d.id in :ids")
+                    .setParameter("ids", found)
+                    .executeUpdate();
+            entityManager.clear();
+        }
+        return found;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<DeviceView> findAllViews(Set<DeviceView.Field> fields) {
+        return toViews(entityManager.createQuery(select(fields) + " order by d.id", Tuple.class).getResultList(), fields);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable) {
+        List<DeviceView> content = toViews(entityManager.createQuery(select(fields) + " order by d.id", Tuple.class)
+                .setFirstResult((int) pageable.getOffset())
+                .setMaxResults(pageable.getPageSize())
+                .getResultList(), fields);
+        return PageableExecutionUtils.getPage(content, pageable,
+                () -> entityManager.createQuery("select count(d) from Device d", Long.class).getSingleResult());
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Slice<DeviceView> findViewsByIdGreaterThan(long id, int size, Set<DeviceView.Field> fields) {
+        List<DeviceView> views = toViews(entityManager.createQuery(select(fields) + " where d.id > :id order by d.id", Tuple.class)
+                .setParameter("id", id)
+                .setMaxResults(size + 1)
+                .getResultList(), fields);
+        boolean hasNext = views.size() > size;
+        return new SliceImpl<>(hasNext ? views.subList(0, size) : views, PageRequest.of(0, size), hasNext);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<DeviceView> findViewsByIdIn(Collection<Long> ids, Set<DeviceView.Field> fields) {
+        return toViews(entityManager.createQuery(select(fields) + " where d.id in :ids order by d.id", Tuple.class)
+                .setParameter("ids", ids)
+                .getResultList(), fields);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields) {
+        return toViews(entityManager.createQuery(select(fields)
+                        + " where upper(d.brand) like upper(:term) escape '\\' order by d.id", Tuple.class)
+                .setParameter("term", "%" + EscapeCharacter.DEFAULT.escape(term) + "%")
+                .getResultList(), fields);
+    }
+
+    private static String select(Set<DeviceView.Field> fields) {
+        if (!fields.contains(DeviceView.Field.ID)) {
+            throw new IllegalArgumentException("The fields of a DeviceView must contain the id");
+        }
+        int mask = 0;
+        for (DeviceView.Field field : fields) {
+            mask |= 1 << field.ordinal();
+        }
+        return SELECTS[mask];
+    }
+
+    private static List<DeviceView> toViews(List<Tuple> tuples, Set<DeviceView.Field> fields) {
+        List<DeviceView> views = new ArrayList<>(tuples.size());
+        for (Tuple tuple : tuples) {
+            DeviceView view = new DeviceView();
+            for (DeviceView.Field field : fields) {
+                field.set(view, tuple.get(field.property()));
+            }
+            views.add(view);
+        }
+        return views;
+    }
+
+    private static final class PatchableField {
+        private final String name;
+        private final Function<Device, Object> getter;
+
+        private PatchableField(String name, Function<Device, Object> getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.phone.device.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Adds the per request SQL statement count to the metrics Spring Boot Actuator already collects: latency of every
+ * endpoint (http.server.requests), Hibernate statistics (hibernate.*) and the connection pool (hikaricp.*). They are
+ * all scraped from /actuator/prometheus, see management in application.yaml.
+ */
+@Configuration
+public class MetricsConfiguration implements WebMvcConfigurer {
+
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public MetricsConfiguration(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new JdbcStatementMetricsInterceptor(meterRegistry)).addPathPatterns("/api/**");
+    }
+}
@@ -0,0 +1,49 @@
+package com.phone.device.replica;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * Routes the datasource of the JPA store through the ReplicaRouter when device.replicas.enabled is set. The primary
+ * keeps the pool configured by spring.datasource, the replicas get theirs from device.replicas.
+ */
+@Configuration
+@ConditionalOnProperty(name = "device.replicas.enabled", havingValue = "true")
+public class ReplicaConfiguration {
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "device.store.type", havingValue = "jpa", matchIfMissing = true)
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        primary.setPoolName("primary");
+        return primary;
+    }
+
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "device.store.type", havingValue = "jpa", matchIfMissing = true)
+    public DataSource dataSource(HikariDataSource primaryDataSource, ReplicaRouter router) {
+        router.monitor(primaryDataSource);
+        return new LazyConnectionDataSourceProxy(new ReplicaRoutingDataSource(primaryDataSource, router));
+    }
+
+    /**
+     * Spring holds the connection of a Hibernate session until the session closes, which with open-in-view is the end
+     * of the request. Releasing it after every transaction lets each transaction of a request be routed on its own.
+     */
+    @Bean
+    public HibernatePropertiesCustomizer releaseConnectionAfterTransaction() {
+        return properties -> properties.put(AvailableSettings.CONNECTION_HANDLING,
+                PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION);
+    }
+}
@@ -0,0 +1,42 @@
+package com.phone.device.replica;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Lets the read-only transactions of GET and HEAD requests read from a replica, see ReplicaRouter. Every other
+ * request reads and writes the primary.
+ */
+@Component
+public class ReplicaReadFilter extends OncePerRequestFilter {
+
+    private final ReplicaRouter router;
+
+    @Autowired
+    public ReplicaReadFilter(ReplicaRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !router.isEnabled() || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        ReplicaRouter.Route previous = router.enter(ReplicaRouter.Route.REPLICA_IF_QUIET);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            router.restore(previous);
+        }
+    }
+}
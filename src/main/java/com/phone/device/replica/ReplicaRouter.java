@@ -0,0 +1,401 @@
+package com.phone.device.replica;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.phone.device.event.DeviceEvent;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Decides which database a read-only transaction of the JPA store reads from, the primary or one of the replicas of
+ * device.replicas.urls. Writes, and every transaction that is not read-only, always use the primary.
+ *
+ * Only the requests marked by ReplicaReadFilter (GET and HEAD) read from replicas, startup and background work such as
+ * the brand count reconciliation keep reading the primary. A replica is used while it is healthy and less than
+ * device.replicas.max-staleness behind the primary. Both are checked every device.replicas.check-interval: the check
+ * writes the current time into device_replica_heartbeat on the primary and reads the row back from every replica,
+ * the age of the replicated time is the lag of the replica. A replica that fails the check or refuses a connection is
+ * left out until a check succeeds again, with no replica left reads fall back to the primary.
+ *
+ * A replica may not have the writes of the last max-staleness yet, so reads that must see them stay on the primary:
+ * a Device written less than max-staleness ago is read from the primary by id, and listings and searches read from
+ * the primary until no Device has been written for max-staleness. A client therefore reads its own writes, and the
+ * ETags of DeviceCollectionVersion and the caches never get a body older than the write they stand for. Writes are
+ * seen through the DeviceEvents of this instance, the listener runs first, before the caches are invalidated. At most
+ * device.replicas.recent-writes-size written ids are remembered, when more Devices are written within max-staleness
+ * reads by id also stay on the primary until max-staleness after the last id that had to be forgotten.
+ *
+ * Can be turned on with device.replicas.enabled, ReplicaConfiguration then routes the datasource through this class.
+ */
+@Component
+public class ReplicaRouter implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    private static final String HEARTBEAT_TABLE = "device_replica_heartbeat";
+
+    /**
+     * Where the read-only transactions of the current thread may read from.
+     */
+    public enum Route {
+        /**
+         * The primary, the default outside of the requests marked by ReplicaReadFilter.
+         */
+        PRIMARY,
+        /**
+         * A replica when no Device has been written for max-staleness, the primary otherwise.
+         */
+        REPLICA_IF_QUIET,
+        /**
+         * A replica, for a read that has been checked against the recent writes already.
+         */
+        REPLICA
+    }
+
+    public enum Balance {ROUND_ROBIN, LEAST_LOADED}
+
+    private final boolean enabled;
+    private final Balance balance;
+    private final long maxStalenessMillis;
+    private final Duration checkInterval;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final ThreadLocal<Route> route = new ThreadLocal<>();
+    private final Cache<Long, Boolean> recentWrites;
+    private volatile long lastWriteNanos;
+    private volatile long lastForgottenWriteNanos;
+
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    private DataSource primary;
+    private ScheduledExecutorService checker;
+
+    @Autowired
+    public ReplicaRouter(@Value("${device.replicas.enabled:false}") boolean enabled,
+                         @Value("${device.replicas.urls:}") String[] urls,
+                         @Value("${device.replicas.username:sa}") String username,
+                         @Value("${device.replicas.password:}") String password,
+                         @Value("${device.replicas.pool-size:10}") int poolSize,
+                         @Value("${device.replicas.connection-timeout:1s}") Duration connectionTimeout,
+                         @Value("${device.replicas.balance:round-robin}") String balance,
+                         @Value("${device.replicas.max-staleness:1s}") Duration maxStaleness,
+                         @Value("${device.replicas.check-interval:500ms}") Duration checkInterval,
+                         @Value("${device.replicas.recent-writes-size:100000}") long recentWritesSize) {
+        this.enabled = enabled;
+        this.balance = Balance.valueOf(balance.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+        this.maxStalenessMillis = maxStaleness.toMillis();
+        this.checkInterval = checkInterval;
+        // Evicts in the writing thread, so an id is known to be forgotten before the write is published any further.
+        this.recentWrites = Caffeine.newBuilder()
+                .expireAfterWrite(maxStaleness)
+                .maximumSize(recentWritesSize)
+                .executor(Runnable::run)
+                .<Long, Boolean>removalListener((id, written, cause) -> {
+                    if (cause == RemovalCause.SIZE) {
+                        lastForgottenWriteNanos = System.nanoTime();
+                    }
+                })
+                .build();
+        this.lastWriteNanos = System.nanoTime() - maxStaleness.toNanos();
+        this.lastForgottenWriteNanos = lastWriteNanos;
+        if (enabled) {
+            Arrays.stream(urls).map(String::trim).filter(url -> !url.isEmpty()).forEach(url -> {
+                HikariConfig config = new HikariConfig();
+                config.setPoolName("replica-" + replicas.size());
+                config.setJdbcUrl(url);
+                config.setUsername(username);
+                config.setPassword(password);
+                config.setMaximumPoolSize(poolSize);
+                config.setConnectionTimeout(connectionTimeout.toMillis());
+                // A replica that is down at startup is only left out, the application starts on the primary.
+                config.setInitializationFailTimeout(-1);
+                replicas.add(new Replica(config.getPoolName(), new HikariDataSource(config)));
+            });
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts the health and staleness checks, runs the first one before returning.
+     * @param primary The primary datasource, where the heartbeat is written
+     */
+    public synchronized void monitor(DataSource primary) {
+        if (!enabled || checker != null) {
+            return;
+        }
+        this.primary = primary;
+        try (Connection connection = primary.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists " + HEARTBEAT_TABLE + " (id int primary key, beat bigint not null)");
+        } catch (SQLException e) {
+            throw new IllegalStateException("The replica heartbeat table could not be created", e);
+        }
+        check();
+        checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "device-replica-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::check, checkInterval.toMillis(), checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the heartbeat on the primary and measures the health and lag of every replica. Runs every
+     * device.replicas.check-interval, can be called to check now.
+     */
+    public void check() {
+        if (primary == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (Connection connection = primary.getConnection()) {
+            try (PreparedStatement update = connection.prepareStatement("update " + HEARTBEAT_TABLE + " set beat = ? where id = 1")) {
+                update.setLong(1, now);
+                if (update.executeUpdate() == 0) {
+                    try (PreparedStatement insert = connection.prepareStatement("insert into " + HEARTBEAT_TABLE + " (id, beat) values (1, ?)")) {
+                        insert.setLong(1, now);
+                        insert.executeUpdate();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Replica heartbeat could not be written to the primary", e);
+        }
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.setQueryTimeout((int) Math.max(1, checkInterval.getSeconds()));
+                try (ResultSet beat = statement.executeQuery("select beat from " + HEARTBEAT_TABLE + " where id = 1")) {
+                    replica.lagMillis = beat.next() ? Math.max(0, now - beat.getLong(1)) : Long.MAX_VALUE;
+                }
+                if (!replica.healthy) {
+                    log.info("Replica {} is healthy again, lag {} ms", replica.name, replica.lagMillis);
+                }
+                replica.healthy = true;
+            } catch (SQLException e) {
+                failed(replica, e);
+            }
+        }
+    }
+
+    /**
+     * Sets the route of the read-only transactions of the current thread.
+     * @return The previous route, to be given back to restore
+     */
+    public Route enter(Route next) {
+        Route previous = route.get();
+        route.set(next);
+        return previous;
+    }
+
+    public void restore(Route previous) {
+        if (previous == null) {
+            route.remove();
+        } else {
+            route.set(previous);
+        }
+    }
+
+    /**
+     * Reads a Device by id from a replica, or from the primary when it has been written less than max-staleness ago.
+     * @param id Device id
+     * @param read The read, run in the calling thread
+     */
+    public <T> T findById(long id, Supplier<T> read) {
+        Route current = route.get();
+        if (!enabled || current == null || current == Route.PRIMARY) {
+            return read.get();
+        }
+        boolean recent = recentWrites.getIfPresent(id) != null
+                || System.nanoTime() - lastForgottenWriteNanos < TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+        route.set(recent ? Route.PRIMARY : Route.REPLICA);
+        try {
+            return read.get();
+        } finally {
+            route.set(current);
+        }
+    }
+
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onDeviceEvent(DeviceEvent event) {
+        if (enabled) {
+            lastWriteNanos = System.nanoTime();
+            recentWrites.put(event.getId(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * The replica the connection of the current transaction is taken from.
+     * @return The replica, null for the primary
+     */
+    Replica choose() {
+        Route current = route.get();
+        if (!enabled || current == null || current == Route.PRIMARY
+                || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return null;
+        }
+        if (current == Route.REPLICA_IF_QUIET
+                && System.nanoTime() - lastWriteNanos < TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis)) {
+            primaryReads.increment();
+            return null;
+        }
+        Replica chosen = null;
+        if (balance == Balance.LEAST_LOADED) {
+            for (Replica replica : replicas) {
+                if (usable(replica) && (chosen == null || replica.activeConnections() < chosen.activeConnections())) {
+                    chosen = replica;
+                }
+            }
+        } else {
+            int start = nextReplica.getAndIncrement();
+            for (int i = 0; i < replicas.size() && chosen == null; i++) {
+                Replica replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+                if (usable(replica)) {
+                    chosen = replica;
+                }
+            }
+        }
+        if (chosen == null) {
+            primaryReads.increment();
+        } else {
+            chosen.reads.increment();
+        }
+        return chosen;
+    }
+
+    /**
+     * Leaves a replica out until the next successful check.
+     */
+    void failed(Replica replica, SQLException e) {
+        if (replica.healthy) {
+            log.warn("Replica {} is left out until it passes a check: {}", replica.name, e.getMessage());
+            failovers.increment();
+        }
+        replica.healthy = false;
+    }
+
+    private boolean usable(Replica replica) {
+        return replica.healthy && replica.lagMillis <= maxStalenessMillis;
+    }
+
+    /**
+     * Health, lag and reads of every replica and the read-only transactions that went to the primary.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("balance", balance.name().toLowerCase(Locale.ENGLISH).replace('_', '-'));
+        stats.put("maxStalenessMillis", maxStalenessMillis);
+        stats.put("recentWrites", recentWrites.estimatedSize());
+        stats.put("primaryReads", primaryReads.sum());
+        stats.put("failovers", failovers.sum());
+        List<Map<String, Object>> states = new ArrayList<>();
+        for (Replica replica : replicas) {
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("name", replica.name);
+            state.put("healthy", replica.healthy);
+            state.put("usable", usable(replica));
+            state.put("lagMillis", replica.lagMillis == Long.MAX_VALUE ? null : replica.lagMillis);
+            state.put("reads", replica.reads.sum());
+            states.add(state);
+        }
+        stats.put("replicas", states);
+        return stats;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("device.replica.reads", primaryReads, LongAdder::sum)
+                .description("Read-only transactions by the database they read from")
+                .tag("target", "primary")
+                .register(registry);
+        for (Replica replica : replicas) {
+            FunctionCounter.builder("device.replica.reads", replica.reads, LongAdder::sum)
+                    .description("Read-only transactions by the database they read from")
+                    .tag("target", replica.name)
+                    .register(registry);
+            Gauge.builder("device.replica.lag", replica, r -> r.lagMillis == Long.MAX_VALUE ? Double.NaN : r.lagMillis / 1000.0)
+                    .description("Time the replica is behind the primary, measured by the last check")
+                    .baseUnit("seconds")
+                    .tag("replica", replica.name)
+                    .register(registry);
+            Gauge.builder("device.replica.usable", replica, r -> usable(r) ? 1 : 0)
+                    .description("1 while the replica is healthy and within device.replicas.max-staleness")
+                    .tag("replica", replica.name)
+                    .register(registry);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        replicas.forEach(replica -> replica.dataSource.close());
+    }
+
+    static final class Replica {
+        private final String name;
+        private final HikariDataSource dataSource;
+        private final LongAdder reads = new LongAdder();
+        /**
+         * Unknown, so not usable, until the first check.
+         */
+        private volatile boolean healthy;
+        private volatile long lagMillis = Long.MAX_VALUE;
+
+        private Replica(String name, HikariDataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        Connection getConnection() throws SQLException {
+            return dataSource.getConnection();
+        }
+
+        private int activeConnections() {
+            return dataSource.getHikariPoolMXBean() == null ? 0 : dataSource.getHikariPoolMXBean().getActiveConnections();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.phone.device.replica;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Takes the connection of a transaction from the replica chosen by the ReplicaRouter, or from the primary. A replica
+ * that refuses the connection is left out by the router and the transaction runs on the primary instead.
+ *
+ * The router looks at the read-only flag of the transaction, which is only known once the transaction has begun, so
+ * this datasource is used behind a LazyConnectionDataSourceProxy that takes the connection at the first statement.
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+
+    private final DataSource primary;
+    private final ReplicaRouter router;
+
+    public ReplicaRoutingDataSource(DataSource primary, ReplicaRouter router) {
+        this.primary = primary;
+        this.router = router;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        ReplicaRouter.Replica replica = router.choose();
+        if (replica != null) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                router.failed(replica, e);
+            }
+        }
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+}
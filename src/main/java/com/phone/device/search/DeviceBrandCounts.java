@@ -0,0 +1,270 @@
+package com.phone.device.search;
+
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Number of Devices per brand, kept in memory for GET /api/device/brands so that a dashboard does not have to count
+ * the whole listing.
+ *
+ * The counts are built from the DeviceStore when the application starts, before the web server accepts requests, and
+ * then moved by every DeviceEvent. An update or a delete does not carry the previous brand of the Device, so the brand
+ * of every Device is kept as well. Brands are few, so answering is a copy and a sort of a small map.
+ *
+ * Every device.brands.reconcile-interval the counts are compared with DeviceStore.countByBrand (a GROUP BY for the
+ * database) and replaced by it when they differ, which repairs the drift of writes that did not go through the
+ * application. A reconciliation is skipped when a DeviceEvent arrived while the GROUP BY was running, as the two can
+ * not be compared then; the next one catches up. The brands kept per Device are not reconciled, a Device changed
+ * outside the application is counted under its stored brand only until its next update or delete.
+ */
+@Component
+public class DeviceBrandCounts implements SmartInitializingSingleton, MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(DeviceBrandCounts.class);
+
+    private static final Comparator<Map.Entry<String, Long>> BY_COUNT_THEN_BRAND =
+            Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+
+    private final DeviceStore deviceStore;
+    private final boolean enabled;
+    private final Duration reconcileInterval;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, String> brandOf = new HashMap<>();
+    private final Map<String, Long> counts = new HashMap<>();
+    /**
+     * Number of DeviceEvents applied, compared before and after a reconciliation query.
+     */
+    private long applied;
+    private volatile boolean ready;
+
+    private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "device-brands-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long reconciliations;
+    private volatile long corrections;
+    private volatile Counter correctionCounter;
+
+    @Autowired
+    public DeviceBrandCounts(DeviceStore deviceStore,
+                             @Value("${device.brands.enabled:true}") boolean enabled,
+                             @Value("${device.brands.reconcile-interval:5m}") Duration reconcileInterval) {
+        this.deviceStore = deviceStore;
+        this.enabled = enabled;
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!enabled) {
+            return;
+        }
+        long started = System.nanoTime();
+        deviceStore.forEach(device -> {
+            lock.writeLock().lock();
+            try {
+                put(device.getId(), device.getBrand());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        ready = true;
+        log.info("Device brand counts built in {} ms: {}", (System.nanoTime() - started) / 1_000_000, stats());
+        if (!reconcileInterval.isZero()) {
+            long millis = reconcileInterval.toMillis();
+            reconciler.scheduleWithFixedDelay(() -> {
+                try {
+                    reconcile();
+                } catch (RuntimeException e) {
+                    log.error("Device brand count reconciliation failed", e);
+                }
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @EventListener
+    public void onDeviceEvent(DeviceEvent event) {
+        if (!enabled) {
+            return;
+        }
+        Device device = event.getDevice();
+        lock.writeLock().lock();
+        try {
+            applied++;
+            if (event.getType() == DeviceEvent.Type.DELETED) {
+                remove(event.getId());
+            } else if (device.getBrand() != null) {
+                put(event.getId(), device.getBrand());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Brands and their number of Devices, most Devices first and brands with the same count in alphabetical order.
+     * @param prefix Only brands starting with it, ignoring case, null for all
+     * @param limit At most this many brands, null for all
+     * @return Brand to count, or empty when the counts are not available and the caller has to ask the DeviceStore
+     */
+    public Optional<Map<String, Long>> top(String prefix, Integer limit) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        Map<String, Long> copy;
+        lock.readLock().lock();
+        try {
+            copy = new HashMap<>(counts);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Optional.of(top(copy, prefix, limit));
+    }
+
+    /**
+     * Same ordering and filtering as top, over counts coming from elsewhere.
+     */
+    public static Map<String, Long> top(Map<String, Long> counts, String prefix, Integer limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (prefix == null || entry.getKey().regionMatches(true, 0, prefix, 0, prefix.length())) {
+                entries.add(entry);
+            }
+        }
+        entries.sort(BY_COUNT_THEN_BRAND);
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            if (limit != null && result.size() >= limit) {
+                break;
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Compares the counts with DeviceStore.countByBrand and replaces them when they differ.
+     * @return boolean false when the comparison was skipped because of a concurrent write
+     */
+    public boolean reconcile() {
+        long before;
+        lock.readLock().lock();
+        try {
+            before = applied;
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, Long> actual = deviceStore.countByBrand();
+        lock.writeLock().lock();
+        try {
+            if (applied != before) {
+                return false;
+            }
+            reconciliations++;
+            if (!counts.equals(actual)) {
+                corrections++;
+                if (correctionCounter != null) {
+                    correctionCounter.increment();
+                }
+                log.warn("Device brand counts drifted from the store, {} brands counted, {} stored",
+                        counts.size(), actual.size());
+                counts.clear();
+                counts.putAll(actual);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of brands and Devices counted and the outcome of the reconciliations.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        lock.readLock().lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("enabled", enabled);
+            stats.put("ready", ready);
+            stats.put("brands", counts.size());
+            stats.put("devices", brandOf.size());
+            stats.put("reconciliations", reconciliations);
+            stats.put("corrections", corrections);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("device.brands", this, DeviceBrandCounts::brandCount)
+                .description("Distinct brands counted in memory")
+                .register(registry);
+        correctionCounter = Counter.builder("device.brands.corrections")
+                .description("Reconciliations that found the brand counts different from the store")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        reconciler.shutdownNow();
+    }
+
+    private int brandCount() {
+        lock.readLock().lock();
+        try {
+            return counts.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void put(long id, String brand) {
+        String previous = brandOf.put(id, brand);
+        if (previous != null) {
+            decrement(previous);
+        }
+        counts.merge(brand, 1L, Long::sum);
+    }
+
+    private void remove(long id) {
+        String brand = brandOf.remove(id);
+        if (brand != null) {
+            decrement(brand);
+        }
+    }
+
+    private void decrement(String brand) {
+        counts.computeIfPresent(brand, (key, count) -> count > 1 ? count - 1 : null);
+    }
+}
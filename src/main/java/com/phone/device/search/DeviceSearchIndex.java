@@ -0,0 +1,271 @@
+package com.phone.device.search;
+
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory trigram index over the Device brand, used to answer the brand substring search without a table scan.
+ *
+ * The brand of every Device is kept upper cased (the same way the database compares for ContainingIgnoreCase) and
+ * every three character window of it points to a posting list of Device ids. A search term of three or more
+ * characters is answered by intersecting the posting lists of its trigrams, shortest first, and checking the few
+ * remaining candidates against the stored brand, because sharing all trigrams does not guarantee a substring match.
+ * Shorter terms have no trigram and are answered by scanning the stored brands, still without touching the database.
+ *
+ * The index is built when the application starts, before the web server accepts requests, and is kept current through
+ * DeviceEvents. Until it is built, or when it is disabled with device.search.index.enabled, callers fall back to the
+ * DeviceStore query.
+ */
+@Component
+public class DeviceSearchIndex implements SmartInitializingSingleton {
+
+    private static final Logger log = LoggerFactory.getLogger(DeviceSearchIndex.class);
+
+    private static final int GRAM = 3;
+
+    /**
+     * HashMap node, boxed Long key and table slot.
+     */
+    private static final long HASH_ENTRY_BYTES = 32L + 16L + 8L;
+
+    private final DeviceStore deviceStore;
+    private final boolean enabled;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, String> brands = new HashMap<>();
+    private final Map<Long, PostingList> postings = new HashMap<>();
+    /**
+     * Ids deleted while a rebuild is running, so the rebuild does not add back a row it read before the delete.
+     */
+    private final Set<Long> deletedDuringRebuild = new HashSet<>();
+    private boolean rebuilding;
+    private volatile boolean ready;
+
+    @Autowired
+    public DeviceSearchIndex(DeviceStore deviceStore,
+                             @Value("${device.search.index.enabled:true}") boolean enabled) {
+        this.deviceStore = deviceStore;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (enabled) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the DeviceStore. Searches fall back to the repository while the rebuild is running and
+     * writes happening meanwhile are applied to the index as usual, the rebuild never overwrites them.
+     */
+    public void rebuild() {
+        long started = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            rebuilding = true;
+            brands.clear();
+            postings.clear();
+            deletedDuringRebuild.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            deviceStore.forEach(device -> {
+                lock.writeLock().lock();
+                try {
+                    if (!brands.containsKey(device.getId()) && !deletedDuringRebuild.contains(device.getId())) {
+                        add(device.getId(), device.getBrand());
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+        } finally {
+            lock.writeLock().lock();
+            try {
+                rebuilding = false;
+                deletedDuringRebuild.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        ready = true;
+        log.info("Device search index built in {} ms: {}", (System.nanoTime() - started) / 1_000_000, stats());
+    }
+
+    @EventListener
+    public void onDeviceEvent(DeviceEvent event) {
+        if (!enabled) {
+            return;
+        }
+        if (event.getType() == DeviceEvent.Type.UPDATED && event.getDevice().getBrand() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            remove(event.getId());
+            if (event.getType() == DeviceEvent.Type.DELETED) {
+                if (rebuilding) {
+                    deletedDuringRebuild.add(event.getId());
+                }
+            } else {
+                add(event.getId(), event.getDevice().getBrand());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the ids of the Devices whose brand contains the given term, ignoring case.
+     * @param term Search term
+     * @return The matching ids in ascending order, or empty when the index can not answer and the caller has to query
+     * the DeviceStore
+     */
+    public Optional<long[]> findIdsByBrandContaining(String term) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        String needle = normalize(term);
+        lock.readLock().lock();
+        try {
+            if (needle.length() < GRAM) {
+                return Optional.of(scan(needle));
+            }
+            return Optional.of(intersect(needle));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Size and estimated heap footprint of the index. The estimate counts object headers, references and backing
+     * arrays of the stored brands and posting lists, it is meant for capacity planning rather than exact accounting.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        lock.readLock().lock();
+        try {
+            long postingEntries = 0;
+            long bytes = 0;
+            for (PostingList list : postings.values()) {
+                postingEntries += list.size();
+                bytes += list.estimatedBytes() + HASH_ENTRY_BYTES;
+            }
+            for (String brand : brands.values()) {
+                bytes += HASH_ENTRY_BYTES + 40L + brand.length();
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("enabled", enabled);
+            stats.put("ready", ready);
+            stats.put("devices", brands.size());
+            stats.put("trigrams", postings.size());
+            stats.put("postings", postingEntries);
+            stats.put("estimatedBytes", bytes);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(long id, String brand) {
+        String normalized = normalize(brand);
+        brands.put(id, normalized);
+        for (long gram : grams(normalized)) {
+            postings.computeIfAbsent(gram, key -> new PostingList()).add(id);
+        }
+    }
+
+    private void remove(long id) {
+        String normalized = brands.remove(id);
+        if (normalized == null) {
+            return;
+        }
+        for (long gram : grams(normalized)) {
+            PostingList list = postings.get(gram);
+            if (list != null) {
+                list.remove(id);
+                if (list.size() == 0) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    private long[] scan(String needle) {
+        return brands.entrySet().stream()
+                .filter(entry -> entry.getValue().contains(needle))
+                .mapToLong(Map.Entry::getKey)
+                .sorted()
+                .toArray();
+    }
+
+    private long[] intersect(String needle) {
+        List<PostingList> lists = new ArrayList<>();
+        for (long gram : grams(needle)) {
+            PostingList list = postings.get(gram);
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(PostingList::size));
+        PostingList shortest = lists.get(0);
+        long[] matches = new long[shortest.size()];
+        int found = 0;
+        candidates:
+        for (int i = 0; i < shortest.size(); i++) {
+            long id = shortest.get(i);
+            for (int j = 1; j < lists.size(); j++) {
+                if (!lists.get(j).contains(id)) {
+                    continue candidates;
+                }
+            }
+            if (brands.get(id).contains(needle)) {
+                matches[found++] = id;
+            }
+        }
+        return Arrays.copyOf(matches, found);
+    }
+
+    /**
+     * Distinct trigrams of the given text, each packed into a long (16 bits per char).
+     */
+    private static Set<Long> grams(String text) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        return grams;
+    }
+
+    /**
+     * Upper cases the same way H2 does for UPPER(), which is what ContainingIgnoreCase compares on.
+     */
+    private static String normalize(String text) {
+        return text.toUpperCase(Locale.ENGLISH);
+    }
+}
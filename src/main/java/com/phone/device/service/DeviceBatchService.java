@@ -0,0 +1,118 @@
+package com.phone.device.service;
+
+import com.phone.device.dto.BatchItemResult;
+import com.phone.device.entity.Device;
+import com.phone.device.entity.OnCreate;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Creates Devices in bulk.
+ *
+ * Every element is validated on its own against the OnCreate group, so one bad row does not reject the whole request.
+ * The valid rows are written in chunks, one DeviceStore.createAll (one transaction with the JPA store) per chunk.
+ * Within a chunk Hibernate groups the inserts into JDBC batches (hibernate.jdbc.batch_size) and takes the ids from the
+ * pooled sequence optimizer configured on Device, so a chunk costs a handful of statements instead of two round trips
+ * per row.
+ */
+@Service
+public class DeviceBatchService {
+
+    private final DeviceStore deviceStore;
+    private final Validator validator;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int chunkSize;
+
+    @Autowired
+    public DeviceBatchService(DeviceStore deviceStore,
+                              Validator validator,
+                              ApplicationEventPublisher eventPublisher,
+                              @Value("${device.batch.chunk-size:500}") int chunkSize) {
+        this.deviceStore = deviceStore;
+        this.validator = validator;
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Validates and stores the given Devices.
+     * @param devices The Devices to be created
+     * @return One result per element, in request order
+     */
+    public List<BatchItemResult> createAll(List<Device> devices) {
+        List<BatchItemResult> results = new ArrayList<>(devices.size());
+        List<Device> chunk = new ArrayList<>(chunkSize);
+        List<BatchItemResult> pending = new ArrayList<>(chunkSize);
+
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            BatchItemResult result = new BatchItemResult(i);
+            results.add(result);
+
+            List<String> errors = validate(device);
+            if (!errors.isEmpty()) {
+                result.setStatus(HttpStatus.BAD_REQUEST.value());
+                result.setErrors(errors);
+                continue;
+            }
+            device.setId(null);
+            device.setVersion(null);
+            chunk.add(device);
+            pending.add(result);
+            if (chunk.size() == chunkSize) {
+                writeChunk(chunk, pending);
+                chunk = new ArrayList<>(chunkSize);
+                pending = new ArrayList<>(chunkSize);
+            }
+        }
+        writeChunk(chunk, pending);
+        return results;
+    }
+
+    private List<String> validate(Device device) {
+        if (device == null) {
+            return List.of("device is required.");
+        }
+        Set<ConstraintViolation<Device>> violations = validator.validate(device, OnCreate.class);
+        return violations.stream()
+                .map(ConstraintViolation::getMessage)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Writes one chunk as a unit and records the outcome on the pending results.
+     */
+    private void writeChunk(List<Device> chunk, List<BatchItemResult> pending) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            deviceStore.createAll(chunk);
+        } catch (RuntimeException e) {
+            // DataAccessException from the JPA stores, UncheckedIOException from the file store. Either way createAll
+            // stored none of the chunk.
+            for (BatchItemResult result : pending) {
+                result.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+                result.setErrors(List.of("device could not be stored."));
+            }
+            return;
+        }
+        for (int i = 0; i < chunk.size(); i++) {
+            pending.get(i).setStatus(HttpStatus.CREATED.value());
+            pending.get(i).setId(chunk.get(i).getId());
+            eventPublisher.publishEvent(DeviceEvent.created(chunk.get(i)));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.phone.device.service;
+
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes Devices in bulk with set based statements, device.delete.chunk-size ids per statement and per transaction,
+ * so that a large delete neither builds one huge IN list nor holds its locks until the very end.
+ *
+ * A DELETED event is published for every deleted Device, which keeps the DeviceCache and the DeviceSearchIndex
+ * consistent. The store tells which ids it deleted, so ids of Devices that did not exist publish nothing: no change in
+ * the feed, no new collection ETag.
+ */
+@Service
+public class DeviceDeleteService {
+
+    private final DeviceStore deviceStore;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int chunkSize;
+
+    @Autowired
+    public DeviceDeleteService(DeviceStore deviceStore,
+                               ApplicationEventPublisher eventPublisher,
+                               @Value("${device.delete.chunk-size:500}") int chunkSize) {
+        this.deviceStore = deviceStore;
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param ids Distinct Device ids
+     * @return int Number of Devices deleted
+     */
+    public int deleteAllById(List<Long> ids) {
+        int deleted = 0;
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            List<Long> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+            deleted += publishDeleted(deviceStore.deleteAllById(chunk));
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes every Device of the given brand, a chunk of ids at a time in id order. A chunk only deletes the Devices
+     * that are still of the brand, so a Device renamed to another brand meanwhile is kept.
+     * @param brand Exact brand, case sensitive
+     * @return int Number of Devices deleted
+     */
+    public int deleteByBrand(String brand) {
+        int deleted = 0;
+        long afterId = 0;
+        while (true) {
+            List<Long> chunk = new ArrayList<>(deviceStore.findIdsByBrand(brand, afterId, chunkSize));
+            if (chunk.isEmpty()) {
+                return deleted;
+            }
+            deleted += publishDeleted(deviceStore.deleteAllByBrandAndId(brand, chunk));
+            afterId = chunk.get(chunk.size() - 1);
+        }
+    }
+
+    private int publishDeleted(List<Long> deletedIds) {
+        for (Long id : deletedIds) {
+            eventPublisher.publishEvent(DeviceEvent.deleted(id));
+        }
+        return deletedIds.size();
+    }
+}
@@ -0,0 +1,68 @@
+package com.phone.device.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.phone.device.entity.Device;
+import com.phone.device.store.DeviceStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes all Devices as newline delimited JSON (one Device per line).
+ *
+ * The Devices are visited one at a time through DeviceStore.forEach (a cursor with the JPA store, which detaches every
+ * Device once it has been written), so the memory used does not depend on the number of rows in the table. The output is flushed every
+ * few rows, which makes the servlet container send the response in chunks while the table is still being read.
+ */
+@Service
+public class DeviceExportService {
+
+    private final DeviceStore deviceStore;
+    private final ObjectWriter deviceWriter;
+    private final int flushEvery;
+
+    @Autowired
+    public DeviceExportService(DeviceStore deviceStore,
+                               ObjectMapper objectMapper,
+                               @Value("${device.export.flush-every:500}") int flushEvery) {
+        this.deviceStore = deviceStore;
+        this.deviceWriter = objectMapper.writerFor(Device.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.flushEvery = flushEvery;
+    }
+
+    /**
+     * Streams every Device to the given output. The output is flushed but not closed.
+     * @param out The output to write to
+     * @throws IOException If the output can not be written, for example when the client disconnects
+     */
+    public void writeNdjson(OutputStream out) throws IOException {
+        JsonGenerator generator = deviceWriter.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(null);
+        try {
+            AtomicLong written = new AtomicLong();
+            deviceStore.forEach(device -> {
+                try {
+                    deviceWriter.writeValue(generator, device);
+                    generator.writeRaw('\n');
+                    if (written.incrementAndGet() % flushEvery == 0) {
+                        generator.flush();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.flush();
+    }
+}
@@ -0,0 +1,480 @@
+package com.phone.device.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.phone.device.dto.ImportJob;
+import com.phone.device.entity.Device;
+import com.phone.device.entity.OnCreate;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Imports Devices from a CSV or NDJSON upload.
+ *
+ * The body is read one line at a time while it is being received, each row is validated against the OnCreate group
+ * and the valid rows are written in chunks of device.import.chunk-size through DeviceStore.createAll, one bounded
+ * transaction of JDBC batches with the JPA store. Only the current chunk, the first device.import.max-rejections
+ * rejected rows and at most device.import.max-line-length characters of a line are held in memory, whatever the size
+ * of the file. Longer rows are rejected.
+ *
+ * CSV files need a header row naming the name and brand columns, other columns are ignored. Fields may be quoted
+ * with double quotes, a quote inside a quoted field is doubled. NDJSON files hold one Device object per line.
+ * Blank lines are skipped in both.
+ */
+@Service
+public class DeviceImportService {
+
+    public static final MediaType TEXT_CSV = new MediaType("text", "csv");
+
+    private static final int READ_BUFFER_CHARS = 64 * 1024;
+
+    private final DeviceStore deviceStore;
+    private final Validator validator;
+    private final ObjectReader deviceReader;
+    private final ObjectWriter jobWriter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int chunkSize;
+    private final int maxRejections;
+    private final int maxLineChars;
+    private final long progressIntervalNanos;
+    private final Map<String, ImportJob> jobs;
+
+    @Autowired
+    public DeviceImportService(DeviceStore deviceStore,
+                               Validator validator,
+                               ObjectMapper objectMapper,
+                               ApplicationEventPublisher eventPublisher,
+                               @Value("${device.import.chunk-size:1000}") int chunkSize,
+                               @Value("${device.import.max-rejections:100}") int maxRejections,
+                               @Value("${device.import.max-jobs:50}") int maxJobs,
+                               @Value("${device.import.max-line-length:8192}") int maxLineChars,
+                               @Value("${device.import.progress-interval:1s}") Duration progressInterval) {
+        this.deviceStore = deviceStore;
+        this.validator = validator;
+        this.deviceReader = objectMapper.readerFor(Device.class);
+        this.jobWriter = objectMapper.writerFor(ImportJob.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+        this.maxRejections = maxRejections;
+        this.maxLineChars = maxLineChars;
+        this.progressIntervalNanos = progressInterval.toNanos();
+        this.jobs = Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImportJob> eldest) {
+                return size() > maxJobs;
+            }
+        });
+    }
+
+    /**
+     * Starts an import: registers its job and, for CSV, reads the header, so that an upload without one is refused
+     * before it is accepted. The rows are read by Upload.run or Upload.streamTo.
+     * @param body The upload, read up to its end but not closed
+     * @param contentType text/csv or application/x-ndjson, with an optional charset (UTF-8 by default)
+     * @return The upload, its job FAILED already when the body could not be read or the CSV header is missing
+     */
+    public Upload open(InputStream body, MediaType contentType) {
+        boolean csv = TEXT_CSV.isCompatibleWith(contentType);
+        ImportJob job = new ImportJob(csv ? "csv" : "ndjson", maxRejections);
+        jobs.put(job.getId(), job);
+        Charset charset = contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+        Upload upload = new Upload(job, new LineReader(new InputStreamReader(body, charset), maxLineChars), csv);
+        if (csv) {
+            try {
+                upload.readHeader();
+            } catch (IOException e) {
+                job.finish(ImportJob.Status.FAILED, "The upload could not be read.");
+            } catch (IllegalArgumentException e) {
+                job.finish(ImportJob.Status.FAILED, e.getMessage());
+            }
+        }
+        return upload;
+    }
+
+    /**
+     * Imports every row of the body in the calling thread. The job can be followed with find while this method runs.
+     * @param body The upload, read up to its end but not closed
+     * @param contentType text/csv or application/x-ndjson, with an optional charset (UTF-8 by default)
+     * @return The finished job, FAILED when the body could not be read or the CSV header is missing
+     */
+    public ImportJob importDevices(InputStream body, MediaType contentType) {
+        Upload upload = open(body, contentType);
+        upload.run();
+        return upload.getJob();
+    }
+
+    public Optional<ImportJob> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * @return The last device.import.max-jobs jobs, oldest first
+     */
+    public List<ImportJob> jobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * An import returned by open, its rows not read yet. Rows longer than device.import.max-line-length characters
+     * are rejected without being held in memory.
+     */
+    public final class Upload {
+        private final ImportJob job;
+        private final LineReader reader;
+        private final boolean csv;
+        private int nameColumn = -1;
+        private int brandColumn = -1;
+        private long line;
+        private JsonGenerator progress;
+        private long lastProgressNanos;
+
+        private Upload(ImportJob job, LineReader reader, boolean csv) {
+            this.job = job;
+            this.reader = reader;
+            this.csv = csv;
+        }
+
+        public ImportJob getJob() {
+            return job;
+        }
+
+        /**
+         * Reads and stores every row, unless the job has failed already. A job is always finished when this returns.
+         */
+        public void run() {
+            if (job.getStatus() != ImportJob.Status.RUNNING) {
+                return;
+            }
+            try {
+                if (csv) {
+                    importCsv();
+                } else {
+                    importNdjson();
+                }
+                job.finish(ImportJob.Status.COMPLETED, null);
+            } catch (IOException e) {
+                job.finish(ImportJob.Status.FAILED, "The upload could not be read.");
+            } catch (RuntimeException e) {
+                job.finish(ImportJob.Status.FAILED, "The import failed.");
+                throw e;
+            }
+        }
+
+        /**
+         * Runs the import and reports it to the given output as NDJSON: the job as it starts, its progress every
+         * device.import.progress-interval and the finished job as the last line. A job that has failed already is
+         * written once. The output is flushed after every line but not closed.
+         * @param out The output to write to
+         * @throws IOException If the output can not be written, for example when the client disconnects
+         */
+        public void streamTo(OutputStream out) throws IOException {
+            progress = jobWriter.getFactory().createGenerator(out);
+            progress.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            progress.setRootValueSeparator(null);
+            report();
+            if (job.getStatus() == ImportJob.Status.RUNNING) {
+                run();
+                report();
+            }
+        }
+
+        private void readHeader() throws IOException {
+            String header = reader.readLine();
+            if (reader.isTooLong()) {
+                throw new IllegalArgumentException("The CSV header is longer than " + maxLineChars + " characters.");
+            }
+            if (header != null && header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            List<String> columns = header != null ? parseCsv(header) : null;
+            nameColumn = columns != null ? indexOf(columns, "name") : -1;
+            brandColumn = columns != null ? indexOf(columns, "brand") : -1;
+            if (nameColumn < 0 || brandColumn < 0) {
+                throw new IllegalArgumentException("The CSV header must contain the name and brand columns.");
+            }
+            line = 1;
+        }
+
+        private void importNdjson() throws IOException {
+            Chunk chunk = new Chunk(job);
+            String text;
+            while ((text = nextRow()) != null) {
+                Device device;
+                try {
+                    device = deviceReader.readValue(text);
+                } catch (JsonProcessingException e) {
+                    job.rejected(line, List.of("malformed JSON."));
+                    continue;
+                }
+                chunk.add(line, device);
+            }
+            chunk.write();
+        }
+
+        private void importCsv() throws IOException {
+            Chunk chunk = new Chunk(job);
+            String text;
+            while ((text = nextRow()) != null) {
+                List<String> fields = parseCsv(text);
+                if (fields == null) {
+                    job.rejected(line, List.of("malformed CSV row."));
+                    continue;
+                }
+                Device device = new Device();
+                device.setName(nameColumn < fields.size() ? fields.get(nameColumn) : null);
+                device.setBrand(brandColumn < fields.size() ? fields.get(brandColumn) : null);
+                chunk.add(line, device);
+            }
+            chunk.write();
+        }
+
+        /**
+         * Skips blank lines and rejects the rows that are too long.
+         * @return The next row, null at the end of the upload
+         */
+        private String nextRow() throws IOException {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (reader.isTooLong()) {
+                    rowRead();
+                    job.rejected(line, List.of("row longer than " + maxLineChars + " characters."));
+                } else if (!text.isBlank()) {
+                    rowRead();
+                    return text;
+                }
+            }
+            return null;
+        }
+
+        private void rowRead() throws IOException {
+            job.rowRead();
+            if (progress != null && System.nanoTime() - lastProgressNanos >= progressIntervalNanos) {
+                report();
+            }
+        }
+
+        private void report() throws IOException {
+            jobWriter.writeValue(progress, job);
+            progress.writeRaw('\n');
+            progress.flush();
+            lastProgressNanos = System.nanoTime();
+        }
+    }
+
+    private List<String> validate(Device device) {
+        if (device == null) {
+            return List.of("device is required.");
+        }
+        Set<ConstraintViolation<Device>> violations = validator.validate(device, OnCreate.class);
+        return violations.stream()
+                .map(ConstraintViolation::getMessage)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The valid rows waiting to be written, with their line numbers for the rejection report.
+     */
+    private class Chunk {
+        private final ImportJob job;
+        private List<Device> devices = new ArrayList<>(chunkSize);
+        private long[] lines = new long[chunkSize];
+
+        Chunk(ImportJob job) {
+            this.job = job;
+        }
+
+        void add(long line, Device device) {
+            List<String> errors = validate(device);
+            if (!errors.isEmpty()) {
+                job.rejected(line, errors);
+                return;
+            }
+            device.setId(null);
+            device.setVersion(null);
+            lines[devices.size()] = line;
+            devices.add(device);
+            if (devices.size() == chunkSize) {
+                write();
+            }
+        }
+
+        void write() {
+            if (devices.isEmpty()) {
+                return;
+            }
+            List<Device> chunk = devices;
+            devices = new ArrayList<>(chunkSize);
+            try {
+                deviceStore.createAll(chunk);
+            } catch (RuntimeException e) {
+                // DataAccessException from the JPA stores, UncheckedIOException from the file store. Either way
+                // createAll stored none of the chunk.
+                for (int i = 0; i < chunk.size(); i++) {
+                    job.rejected(lines[i], List.of("device could not be stored."));
+                }
+                return;
+            }
+            job.imported(chunk.size());
+            chunk.forEach(device -> eventPublisher.publishEvent(DeviceEvent.created(device)));
+        }
+    }
+
+    /**
+     * Reads lines like BufferedReader.readLine, ended by \n, \r\n or \r, but keeps at most maxChars characters of a
+     * line. The rest of a longer line is skipped and isTooLong tells so, a line without an end can not fill the heap.
+     */
+    private static final class LineReader {
+        private final Reader in;
+        private final int maxChars;
+        private final char[] buffer = new char[READ_BUFFER_CHARS];
+        private final StringBuilder line = new StringBuilder();
+        private int position;
+        private int limit;
+        private boolean skipLineFeed;
+        private boolean tooLong;
+
+        LineReader(Reader in, int maxChars) {
+            this.in = in;
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * @return The line without its end, cut to maxChars characters, null at the end of the input
+         */
+        String readLine() throws IOException {
+            line.setLength(0);
+            tooLong = false;
+            boolean read = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        limit = 0;
+                        return read ? line.toString() : null;
+                    }
+                }
+                char c = buffer[position++];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+                read = true;
+                if (c == '\n') {
+                    return line.toString();
+                }
+                if (c == '\r') {
+                    skipLineFeed = true;
+                    return line.toString();
+                }
+                if (line.length() < maxChars) {
+                    line.append(c);
+                } else {
+                    tooLong = true;
+                }
+            }
+        }
+
+        /**
+         * @return Whether the last line read was longer than maxChars
+         */
+        boolean isTooLong() {
+            return tooLong;
+        }
+    }
+
+    private static int indexOf(List<String> columns, String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).trim().toLowerCase(Locale.ENGLISH).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits one CSV line into its fields. Unquoted fields are trimmed, quoted fields are kept as they are.
+     * @return The fields, or null when a quoted field is not closed on the same line
+     */
+    private static List<String> parseCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+        while (true) {
+            while (i < line.length() && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i < line.length() && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length()) {
+                        return null;
+                    }
+                    char c = line.charAt(i++);
+                    if (c == '"') {
+                        if (i < line.length() && line.charAt(i) == '"') {
+                            field.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        field.append(c);
+                    }
+                }
+                while (i < line.length() && line.charAt(i) != ',') {
+                    if (line.charAt(i++) != ' ') {
+                        return null;
+                    }
+                }
+                fields.add(field.toString());
+            } else {
+                int end = line.indexOf(',', i);
+                if (end < 0) {
+                    end = line.length();
+                }
+                fields.add(line.substring(i, end).trim());
+                i = end;
+            }
+            field.setLength(0);
+            if (i >= line.length()) {
+                return fields;
+            }
+            i++;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.phone.device.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.phone.device.dto.AsyncCreate;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.store.DeviceStore;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind creation of Devices, for clients that care about ingest throughput more than reading their own write.
+ *
+ * submit puts an already validated Device into a bounded queue and returns at once with an AsyncCreate to track it.
+ * One writer thread takes the Devices off the queue in groups and stores every group with one DeviceStore.createAll,
+ * one transaction of JDBC batches with the JPA store. A group is written when it has device.write-behind.batch-size
+ * Devices or when device.write-behind.max-delay has passed since its first Device was taken, whichever comes first, so
+ * a single Device is not kept waiting for company. A full queue rejects the Device, the caller answers 503.
+ *
+ * The DeviceEvents of a group are published by the writer after its commit. Trackings are kept for
+ * device.write-behind.tracking-ttl, at most device.write-behind.tracking-size of them.
+ *
+ * Stopping (on shutdown, after the web server has stopped taking requests) rejects new Devices and waits up to
+ * device.write-behind.drain-timeout for the writer to store everything still queued.
+ */
+@Service
+public class DeviceWriteBehindService implements SmartLifecycle, MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(DeviceWriteBehindService.class);
+
+    /**
+     * Stops after the web server (SmartLifecycle.DEFAULT_PHASE and the phase just below it), before any bean is
+     * destroyed, so the drain can still write to the store and publish DeviceEvents.
+     */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 2048;
+
+    private final DeviceStore deviceStore;
+    private final ApplicationEventPublisher eventPublisher;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Duration drainTimeout;
+
+    private final BlockingQueue<Queued> queue;
+    private final Cache<String, AsyncCreate> trackings;
+    /**
+     * submit checks and offers under the read lock, stop flips accepting under the write lock, so nothing can be
+     * queued once the writer has been told to drain.
+     */
+    private final ReentrantReadWriteLock acceptLock = new ReentrantReadWriteLock();
+    private volatile boolean accepting;
+    private volatile Thread writer;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder groups = new LongAdder();
+    private volatile DistributionSummary groupSizes;
+
+    @Autowired
+    public DeviceWriteBehindService(DeviceStore deviceStore,
+                                    ApplicationEventPublisher eventPublisher,
+                                    @Value("${device.write-behind.enabled:true}") boolean enabled,
+                                    @Value("${device.write-behind.queue-capacity:10000}") int queueCapacity,
+                                    @Value("${device.write-behind.batch-size:500}") int batchSize,
+                                    @Value("${device.write-behind.max-delay:20ms}") Duration maxDelay,
+                                    @Value("${device.write-behind.tracking-size:100000}") long trackingSize,
+                                    @Value("${device.write-behind.tracking-ttl:1h}") Duration trackingTtl,
+                                    @Value("${device.write-behind.drain-timeout:30s}") Duration drainTimeout) {
+        this.deviceStore = deviceStore;
+        this.eventPublisher = eventPublisher;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.drainTimeout = drainTimeout;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.trackings = Caffeine.newBuilder()
+                .maximumSize(trackingSize)
+                .expireAfterWrite(trackingTtl)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a Device to be created by the writer.
+     * @param device A valid Device without id
+     * @return The tracking of the Device, empty when the queue is full or the service is stopping
+     */
+    public Optional<AsyncCreate> submit(Device device) {
+        AsyncCreate tracking = new AsyncCreate();
+        acceptLock.readLock().lock();
+        try {
+            if (!accepting || !queue.offer(new Queued(device, tracking))) {
+                rejected.increment();
+                return Optional.empty();
+            }
+        } finally {
+            acceptLock.readLock().unlock();
+        }
+        accepted.increment();
+        trackings.put(tracking.getTrackingId(), tracking);
+        return Optional.of(tracking);
+    }
+
+    public Optional<AsyncCreate> find(String trackingId) {
+        return Optional.ofNullable(trackings.getIfPresent(trackingId));
+    }
+
+    /**
+     * Queue depth and the number of Devices accepted, rejected, written and failed so far.
+     * @return Map of statistic name to value
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("accepting", accepting);
+        stats.put("queued", queue.size());
+        stats.put("accepted", accepted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("written", written.sum());
+        stats.put("failed", failed.sum());
+        stats.put("groups", groups.sum());
+        return stats;
+    }
+
+    @Override
+    public void start() {
+        if (!enabled || writer != null) {
+            return;
+        }
+        Thread thread = new Thread(this::write, "device-write-behind");
+        thread.setDaemon(true);
+        writer = thread;
+        accepting = true;
+        thread.start();
+    }
+
+    /**
+     * Rejects new Devices and waits for the queued ones to be written.
+     */
+    @Override
+    public void stop() {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        acceptLock.writeLock().lock();
+        try {
+            accepting = false;
+        } finally {
+            acceptLock.writeLock().unlock();
+        }
+        int queued = queue.size();
+        try {
+            thread.join(drainTimeout.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            log.error("Write-behind drain timed out, {} of {} queued Devices were not written", queue.size(), queued);
+        } else {
+            log.info("Write-behind drained {} queued Devices: {}", queued, stats());
+        }
+        writer = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return writer != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("device.write.behind.queued", queue, BlockingQueue::size)
+                .description("Devices accepted by the write-behind queue and not written yet")
+                .register(registry);
+        counter(registry, "device.write.behind.accepted", accepted, "Devices accepted for write-behind creation");
+        counter(registry, "device.write.behind.rejected", rejected, "Devices rejected because the queue was full");
+        counter(registry, "device.write.behind.written", written, "Devices created by the write-behind writer");
+        counter(registry, "device.write.behind.failed", failed, "Devices the write-behind writer failed to store");
+        groupSizes = DistributionSummary.builder("device.write.behind.group")
+                .description("Devices committed per write-behind transaction")
+                .register(registry);
+    }
+
+    private static void counter(MeterRegistry registry, String name, LongAdder adder, String description) {
+        FunctionCounter.builder(name, adder, LongAdder::sum).description(description).register(registry);
+    }
+
+    /**
+     * The writer loop, runs until it has been told to stop and the queue is empty.
+     */
+    private void write() {
+        List<Queued> group = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                Queued first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!accepting && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (group.size() < batchSize) {
+                    queue.drainTo(group, batchSize - group.size());
+                    long wait = deadline - System.nanoTime();
+                    if (group.size() >= batchSize || wait <= 0 || !accepting) {
+                        break;
+                    }
+                    Queued next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+                commit(group);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Write-behind writer interrupted with {} Devices queued", queue.size() + group.size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<Queued> group) {
+        List<Device> devices = new ArrayList<>(group.size());
+        group.forEach(queued -> devices.add(queued.device));
+        try {
+            deviceStore.createAll(devices);
+        } catch (RuntimeException e) {
+            log.error("Write-behind group of {} Devices could not be stored", group.size(), e);
+            group.forEach(queued -> queued.tracking.failed("device could not be stored."));
+            failed.add(group.size());
+            return;
+        }
+        for (Queued queued : group) {
+            queued.tracking.created(queued.device.getId());
+            eventPublisher.publishEvent(DeviceEvent.created(queued.device));
+        }
+        written.add(group.size());
+        groups.increment();
+        if (groupSizes != null) {
+            groupSizes.record(group.size());
+        }
+    }
+
+    private static final class Queued {
+        private final Device device;
+        private final AsyncCreate tracking;
+
+        private Queued(Device device, AsyncCreate tracking) {
+            this.device = device;
+            this.tracking = tracking;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.phone.device.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * Immutable row of the InMemoryDeviceStore. The timestamps are kept as epoch microseconds instead of two mutable
+ * Timestamp objects, and a change replaces the whole record, so a record can be read without holding a lock.
+ */
+final class DeviceRecord {
+
+    final long id;
+    final String name;
+    final String brand;
+    final long createdAt;
+    final long updatedAt;
+    final long version;
+
+    DeviceRecord(long id, String name, String brand, long createdAt, long updatedAt, long version) {
+        this.id = id;
+        this.name = name;
+        this.brand = brand;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.version = version;
+    }
+
+    /**
+     * @return A new record with the non null fields of the patch applied, updatedAt set to now and the next version
+     */
+    DeviceRecord patch(Device patch, long now) {
+        return new DeviceRecord(id,
+                patch.getName() != null ? patch.getName() : name,
+                patch.getBrand() != null ? patch.getBrand() : brand,
+                createdAt,
+                now,
+                version + 1);
+    }
+
+    Device toDevice() {
+        Device device = new Device();
+        device.setId(id);
+        device.setName(name);
+        device.setBrand(brand);
+        device.setCreatedAt(toTimestamp(createdAt));
+        device.setUpdatedAt(toTimestamp(updatedAt));
+        device.setVersion(version);
+        return device;
+    }
+
+    /**
+     * @return A view of the given fields only, createdAt is only converted to a Timestamp when it is asked for
+     */
+    DeviceView toView(Set<DeviceView.Field> fields) {
+        DeviceView view = new DeviceView();
+        view.setId(id);
+        if (fields.contains(DeviceView.Field.NAME)) {
+            view.setName(name);
+        }
+        if (fields.contains(DeviceView.Field.BRAND)) {
+            view.setBrand(brand);
+        }
+        if (fields.contains(DeviceView.Field.CREATED_AT)) {
+            view.setCreatedAt(toTimestamp(createdAt));
+        }
+        return view;
+    }
+
+    static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    static Timestamp toTimestamp(long micros) {
+        Timestamp timestamp = new Timestamp(Math.floorDiv(micros, 1_000L));
+        timestamp.setNanos((int) Math.floorMod(micros, 1_000_000L) * 1_000);
+        return timestamp;
+    }
+}
@@ -0,0 +1,140 @@
+package com.phone.device.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage of Devices as seen by the controller and the services. The backend is chosen with device.store.type:
+ * jpa (the default) keeps them in the database through DeviceRepository, memory keeps them in InMemoryDeviceStore,
+ * file in FileDeviceStore and sharded spreads them over several databases with ShardedDeviceStore.
+ *
+ * Devices returned by a store are the caller's to keep, changing them does not change what is stored.
+ * Listings are ordered by id. The View variants of the listings return only the requested fields of every Device, for
+ * the fields= parameter, and read no more of a Device than those fields.
+ */
+public interface DeviceStore {
+
+    /**
+     * Stores a new Device. The store assigns the id and the timestamps on the given Device.
+     * @param device The Device to be created, its id is ignored
+     */
+    void create(Device device);
+
+    /**
+     * Stores new Devices in one unit of work, either all of them or none.
+     * @param devices The Devices to be created, their ids are ignored and assigned by the store
+     */
+    void createAll(List<Device> devices);
+
+    Optional<Device> findById(long id);
+
+    /**
+     * @param ids Device ids
+     * @return The Devices found, in no particular order
+     */
+    List<Device> findAllById(List<Long> ids);
+
+    List<Device> findAll();
+
+    Page<Device> findAll(Pageable pageable);
+
+    /**
+     * Keyset pagination.
+     * @param lastId The last id seen by the client, 0 for the first page
+     * @param size Page size
+     * @return Slice<Device> The Devices after lastId
+     */
+    Slice<Device> findAfter(long lastId, int size);
+
+    List<Device> findByBrandContainingIgnoreCase(String term);
+
+    /**
+     * @param fields The fields to return, must contain the id
+     */
+    List<DeviceView> findAllViews(Set<DeviceView.Field> fields);
+
+    Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable);
+
+    Slice<DeviceView> findViewsAfter(long lastId, int size, Set<DeviceView.Field> fields);
+
+    /**
+     * @param ids Device ids, callers pass at most a few hundred ids
+     * @return The Devices found, in no particular order
+     */
+    List<DeviceView> findViewsById(List<Long> ids, Set<DeviceView.Field> fields);
+
+    List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields);
+
+    /**
+     * Visits every Device without holding them all in memory at once.
+     * @param action Called once per Device, in id order
+     */
+    void forEach(Consumer<Device> action);
+
+    /**
+     * Partially updates a Device, fields of the patch that are null are left unchanged, and increments its version.
+     * When the patch has a version, the Device is only updated if it still has that version, the check and the write
+     * are atomic. On success the version of the patch is set to the new version of the Device, the one its change is
+     * published with.
+     * @param patch Must contain the id
+     * @return int Number of Devices updated, 0 when no Device has the given id or it has another version
+     */
+    int updateNonNullFields(Device patch);
+
+    boolean existsById(long id);
+
+    /**
+     * @return int 1 when the Device was deleted, 0 when there was no Device with the given id
+     */
+    int deleteById(long id);
+
+    /**
+     * Deletes the Devices with the given ids in one transaction, callers pass at most a few hundred ids.
+     * @return List<Long> Ids of the Devices deleted, ids of Devices that were not stored are left out
+     */
+    List<Long> deleteAllById(List<Long> ids);
+
+    /**
+     * Deletes the Devices among the given ids that are (still) of the given brand, in one transaction.
+     * @return List<Long> Ids of the Devices deleted
+     */
+    List<Long> deleteAllByBrandAndId(String brand, List<Long> ids);
+
+    /**
+     * One chunk of the ids of a brand, for deleting a brand chunk by chunk.
+     * @param brand Exact brand, case sensitive
+     * @param afterId The last id of the previous chunk, 0 for the first one
+     * @param limit Chunk size
+     * @return List<Long> Ids in ascending order
+     */
+    List<Long> findIdsByBrand(String brand, long afterId, int limit);
+
+    /**
+     * Number of Devices per brand, counted by the store in one pass (GROUP BY for the database).
+     * @return Map of exact brand to count
+     */
+    Map<String, Long> countByBrand();
+
+    /**
+     * Backend and state of the store, for GET /api/device/store.
+     * @return Map of statistic name to value
+     */
+    Map<String, Object> stats();
+
+    /**
+     * Writes a snapshot of the store, for the stores that keep one.
+     * @return boolean false when the store does not take snapshots
+     */
+    default boolean snapshot() {
+        return false;
+    }
+}
@@ -0,0 +1,156 @@
+package com.phone.device.store;
+
+import java.util.function.Consumer;
+
+/**
+ * Open addressing hash table from a primitive long id to a DeviceRecord, with linear probing and backward shift
+ * deletion (no tombstones). Keys and records live in two parallel arrays, there is no entry object and no boxed key
+ * per Device.
+ *
+ * Not thread safe, InMemoryDeviceStore guards every table with its own lock. get may also be called without the
+ * lock under a StampedLock optimistic read: it reads the slot arrays once, never probes more slots than there are and
+ * so always returns, possibly with a wrong answer that the caller then discards when the stamp does not validate.
+ */
+final class DeviceTable {
+
+    /**
+     * Marks a free slot, ids handed out by the store start at 1.
+     */
+    private static final long FREE = 0L;
+
+    private static final class Slots {
+        final long[] keys;
+        final DeviceRecord[] records;
+
+        Slots(int capacity) {
+            keys = new long[capacity];
+            records = new DeviceRecord[capacity];
+        }
+    }
+
+    private Slots slots;
+    private int size;
+
+    DeviceTable(int expectedSize) {
+        slots = new Slots(capacityFor(Math.max(expectedSize, 8)));
+    }
+
+    DeviceRecord get(long id) {
+        Slots current = slots;
+        long[] keys = current.keys;
+        int mask = keys.length - 1;
+        int slot = slot(id, mask);
+        for (int probes = 0; probes <= mask; probes++) {
+            long key = keys[slot];
+            if (key == id) {
+                return current.records[slot];
+            }
+            if (key == FREE) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return The record replaced, or null when the id was not in the table
+     */
+    DeviceRecord put(DeviceRecord record) {
+        if ((size + 1) * 4L > slots.keys.length * 3L) {
+            resize(slots.keys.length * 2);
+        }
+        long[] keys = slots.keys;
+        DeviceRecord[] records = slots.records;
+        int mask = keys.length - 1;
+        int slot = slot(record.id, mask);
+        while (keys[slot] != FREE) {
+            if (keys[slot] == record.id) {
+                DeviceRecord previous = records[slot];
+                records[slot] = record;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        records[slot] = record;
+        keys[slot] = record.id;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return The record removed, or null when the id was not in the table
+     */
+    DeviceRecord remove(long id) {
+        long[] keys = slots.keys;
+        DeviceRecord[] records = slots.records;
+        int mask = keys.length - 1;
+        int hole = slot(id, mask);
+        while (keys[hole] != id) {
+            if (keys[hole] == FREE) {
+                return null;
+            }
+            hole = (hole + 1) & mask;
+        }
+        DeviceRecord removed = records[hole];
+        // Moves back every following record of the run whose home slot does not lie between the hole and itself.
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            long key = keys[next];
+            if (key == FREE) {
+                break;
+            }
+            int home = slot(key, mask);
+            boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!reachable) {
+                keys[hole] = key;
+                records[hole] = records[next];
+                hole = next;
+            }
+        }
+        keys[hole] = FREE;
+        records[hole] = null;
+        size--;
+        return removed;
+    }
+
+    void forEach(Consumer<DeviceRecord> action) {
+        DeviceRecord[] records = slots.records;
+        for (DeviceRecord record : records) {
+            if (record != null) {
+                action.accept(record);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        Slots previous = slots;
+        Slots resized = new Slots(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < previous.keys.length; i++) {
+            if (previous.keys[i] != FREE) {
+                int slot = slot(previous.keys[i], mask);
+                while (resized.keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                resized.keys[slot] = previous.keys[i];
+                resized.records[slot] = previous.records[i];
+            }
+        }
+        slots = resized;
+    }
+
+    private static int slot(long id, int mask) {
+        return (int) InMemoryDeviceStore.mix(id) & mask;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(expectedSize * 4 / 3 + 1);
+        return capacity < expectedSize * 4 / 3 + 1 ? capacity << 1 : capacity;
+    }
+}
@@ -0,0 +1,403 @@
+package com.phone.device.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * InMemoryDeviceStore that survives restarts. Every write is appended to a log before it is applied, and a compact
+ * binary snapshot of all Devices is written every device.store.file.snapshot-every log records, on request and on
+ * shutdown. On startup the last snapshot is loaded and the log written after it is replayed, both read sequentially
+ * through NIO channels, before the rest of the application (and the search index) sees the store.
+ *
+ * Files in device.store.file.directory:
+ * devices.snapshot - the last complete snapshot, replaced atomically by a new one
+ * devices-N.log - log segment N. A snapshot starts a new segment first, so the segments from the one named in the
+ * snapshot header onwards hold every write the snapshot may have missed. Replaying a write the snapshot already has
+ * is harmless, records carry the whole Device.
+ *
+ * Log records are written to the file on every write, so they survive a crash of the process. With
+ * device.store.file.fsync they are also forced to the disk before the write returns, which survives a power loss at
+ * the price of one disk flush per write. A record torn by a crash is detected by its checksum and dropped.
+ *
+ * The records of one createAll are appended with a single flush (and fsync). When appending fails the log is cut
+ * back to its length before the write, so that a failed write, or a failed chunk of writes, is not replayed on
+ * restart. If even that fails the store refuses further writes, which would otherwise follow a broken record.
+ *
+ * The log and the snapshot are guarded by ReentrantLocks rather than monitors: both are held across file writes and
+ * fsyncs, and a virtual thread blocking inside synchronized pins its carrier thread up to JDK 23.
+ */
+@Component
+@ConditionalOnProperty(name = "device.store.type", havingValue = "file")
+public class FileDeviceStore extends InMemoryDeviceStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FileDeviceStore.class);
+
+    private static final String SNAPSHOT = "devices.snapshot";
+    private static final Pattern SEGMENT = Pattern.compile("devices-(\\d+)\\.log");
+    private static final int LOG_BUFFER_BYTES = 64 * 1024;
+    private static final int FILE_BUFFER_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final boolean fsync;
+    private final long snapshotEvery;
+    private final boolean snapshotOnShutdown;
+
+    private final ReentrantLock logLock = new ReentrantLock();
+    private RecordWriter logWriter;
+    private IOException logBroken;
+    private long segment;
+    private final AtomicLong logRecords = new AtomicLong();
+
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "device-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long restoreMillis;
+    private volatile long restoredDevices;
+    private volatile long replayedLogRecords;
+    private volatile long droppedLogBytes;
+    private volatile Instant lastSnapshotAt;
+    private volatile long lastSnapshotMillis;
+    private volatile long lastSnapshotBytes;
+
+    @Autowired
+    public FileDeviceStore(@Value("${device.store.memory.expected-size:10000}") int expectedSize,
+                           @Value("${device.store.file.directory:data}") String directory,
+                           @Value("${device.store.file.fsync:false}") boolean fsync,
+                           @Value("${device.store.file.snapshot-every:1000000}") long snapshotEvery,
+                           @Value("${device.store.file.snapshot-on-shutdown:true}") boolean snapshotOnShutdown) {
+        super(expectedSize);
+        this.directory = Paths.get(directory);
+        this.fsync = fsync;
+        this.snapshotEvery = snapshotEvery;
+        this.snapshotOnShutdown = snapshotOnShutdown;
+    }
+
+    /**
+     * Loads the snapshot, replays the log segments written after it and reopens the last segment for the writes to
+     * come.
+     */
+    @PostConstruct
+    public void restore() throws IOException {
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+
+        long[] firstSegment = {0};
+        long[] snapshotCount = {-1};
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                new RecordReader(channel, FILE_BUFFER_BYTES).readAll(new RecordReader.Visitor() {
+                    @Override
+                    public void header(long segment, long lastId) {
+                        firstSegment[0] = segment;
+                        advanceIds(lastId);
+                    }
+
+                    @Override
+                    public void put(DeviceRecord record) {
+                        restorePut(record);
+                    }
+
+                    @Override
+                    public void remove(long id) {
+                        restoreRemove(id);
+                    }
+
+                    @Override
+                    public void end(long count) {
+                        snapshotCount[0] = count;
+                    }
+                });
+            }
+            if (snapshotCount[0] < 0) {
+                throw new IllegalStateException("Snapshot " + snapshot + " is incomplete or corrupt.");
+            }
+        }
+
+        long replayed = 0;
+        long dropped = 0;
+        long lastSegment = firstSegment[0] - 1;
+        for (long number : segments()) {
+            Path file = segmentFile(number);
+            if (number < firstSegment[0]) {
+                // Already in the snapshot, left behind by a crash right after the snapshot was written.
+                Files.delete(file);
+                continue;
+            }
+            long[] records = {0};
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long valid = new RecordReader(channel, FILE_BUFFER_BYTES).readAll(new RecordReader.Visitor() {
+                    @Override
+                    public void put(DeviceRecord record) {
+                        restorePut(record);
+                        records[0]++;
+                    }
+
+                    @Override
+                    public void remove(long id) {
+                        restoreRemove(id);
+                        records[0]++;
+                    }
+                });
+                if (valid < channel.size()) {
+                    dropped += channel.size() - valid;
+                    log.warn("Dropping {} bytes of incomplete records at the end of {}", channel.size() - valid, file);
+                    channel.truncate(valid);
+                }
+            }
+            replayed += records[0];
+            lastSegment = number;
+        }
+
+        logLock.lock();
+        try {
+            // The last segment ends with a complete record now, new writes are appended to it.
+            segment = Math.max(lastSegment, firstSegment[0]);
+            logWriter = openSegment(segment);
+        } finally {
+            logLock.unlock();
+        }
+        logRecords.set(replayed);
+        restoredDevices = size();
+        replayedLogRecords = replayed;
+        droppedLogBytes = dropped;
+        restoreMillis = (System.nanoTime() - started) / 1_000_000;
+        log.info("Device store restored from {} in {} ms: {} devices, {} log records replayed",
+                directory.toAbsolutePath(), restoreMillis, restoredDevices, replayed);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        snapshotExecutor.shutdown();
+        if (snapshotOnShutdown) {
+            snapshot();
+        }
+        logLock.lock();
+        try {
+            logWriter.force();
+            logWriter.close();
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a new snapshot and deletes the log segments it makes obsolete. Writes continue meanwhile, they go to a
+     * new log segment that is replayed on top of this snapshot.
+     */
+    @Override
+    public boolean snapshot() {
+        snapshotLock.lock();
+        try {
+            long started = System.nanoTime();
+            try {
+                long firstSegment;
+                logLock.lock();
+                try {
+                    logWriter.force();
+                    logWriter.close();
+                    firstSegment = ++segment;
+                    logWriter = openSegment(firstSegment);
+                    logRecords.set(0);
+                } finally {
+                    logLock.unlock();
+                }
+                Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+                long count;
+                try (RecordWriter writer = new RecordWriter(FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), FILE_BUFFER_BYTES)) {
+                    writer.header(firstSegment, lastId());
+                    long[] written = {0};
+                    scan(record -> {
+                        try {
+                            writer.put(record);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        written[0]++;
+                    });
+                    count = written[0];
+                    writer.end(count);
+                    writer.flush();
+                    writer.force();
+                    lastSnapshotBytes = writer.size();
+                }
+                Files.move(temporary, directory.resolve(SNAPSHOT),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (long number : segments()) {
+                    if (number < firstSegment) {
+                        Files.delete(segmentFile(number));
+                    }
+                }
+                lastSnapshotAt = Instant.now();
+                lastSnapshotMillis = (System.nanoTime() - started) / 1_000_000;
+                log.info("Device store snapshot of {} devices written in {} ms", count, lastSnapshotMillis);
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = super.stats();
+        stats.put("type", "file");
+        stats.put("directory", directory.toAbsolutePath().toString());
+        stats.put("fsync", fsync);
+        stats.put("restoreMillis", restoreMillis);
+        stats.put("restoredDevices", restoredDevices);
+        stats.put("replayedLogRecords", replayedLogRecords);
+        stats.put("droppedLogBytes", droppedLogBytes);
+        stats.put("logRecordsSinceSnapshot", logRecords.get());
+        stats.put("lastSnapshotAt", lastSnapshotAt != null ? lastSnapshotAt.toString() : null);
+        stats.put("lastSnapshotMillis", lastSnapshotMillis);
+        stats.put("lastSnapshotBytes", lastSnapshotBytes);
+        return stats;
+    }
+
+    @Override
+    void logPut(DeviceRecord record) {
+        append(1, writer -> writer.put(record));
+    }
+
+    @Override
+    void logPutAll(List<DeviceRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        append(records.size(), writer -> {
+            for (DeviceRecord record : records) {
+                writer.put(record);
+            }
+        });
+    }
+
+    @Override
+    void logRemove(long id) {
+        append(1, writer -> writer.remove(id));
+    }
+
+    /**
+     * Appends the records of one write and flushes them, or leaves the log as it was.
+     */
+    private void append(int records, LogWrite write) {
+        logLock.lock();
+        try {
+            if (logBroken != null) {
+                throw new UncheckedIOException("The device log could not be cut back after a failed write", logBroken);
+            }
+            long size;
+            try {
+                size = logWriter.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                write.to(logWriter);
+                logWriter.flush();
+                if (fsync) {
+                    logWriter.force();
+                }
+            } catch (IOException e) {
+                rollBack(size, e);
+                throw new UncheckedIOException(e);
+            } catch (RuntimeException e) {
+                rollBack(size, e);
+                throw e;
+            }
+        } finally {
+            logLock.unlock();
+        }
+        if (logRecords.addAndGet(records) >= snapshotEvery && snapshotScheduled.compareAndSet(false, true)) {
+            snapshotExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (RuntimeException e) {
+                    log.error("Device store snapshot failed", e);
+                } finally {
+                    snapshotScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private void rollBack(long size, Exception cause) {
+        logWriter.discard();
+        try {
+            logWriter.truncate(size);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            logBroken = e;
+            log.error("Device log could not be cut back to {} bytes, the store refuses writes until restarted", size, e);
+        }
+    }
+
+    private RecordWriter openSegment(long number) {
+        try {
+            return new RecordWriter(FileChannel.open(segmentFile(number), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND), LOG_BUFFER_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve("devices-" + number + ".log");
+    }
+
+    /**
+     * Numbers of the log segments in the directory, in ascending order.
+     */
+    private List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    numbers.add(Long.parseLong(matcher.group(1)));
+                }
+            });
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private interface LogWrite {
+        void to(RecordWriter writer) throws IOException;
+    }
+}
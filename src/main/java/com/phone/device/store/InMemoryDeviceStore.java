@@ -0,0 +1,460 @@
+package com.phone.device.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * DeviceStore keeping the Devices in the heap of the application, for deployments that do not need a database.
+ *
+ * The Devices are spread over STRIPES DeviceTables by a hash of their id, every table guarded by its own StampedLock,
+ * so writes to different stripes do not wait for each other and a lookup by id is an optimistic read that normally
+ * takes no lock at all. Rows are immutable DeviceRecords, a write replaces the record, and the Devices handed out are
+ * copies. Ids come from an AtomicLong starting at 1.
+ *
+ * Lookups by id are constant time. Listings, brand queries and forEach visit every stripe one after the other and sort
+ * by id, so they see each stripe at a slightly different moment rather than one snapshot of the whole store. The brand
+ * search is normally answered by DeviceSearchIndex, which stays in use with this store.
+ *
+ * Nothing survives a restart, see FileDeviceStore for a store that does.
+ */
+@Component
+@ConditionalOnProperty(name = "device.store.type", havingValue = "memory")
+public class InMemoryDeviceStore implements DeviceStore {
+
+    private static final int STRIPES = 64;
+    private static final int STRIPE_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(STRIPES);
+
+    private static final Comparator<DeviceRecord> BY_ID = Comparator.comparingLong(record -> record.id);
+
+    private final DeviceTable[] tables = new DeviceTable[STRIPES];
+    private final StampedLock[] locks = new StampedLock[STRIPES];
+    private final AtomicLong ids = new AtomicLong();
+
+    @Autowired
+    public InMemoryDeviceStore(@Value("${device.store.memory.expected-size:10000}") int expectedSize) {
+        for (int i = 0; i < STRIPES; i++) {
+            tables[i] = new DeviceTable(expectedSize / STRIPES);
+            locks[i] = new StampedLock();
+        }
+    }
+
+    @Override
+    public void create(Device device) {
+        long now = DeviceRecord.now();
+        DeviceRecord record = new DeviceRecord(ids.incrementAndGet(), device.getName(), device.getBrand(), now, now, 0);
+        int stripe = stripe(record.id);
+        long stamp = locks[stripe].writeLock();
+        try {
+            logPut(record);
+            tables[stripe].put(record);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+        device.setId(record.id);
+        device.setCreatedAt(DeviceRecord.toTimestamp(now));
+        device.setUpdatedAt(DeviceRecord.toTimestamp(now));
+        device.setVersion(record.version);
+    }
+
+    /**
+     * The records of all the Devices are logged with one logPutAll before the first of them is stored, so a failing
+     * log leaves the store unchanged and a chunk is never half stored nor half logged. Ids taken by a failed call are
+     * not handed out again.
+     */
+    @Override
+    public void createAll(List<Device> devices) {
+        long now = DeviceRecord.now();
+        List<DeviceRecord> records = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            records.add(new DeviceRecord(ids.incrementAndGet(), device.getName(), device.getBrand(), now, now, 0));
+        }
+        logPutAll(records);
+        for (int i = 0; i < records.size(); i++) {
+            DeviceRecord record = records.get(i);
+            int stripe = stripe(record.id);
+            long stamp = locks[stripe].writeLock();
+            try {
+                tables[stripe].put(record);
+            } finally {
+                locks[stripe].unlockWrite(stamp);
+            }
+            Device device = devices.get(i);
+            device.setId(record.id);
+            device.setCreatedAt(DeviceRecord.toTimestamp(now));
+            device.setUpdatedAt(DeviceRecord.toTimestamp(now));
+            device.setVersion(record.version);
+        }
+    }
+
+    @Override
+    public Optional<Device> findById(long id) {
+        return Optional.ofNullable(get(id)).map(DeviceRecord::toDevice);
+    }
+
+    @Override
+    public List<Device> findAllById(List<Long> ids) {
+        List<Device> devices = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            DeviceRecord record = id != null ? get(id) : null;
+            if (record != null) {
+                devices.add(record.toDevice());
+            }
+        }
+        return devices;
+    }
+
+    @Override
+    public List<Device> findAll() {
+        return toDevices(select(record -> true));
+    }
+
+    @Override
+    public Page<Device> findAll(Pageable pageable) {
+        return page(pageable).map(DeviceRecord::toDevice);
+    }
+
+    @Override
+    public Slice<Device> findAfter(long lastId, int size) {
+        return after(lastId, size).map(DeviceRecord::toDevice);
+    }
+
+    @Override
+    public List<Device> findByBrandContainingIgnoreCase(String term) {
+        return toDevices(selectBrandContaining(term));
+    }
+
+    @Override
+    public List<DeviceView> findAllViews(Set<DeviceView.Field> fields) {
+        return toViews(select(record -> true), fields);
+    }
+
+    @Override
+    public Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable) {
+        return page(pageable).map(record -> record.toView(fields));
+    }
+
+    @Override
+    public Slice<DeviceView> findViewsAfter(long lastId, int size, Set<DeviceView.Field> fields) {
+        return after(lastId, size).map(record -> record.toView(fields));
+    }
+
+    @Override
+    public List<DeviceView> findViewsById(List<Long> ids, Set<DeviceView.Field> fields) {
+        List<DeviceView> views = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            DeviceRecord record = id != null ? get(id) : null;
+            if (record != null) {
+                views.add(record.toView(fields));
+            }
+        }
+        return views;
+    }
+
+    @Override
+    public List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields) {
+        return toViews(selectBrandContaining(term), fields);
+    }
+
+    @Override
+    public void forEach(Consumer<Device> action) {
+        select(record -> true).forEach(record -> action.accept(record.toDevice()));
+    }
+
+    @Override
+    public int updateNonNullFields(Device patch) {
+        if (patch.getName() == null && patch.getBrand() == null) {
+            throw new IllegalArgumentException("At least one field of the patch must be set");
+        }
+        long now = DeviceRecord.now();
+        int stripe = stripe(patch.getId());
+        long stamp = locks[stripe].writeLock();
+        try {
+            DeviceRecord record = tables[stripe].get(patch.getId());
+            if (record == null || patch.getVersion() != null && record.version != patch.getVersion()) {
+                return 0;
+            }
+            DeviceRecord patched = record.patch(patch, now);
+            logPut(patched);
+            tables[stripe].put(patched);
+            patch.setVersion(patched.version);
+            return 1;
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean existsById(long id) {
+        return get(id) != null;
+    }
+
+    @Override
+    public int deleteById(long id) {
+        int stripe = stripe(id);
+        long stamp = locks[stripe].writeLock();
+        try {
+            if (tables[stripe].get(id) == null) {
+                return 0;
+            }
+            logRemove(id);
+            tables[stripe].remove(id);
+            return 1;
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<Long> deleteAllById(List<Long> ids) {
+        List<Long> deleted = new ArrayList<>();
+        for (Long id : ids) {
+            if (deleteById(id) == 1) {
+                deleted.add(id);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public List<Long> deleteAllByBrandAndId(String brand, List<Long> ids) {
+        List<Long> deleted = new ArrayList<>();
+        for (Long id : ids) {
+            int stripe = stripe(id);
+            long stamp = locks[stripe].writeLock();
+            try {
+                DeviceRecord record = tables[stripe].get(id);
+                if (record != null && record.brand.equals(brand)) {
+                    logRemove(id);
+                    tables[stripe].remove(id);
+                    deleted.add(id);
+                }
+            } finally {
+                locks[stripe].unlockWrite(stamp);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public List<Long> findIdsByBrand(String brand, long afterId, int limit) {
+        PriorityQueue<DeviceRecord> lowest = new PriorityQueue<>(limit + 1, BY_ID.reversed());
+        scan(record -> {
+            if (record.id > afterId && record.brand.equals(brand)) {
+                lowest.add(record);
+                if (lowest.size() > limit) {
+                    lowest.poll();
+                }
+            }
+        });
+        return lowest.stream().map(record -> record.id).sorted().collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Long> countByBrand() {
+        Map<String, Long> counts = new HashMap<>();
+        scan(record -> counts.merge(record.brand, 1L, Long::sum));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", "memory");
+        stats.put("devices", size());
+        stats.put("lastId", lastId());
+        return stats;
+    }
+
+    /**
+     * Number of Devices stored.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            long stamp = locks[i].readLock();
+            try {
+                size += tables[i].size();
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Called before a record is stored, with the write lock of its stripe held, so that the writes to one id reach
+     * the hook in the order they are applied. Throwing leaves the store unchanged.
+     */
+    void logPut(DeviceRecord record) {
+    }
+
+    /**
+     * Called by createAll before any of the new records is stored, without a stripe lock: their ids are not visible
+     * yet, so no other write to them can reach the hooks first. Throwing leaves the store unchanged, so the records
+     * must be logged all together or not at all.
+     */
+    void logPutAll(List<DeviceRecord> records) {
+    }
+
+    /**
+     * Called before an existing record is removed, like logPut.
+     */
+    void logRemove(long id) {
+    }
+
+    /**
+     * Stores a record read back from a log or snapshot, without calling logPut, and moves the id generator past it.
+     */
+    void restorePut(DeviceRecord record) {
+        ids.accumulateAndGet(record.id, Math::max);
+        int stripe = stripe(record.id);
+        long stamp = locks[stripe].writeLock();
+        try {
+            tables[stripe].put(record);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    void restoreRemove(long id) {
+        int stripe = stripe(id);
+        long stamp = locks[stripe].writeLock();
+        try {
+            tables[stripe].remove(id);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return The highest id handed out so far
+     */
+    long lastId() {
+        return ids.get();
+    }
+
+    void advanceIds(long lastId) {
+        ids.accumulateAndGet(lastId, Math::max);
+    }
+
+    private DeviceRecord get(long id) {
+        int stripe = stripe(id);
+        StampedLock lock = locks[stripe];
+        long stamp = lock.tryOptimisticRead();
+        DeviceRecord record = tables[stripe].get(id);
+        if (lock.validate(stamp)) {
+            return record;
+        }
+        stamp = lock.readLock();
+        try {
+            return tables[stripe].get(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Visits every record, one stripe at a time under its read lock.
+     */
+    void scan(Consumer<DeviceRecord> action) {
+        for (int i = 0; i < STRIPES; i++) {
+            long stamp = locks[i].readLock();
+            try {
+                tables[i].forEach(action);
+            } finally {
+                locks[i].unlockRead(stamp);
+            }
+        }
+    }
+
+    private Page<DeviceRecord> page(Pageable pageable) {
+        List<DeviceRecord> records = select(record -> true);
+        if (pageable.isUnpaged()) {
+            return new PageImpl<>(records, pageable, records.size());
+        }
+        int from = (int) Math.min(pageable.getOffset(), records.size());
+        int to = Math.min(from + pageable.getPageSize(), records.size());
+        return new PageImpl<>(records.subList(from, to), pageable, records.size());
+    }
+
+    /**
+     * Keeps only the size + 1 lowest ids after lastId while scanning, instead of sorting every Device.
+     */
+    private Slice<DeviceRecord> after(long lastId, int size) {
+        PriorityQueue<DeviceRecord> lowest = new PriorityQueue<>(size + 1, BY_ID.reversed());
+        scan(record -> {
+            if (record.id > lastId) {
+                lowest.add(record);
+                if (lowest.size() > size + 1) {
+                    lowest.poll();
+                }
+            }
+        });
+        List<DeviceRecord> records = new ArrayList<>(lowest);
+        records.sort(BY_ID);
+        boolean hasNext = records.size() > size;
+        return new SliceImpl<>(hasNext ? records.subList(0, size) : records, PageRequest.of(0, size), hasNext);
+    }
+
+    private List<DeviceRecord> selectBrandContaining(String term) {
+        String needle = term.toUpperCase(Locale.ENGLISH);
+        return select(record -> record.brand.toUpperCase(Locale.ENGLISH).contains(needle));
+    }
+
+    private List<DeviceRecord> select(Predicate<DeviceRecord> filter) {
+        List<DeviceRecord> records = new ArrayList<>();
+        scan(record -> {
+            if (filter.test(record)) {
+                records.add(record);
+            }
+        });
+        records.sort(BY_ID);
+        return records;
+    }
+
+    private static List<Device> toDevices(List<DeviceRecord> records) {
+        return records.stream().map(DeviceRecord::toDevice).collect(Collectors.toList());
+    }
+
+    private static List<DeviceView> toViews(List<DeviceRecord> records, Set<DeviceView.Field> fields) {
+        return records.stream().map(record -> record.toView(fields)).collect(Collectors.toList());
+    }
+
+    private static int stripe(long id) {
+        return (int) (mix(id) >>> STRIPE_SHIFT);
+    }
+
+    /**
+     * Spreads consecutive ids over the stripes (high bits) and over the slots of a table (low bits).
+     */
+    static long mix(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+}
@@ -0,0 +1,177 @@
+package com.phone.device.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import com.phone.device.jpa.DeviceRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * DeviceStore backed by the database through DeviceRepository.
+ *
+ * createAll runs in its own transaction, inserted in JDBC batches, and clears the persistence context afterwards so
+ * that the open-in-view persistence context of a request does not keep every inserted Device. forEach reads through
+ * the cursor of streamAllBy and detaches each Device once it has been visited.
+ */
+@Component
+@ConditionalOnProperty(name = "device.store.type", havingValue = "jpa", matchIfMissing = true)
+public class JpaDeviceStore implements DeviceStore {
+
+    private final DeviceRepository deviceRepository;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    @Autowired
+    public JpaDeviceStore(DeviceRepository deviceRepository,
+                          EntityManager entityManager,
+                          PlatformTransactionManager transactionManager) {
+        this.deviceRepository = deviceRepository;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+    }
+
+    @Override
+    public void create(Device device) {
+        deviceRepository.saveAndFlush(device);
+    }
+
+    @Override
+    public void createAll(List<Device> devices) {
+        transactionTemplate.executeWithoutResult(status -> {
+            deviceRepository.saveAll(devices);
+            deviceRepository.flush();
+            entityManager.clear();
+        });
+    }
+
+    @Override
+    public Optional<Device> findById(long id) {
+        return deviceRepository.findById(id);
+    }
+
+    @Override
+    public List<Device> findAllById(List<Long> ids) {
+        return deviceRepository.findAllById(ids);
+    }
+
+    @Override
+    public List<Device> findAll() {
+        return deviceRepository.findAll();
+    }
+
+    @Override
+    public Page<Device> findAll(Pageable pageable) {
+        return deviceRepository.findAll(pageable);
+    }
+
+    @Override
+    public Slice<Device> findAfter(long lastId, int size) {
+        return deviceRepository.findByIdGreaterThan(lastId, PageRequest.of(0, size, Sort.by("id")));
+    }
+
+    @Override
+    public List<Device> findByBrandContainingIgnoreCase(String term) {
+        return deviceRepository.findByBrandContainingIgnoreCase(term);
+    }
+
+    @Override
+    public List<DeviceView> findAllViews(Set<DeviceView.Field> fields) {
+        return deviceRepository.findAllViews(fields);
+    }
+
+    @Override
+    public Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable) {
+        return deviceRepository.findAllViews(fields, pageable);
+    }
+
+    @Override
+    public Slice<DeviceView> findViewsAfter(long lastId, int size, Set<DeviceView.Field> fields) {
+        return deviceRepository.findViewsByIdGreaterThan(lastId, size, fields);
+    }
+
+    @Override
+    public List<DeviceView> findViewsById(List<Long> ids, Set<DeviceView.Field> fields) {
+        return deviceRepository.findViewsByIdIn(ids, fields);
+    }
+
+    @Override
+    public List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields) {
+        return deviceRepository.findViewsByBrandContainingIgnoreCase(term, fields);
+    }
+
+    @Override
+    public void forEach(Consumer<Device> action) {
+        readOnlyTransactionTemplate.executeWithoutResult(status -> {
+            try (Stream<Device> devices = deviceRepository.streamAllBy()) {
+                devices.forEach(device -> {
+                    action.accept(device);
+                    entityManager.detach(device);
+                });
+            }
+        });
+    }
+
+    @Override
+    public int updateNonNullFields(Device patch) {
+        return deviceRepository.updateNonNullFields(patch);
+    }
+
+    @Override
+    public boolean existsById(long id) {
+        return deviceRepository.existsById(id);
+    }
+
+    @Override
+    public int deleteById(long id) {
+        return deviceRepository.deleteWhereId(id);
+    }
+
+    @Override
+    public List<Long> deleteAllById(List<Long> ids) {
+        return deviceRepository.deleteWhereIdInReturningIds(ids);
+    }
+
+    @Override
+    public List<Long> deleteAllByBrandAndId(String brand, List<Long> ids) {
+        return deviceRepository.deleteWhereBrandAndIdInReturningIds(brand, ids);
+    }
+
+    @Override
+    public List<Long> findIdsByBrand(String brand, long afterId, int limit) {
+        return deviceRepository.findIdsByBrand(brand, afterId, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public Map<String, Long> countByBrand() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Object[] row : deviceRepository.countByBrand()) {
+            counts.put((String) row[0], (Long) row[1]);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        return Map.of("type", "jpa");
+    }
+}
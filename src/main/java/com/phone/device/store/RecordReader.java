@@ -0,0 +1,126 @@
+package com.phone.device.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the files written by RecordWriter sequentially through a large buffer, which is what makes restoring millions
+ * of Devices take seconds: one read call per megabyte and no per record allocation besides the record itself.
+ */
+final class RecordReader {
+
+    /**
+     * Largest payload accepted, a longer length can only come from a corrupt frame.
+     */
+    private static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+
+    interface Visitor {
+        default void header(long segment, long lastId) {
+        }
+
+        void put(DeviceRecord record);
+
+        void remove(long id);
+
+        default void end(long count) {
+        }
+    }
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer;
+    private boolean eof;
+
+    RecordReader(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    /**
+     * Passes every record to the visitor, up to the end of the file or the first incomplete or corrupt record.
+     * @return The number of bytes of complete records, the file can be truncated to it
+     */
+    long readAll(Visitor visitor) throws IOException {
+        long valid = 0;
+        while (fill(RecordWriter.FRAME_BYTES)) {
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (length < 1 || length > MAX_PAYLOAD_BYTES || !fill(RecordWriter.FRAME_BYTES + length)) {
+                break;
+            }
+            int start = buffer.position() + RecordWriter.FRAME_BYTES;
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + start, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            buffer.position(start);
+            decode(visitor);
+            buffer.position(start + length);
+            valid += RecordWriter.FRAME_BYTES + length;
+        }
+        return valid;
+    }
+
+    private void decode(Visitor visitor) {
+        byte type = buffer.get();
+        switch (type) {
+            case RecordWriter.PUT:
+            case RecordWriter.PUT_VERSIONED:
+                long id = buffer.getLong();
+                long createdAt = buffer.getLong();
+                long updatedAt = buffer.getLong();
+                long version = type == RecordWriter.PUT_VERSIONED ? buffer.getLong() : 0;
+                String name = string();
+                String brand = string();
+                visitor.put(new DeviceRecord(id, name, brand, createdAt, updatedAt, version));
+                break;
+            case RecordWriter.REMOVE:
+                visitor.remove(buffer.getLong());
+                break;
+            case RecordWriter.HEADER:
+                visitor.header(buffer.getLong(), buffer.getLong());
+                break;
+            case RecordWriter.END:
+                visitor.end(buffer.getLong());
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type);
+        }
+    }
+
+    private String string() {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Makes sure the given number of bytes can be read from the buffer, reading more of the file when needed.
+     * @return false when the file ends first
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        if (buffer.capacity() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(bytes);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (!eof && buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                eof = true;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+}
@@ -0,0 +1,139 @@
+package com.phone.device.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the records of the FileDeviceStore log and snapshot files. Every record is framed as
+ * [int payload length][int CRC32 of payload][payload], the payload starts with the record type, so that a reader can
+ * tell a complete record from one torn by a crash.
+ *
+ * A PUT record is written as PUT_VERSIONED, with the version of the Device after its timestamps. PUT records of files
+ * written before Devices had a version are still read, as version 0.
+ *
+ * Records are collected in a buffer and written to the channel by flush, or when the buffer is full. Not thread safe.
+ */
+final class RecordWriter implements Closeable {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte HEADER = 3;
+    static final byte END = 4;
+    static final byte PUT_VERSIONED = 5;
+
+    static final int FRAME_BYTES = 8;
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer;
+
+    RecordWriter(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    void put(DeviceRecord record) throws IOException {
+        byte[] name = record.name.getBytes(StandardCharsets.UTF_8);
+        byte[] brand = record.brand.getBytes(StandardCharsets.UTF_8);
+        int start = begin(1 + 8 + 8 + 8 + 8 + 4 + name.length + 4 + brand.length);
+        buffer.put(PUT_VERSIONED)
+                .putLong(record.id)
+                .putLong(record.createdAt)
+                .putLong(record.updatedAt)
+                .putLong(record.version)
+                .putInt(name.length).put(name)
+                .putInt(brand.length).put(brand);
+        seal(start);
+    }
+
+    void remove(long id) throws IOException {
+        int start = begin(1 + 8);
+        buffer.put(REMOVE).putLong(id);
+        seal(start);
+    }
+
+    /**
+     * First record of a snapshot.
+     * @param segment First log segment to replay on top of the snapshot
+     * @param lastId Highest id handed out when the snapshot was started
+     */
+    void header(long segment, long lastId) throws IOException {
+        int start = begin(1 + 8 + 8);
+        buffer.put(HEADER).putLong(segment).putLong(lastId);
+        seal(start);
+    }
+
+    /**
+     * Last record of a snapshot, a snapshot without it is incomplete.
+     * @param count Number of PUT records in the snapshot
+     */
+    void end(long count) throws IOException {
+        int start = begin(1 + 8);
+        buffer.put(END).putLong(count);
+        seal(start);
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Drops the records collected since the last flush.
+     */
+    void discard() {
+        buffer.clear();
+    }
+
+    /**
+     * Cuts the file back to the given size, dropping what was written after it.
+     */
+    void truncate(long size) throws IOException {
+        channel.truncate(size);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int begin(int payloadBytes) throws IOException {
+        int bytes = FRAME_BYTES + payloadBytes;
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(bytes);
+            }
+        }
+        int start = buffer.position();
+        buffer.position(start + FRAME_BYTES);
+        return start;
+    }
+
+    private void seal(int start) {
+        int length = buffer.position() - start - FRAME_BYTES;
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + FRAME_BYTES, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+}
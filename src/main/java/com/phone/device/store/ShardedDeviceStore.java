@@ -0,0 +1,636 @@
+package com.phone.device.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.jpa.repository.query.EscapeCharacter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * DeviceStore spreading the Devices over several databases (shards), each with its own device table and connection
+ * pool, for write loads that one database can not take.
+ *
+ * The id of a Device carries its shard in its low SHARD_BITS bits, the rest comes from a sequence of that shard, taken
+ * ID_BLOCK ids at a time like the pooled generator of the JPA store. New Devices go to the shards in turn, a createAll
+ * goes to a single shard as a whole so that it stays one transaction. Everything addressed by id (lookups, updates,
+ * deletes) goes straight to the owning shard, lists of ids are split per shard.
+ *
+ * Listings, the brand search and the brand queries ask every shard in parallel and merge the answers by id, so they
+ * are ordered by id like with the other stores. A keyset page (findAfter) reads at most size + 1 rows per shard. An
+ * offset page has to read offset + size rows from every shard before it can skip offset of them, the deeper the page
+ * the more it costs, the keyset listing is the one to use on large tables. The shards are read one after the other
+ * at slightly different moments, not as one snapshot.
+ *
+ * The shards are given by device.store.sharded.urls, in a fixed order: the position of a url is the shard number
+ * written into the ids, so shards can be added at the end but never removed or reordered.
+ */
+@Component
+@ConditionalOnProperty(name = "device.store.type", havingValue = "sharded")
+public class ShardedDeviceStore implements DeviceStore {
+
+    /**
+     * Low bits of an id holding its shard, so at most 256 shards.
+     */
+    public static final int SHARD_BITS = 8;
+    private static final long SHARD_MASK = (1L << SHARD_BITS) - 1;
+
+    /**
+     * Ids reserved per sequence call, the increment of the sequence.
+     */
+    private static final int ID_BLOCK = 50;
+
+    /**
+     * Rows read per shard and round trip by forEach.
+     */
+    private static final int FETCH_SIZE = 500;
+
+    private static final String COLUMNS = "id, name, brand, created_at, updated_at, version";
+    private static final String[] SCHEMA = {
+            "create table if not exists device (id bigint primary key, name varchar(255) not null,"
+                    + " brand varchar(255) not null, created_at timestamp not null, updated_at timestamp,"
+                    + " version bigint not null)",
+            "create index if not exists device_brand_idx on device (brand)",
+            "create sequence if not exists device_seq start with 1 increment by " + ID_BLOCK};
+
+    private static final Map<DeviceView.Field, String> VIEW_COLUMNS = new EnumMap<>(Map.of(
+            DeviceView.Field.ID, "id",
+            DeviceView.Field.NAME, "name",
+            DeviceView.Field.BRAND, "brand",
+            DeviceView.Field.CREATED_AT, "created_at"));
+
+    private static final RowMapper<Device> DEVICE = (rs, row) -> {
+        Device device = new Device();
+        device.setId(rs.getLong("id"));
+        device.setName(rs.getString("name"));
+        device.setBrand(rs.getString("brand"));
+        device.setCreatedAt(rs.getTimestamp("created_at"));
+        device.setUpdatedAt(rs.getTimestamp("updated_at"));
+        device.setVersion(rs.getLong("version"));
+        return device;
+    };
+
+    private final Shard[] shards;
+    private final List<HikariDataSource> pools;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final ExecutorService fanOut;
+
+    @Autowired
+    public ShardedDeviceStore(@Value("${device.store.sharded.urls}") String[] urls,
+                              @Value("${device.store.sharded.username:sa}") String username,
+                              @Value("${device.store.sharded.password:}") String password,
+                              @Value("${device.store.sharded.pool-size:10}") int poolSize,
+                              @Value("${device.store.sharded.fan-out-threads:16}") int fanOutThreads) {
+        this(pools(urls, username, password, poolSize), fanOutThreads);
+    }
+
+    /**
+     * @param dataSources The shards, in shard number order
+     * @param fanOutThreads Threads querying the shards in parallel, shared by all requests
+     */
+    public ShardedDeviceStore(List<? extends DataSource> dataSources, int fanOutThreads) {
+        if (dataSources.isEmpty() || dataSources.size() > SHARD_MASK + 1) {
+            throw new IllegalArgumentException("Between 1 and " + (SHARD_MASK + 1) + " shards are needed, got "
+                    + dataSources.size());
+        }
+        this.shards = new Shard[dataSources.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, dataSources.get(i));
+        }
+        this.pools = dataSources.stream()
+                .filter(HikariDataSource.class::isInstance)
+                .map(HikariDataSource.class::cast)
+                .collect(Collectors.toList());
+        AtomicInteger threads = new AtomicInteger();
+        this.fanOut = Executors.newFixedThreadPool(fanOutThreads, runnable -> {
+            Thread thread = new Thread(runnable, "device-shard-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The shard number written into the id
+     */
+    public static int shardOf(long id) {
+        return (int) (id & SHARD_MASK);
+    }
+
+    @Override
+    public void create(Device device) {
+        createAll(Collections.singletonList(device));
+    }
+
+    @Override
+    public void createAll(List<Device> devices) {
+        if (devices.isEmpty()) {
+            return;
+        }
+        Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+        Timestamp now = Timestamp.from(Instant.now());
+        List<MapSqlParameterSource> rows = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            rows.add(new MapSqlParameterSource()
+                    .addValue("id", shard.nextId())
+                    .addValue("name", device.getName())
+                    .addValue("brand", device.getBrand())
+                    .addValue("now", now));
+        }
+        shard.transaction.executeWithoutResult(status -> shard.jdbc.batchUpdate(
+                "insert into device (" + COLUMNS + ") values (:id, :name, :brand, :now, :now, 0)",
+                rows.toArray(new MapSqlParameterSource[0])));
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            device.setId((Long) rows.get(i).getValue("id"));
+            device.setCreatedAt(now);
+            device.setUpdatedAt(now);
+            device.setVersion(0L);
+        }
+    }
+
+    @Override
+    public Optional<Device> findById(long id) {
+        Shard shard = shard(id);
+        if (shard == null) {
+            return Optional.empty();
+        }
+        return shard.jdbc.query("select " + COLUMNS + " from device where id = :id", Map.of("id", id), DEVICE)
+                .stream().findFirst();
+    }
+
+    @Override
+    public List<Device> findAllById(List<Long> ids) {
+        return concat(perShard(ids, (shard, shardIds) -> shard.jdbc.query(
+                "select " + COLUMNS + " from device where id in (:ids)", Map.of("ids", shardIds), DEVICE)));
+    }
+
+    @Override
+    public List<Device> findAll() {
+        return merge(all(shard -> shard.jdbc.query("select " + COLUMNS + " from device order by id", DEVICE)),
+                Device::getId, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Page<Device> findAll(Pageable pageable) {
+        return page(pageable, "select " + COLUMNS + " from device", DEVICE, Device::getId);
+    }
+
+    @Override
+    public Slice<Device> findAfter(long lastId, int size) {
+        return after(lastId, size, "select " + COLUMNS + " from device", DEVICE, Device::getId);
+    }
+
+    @Override
+    public List<Device> findByBrandContainingIgnoreCase(String term) {
+        return brandContaining(term, COLUMNS, DEVICE, Device::getId);
+    }
+
+    @Override
+    public List<DeviceView> findAllViews(Set<DeviceView.Field> fields) {
+        return merge(all(shard -> shard.jdbc.query("select " + columns(fields) + " from device order by id",
+                view(fields))), DeviceView::getId, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Page<DeviceView> findAllViews(Set<DeviceView.Field> fields, Pageable pageable) {
+        return page(pageable, "select " + columns(fields) + " from device", view(fields), DeviceView::getId);
+    }
+
+    @Override
+    public Slice<DeviceView> findViewsAfter(long lastId, int size, Set<DeviceView.Field> fields) {
+        return after(lastId, size, "select " + columns(fields) + " from device", view(fields), DeviceView::getId);
+    }
+
+    @Override
+    public List<DeviceView> findViewsById(List<Long> ids, Set<DeviceView.Field> fields) {
+        String sql = "select " + columns(fields) + " from device where id in (:ids)";
+        return concat(perShard(ids, (shard, shardIds) -> shard.jdbc.query(sql, Map.of("ids", shardIds), view(fields))));
+    }
+
+    @Override
+    public List<DeviceView> findViewsByBrandContainingIgnoreCase(String term, Set<DeviceView.Field> fields) {
+        return brandContaining(term, columns(fields), view(fields), DeviceView::getId);
+    }
+
+    /**
+     * Merges one keyset cursor per shard, every shard is read FETCH_SIZE rows at a time as the merge reaches them.
+     */
+    @Override
+    public void forEach(Consumer<Device> action) {
+        PriorityQueue<ShardCursor> cursors = new PriorityQueue<>(Comparator.comparingLong(ShardCursor::peekId));
+        for (Shard shard : shards) {
+            ShardCursor cursor = new ShardCursor(shard);
+            if (cursor.fill()) {
+                cursors.add(cursor);
+            }
+        }
+        while (!cursors.isEmpty()) {
+            ShardCursor cursor = cursors.poll();
+            action.accept(cursor.rows.poll());
+            if (!cursor.rows.isEmpty() || cursor.fill()) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    public int updateNonNullFields(Device patch) {
+        if (patch.getName() == null && patch.getBrand() == null) {
+            throw new IllegalArgumentException("At least one field of the patch must be set");
+        }
+        Shard shard = shard(patch.getId());
+        if (shard == null) {
+            return 0;
+        }
+        StringBuilder sql = new StringBuilder("update device set updated_at = :updatedAt, version = version + 1");
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("id", patch.getId())
+                .addValue("updatedAt", Timestamp.from(Instant.now()));
+        if (patch.getName() != null) {
+            sql.append(", name = :name");
+            parameters.addValue("name", patch.getName());
+        }
+        if (patch.getBrand() != null) {
+            sql.append(", brand = :brand");
+            parameters.addValue("brand", patch.getBrand());
+        }
+        sql.append(" where id = :id");
+        if (patch.getVersion() != null) {
+            sql.append(" and version = :version");
+            parameters.addValue("version", patch.getVersion());
+        }
+        if (patch.getVersion() != null) {
+            int updated = shard.jdbc.update(sql.toString(), parameters);
+            if (updated == 1) {
+                patch.setVersion(patch.getVersion() + 1);
+            }
+            return updated;
+        }
+        // The row stays locked until the commit, so the version read back is the one this update wrote.
+        return shard.transaction.execute(status -> {
+            if (shard.jdbc.update(sql.toString(), parameters) == 0) {
+                return 0;
+            }
+            patch.setVersion(shard.jdbc.queryForObject("select version from device where id = :id",
+                    Map.of("id", patch.getId()), Long.class));
+            return 1;
+        });
+    }
+
+    @Override
+    public boolean existsById(long id) {
+        Shard shard = shard(id);
+        return shard != null && !shard.jdbc.queryForList("select id from device where id = :id", Map.of("id", id),
+                Long.class).isEmpty();
+    }
+
+    @Override
+    public int deleteById(long id) {
+        Shard shard = shard(id);
+        return shard == null ? 0 : shard.jdbc.update("delete from device where id = :id", Map.of("id", id));
+    }
+
+    @Override
+    public List<Long> deleteAllById(List<Long> ids) {
+        return concat(perShard(ids, (shard, shardIds) -> deleteReturningIds(shard,
+                "id in (:ids)", Map.of("ids", shardIds))));
+    }
+
+    @Override
+    public List<Long> deleteAllByBrandAndId(String brand, List<Long> ids) {
+        return concat(perShard(ids, (shard, shardIds) -> deleteReturningIds(shard,
+                "id in (:ids) and brand = :brand", Map.of("ids", shardIds, "brand", brand))));
+    }
+
+    /**
+     * Locks the rows matching the condition, then deletes exactly those, in one transaction of the shard.
+     * @return List<Long> Ids of the deleted rows
+     */
+    private static List<Long> deleteReturningIds(Shard shard, String condition, Map<String, ?> parameters) {
+        return shard.transaction.execute(status -> {
+            List<Long> found = shard.jdbc.queryForList("select id from device where " + condition + " for update",
+                    parameters, Long.class);
+            if (!found.isEmpty()) {
+                shard.jdbc.update("delete from device where id in (:found)", Map.of("found", found));
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public List<Long> findIdsByBrand(String brand, long afterId, int limit) {
+        Map<String, Object> parameters = Map.of("brand", brand, "after", afterId, "limit", limit);
+        return merge(all(shard -> shard.jdbc.queryForList(
+                "select id from device where brand = :brand and id > :after order by id limit :limit",
+                parameters, Long.class)), Long::longValue, limit);
+    }
+
+    @Override
+    public Map<String, Long> countByBrand() {
+        Map<String, Long> counts = new HashMap<>();
+        for (List<Map<String, Object>> rows : all(shard -> shard.jdbc.queryForList(
+                "select brand, count(*) as devices from device group by brand", Map.of()))) {
+            for (Map<String, Object> row : rows) {
+                counts.merge((String) row.get("brand"), ((Number) row.get("devices")).longValue(), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        List<Long> devices = all(shard -> shard.jdbc.queryForObject("select count(*) from device", Map.of(), Long.class));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", "sharded");
+        stats.put("shards", shards.length);
+        stats.put("devices", devices.stream().mapToLong(Long::longValue).sum());
+        stats.put("devicesPerShard", devices);
+        return stats;
+    }
+
+    @PreDestroy
+    public void close() {
+        fanOut.shutdownNow();
+        pools.forEach(HikariDataSource::close);
+    }
+
+    private Shard shard(long id) {
+        int shard = shardOf(id);
+        return shard < shards.length ? shards[shard] : null;
+    }
+
+    private <T> Page<T> page(Pageable pageable, String select, RowMapper<T> mapper, ToLongFunction<T> id) {
+        if (pageable.isUnpaged()) {
+            List<T> content = merge(all(shard -> shard.jdbc.query(select + " order by id", mapper)), id, Integer.MAX_VALUE);
+            return new PageImpl<>(content, pageable, content.size());
+        }
+        long end = pageable.getOffset() + pageable.getPageSize();
+        List<T> first = merge(all(shard -> shard.jdbc.query(select + " order by id limit :limit",
+                Map.of("limit", end), mapper)), id, (int) Math.min(end, Integer.MAX_VALUE));
+        int from = (int) Math.min(pageable.getOffset(), first.size());
+        long total = all(shard -> shard.jdbc.queryForObject("select count(*) from device", Map.of(), Long.class))
+                .stream().mapToLong(Long::longValue).sum();
+        return new PageImpl<>(new ArrayList<>(first.subList(from, first.size())), pageable, total);
+    }
+
+    private <T> Slice<T> after(long lastId, int size, String select, RowMapper<T> mapper, ToLongFunction<T> id) {
+        Map<String, Object> parameters = Map.of("after", lastId, "limit", size + 1);
+        List<T> rows = merge(all(shard -> shard.jdbc.query(select + " where id > :after order by id limit :limit",
+                parameters, mapper)), id, size + 1);
+        boolean hasNext = rows.size() > size;
+        return new SliceImpl<>(hasNext ? rows.subList(0, size) : rows, PageRequest.of(0, size), hasNext);
+    }
+
+    private <T> List<T> brandContaining(String term, String columns, RowMapper<T> mapper, ToLongFunction<T> id) {
+        Map<String, Object> parameters = Map.of("term", "%" + EscapeCharacter.DEFAULT.escape(term) + "%");
+        return merge(all(shard -> shard.jdbc.query("select " + columns
+                + " from device where upper(brand) like upper(:term) escape '\\' order by id", parameters, mapper)),
+                id, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Runs the query on every shard in parallel.
+     * @return The answers in shard order
+     */
+    private <T> List<T> all(Function<Shard, T> query) {
+        if (shards.length == 1) {
+            return Collections.singletonList(query.apply(shards[0]));
+        }
+        List<CompletableFuture<T>> answers = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            answers.add(CompletableFuture.supplyAsync(() -> query.apply(shard), fanOut));
+        }
+        return join(answers);
+    }
+
+    /**
+     * Splits the ids by shard, drops those of no shard, and runs the query on the shards that got ids, in parallel.
+     */
+    private <T> List<T> perShard(List<Long> ids, ShardQuery<T> query) {
+        Map<Shard, List<Long>> byShard = new LinkedHashMap<>();
+        for (Long id : ids) {
+            Shard shard = id != null ? shard(id) : null;
+            if (shard != null) {
+                byShard.computeIfAbsent(shard, key -> new ArrayList<>()).add(id);
+            }
+        }
+        if (byShard.size() <= 1) {
+            List<T> answers = new ArrayList<>(1);
+            byShard.forEach((shard, shardIds) -> answers.add(query.run(shard, shardIds)));
+            return answers;
+        }
+        List<CompletableFuture<T>> answers = new ArrayList<>(byShard.size());
+        byShard.forEach((shard, shardIds) -> answers.add(CompletableFuture.supplyAsync(() -> query.run(shard, shardIds), fanOut)));
+        return join(answers);
+    }
+
+    private static <T> List<T> join(List<CompletableFuture<T>> answers) {
+        List<T> results = new ArrayList<>(answers.size());
+        for (CompletableFuture<T> answer : answers) {
+            try {
+                results.add(answer.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merges lists that are each ordered by id into one list ordered by id.
+     * @param limit Number of rows to keep at most
+     */
+    private static <T> List<T> merge(List<List<T>> lists, ToLongFunction<T> id, int limit) {
+        if (lists.size() == 1) {
+            List<T> only = lists.get(0);
+            return only.size() > limit ? new ArrayList<>(only.subList(0, limit)) : only;
+        }
+        int total = 0;
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Comparator.comparingLong(head -> id.applyAsLong(lists.get(head[0]).get(head[1]))));
+        for (int i = 0; i < lists.size(); i++) {
+            total += lists.get(i).size();
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<T> merged = new ArrayList<>(Math.min(total, limit));
+        while (!heads.isEmpty() && merged.size() < limit) {
+            int[] head = heads.poll();
+            List<T> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static <T> List<T> concat(List<List<T>> lists) {
+        return lists.stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    private static String columns(Set<DeviceView.Field> fields) {
+        if (!fields.contains(DeviceView.Field.ID)) {
+            throw new IllegalArgumentException("The fields of a DeviceView must contain the id");
+        }
+        return fields.stream().map(VIEW_COLUMNS::get).collect(Collectors.joining(", "));
+    }
+
+    private static RowMapper<DeviceView> view(Set<DeviceView.Field> fields) {
+        return (rs, row) -> {
+            DeviceView view = new DeviceView();
+            for (DeviceView.Field field : fields) {
+                field.set(view, read(rs, field));
+            }
+            return view;
+        };
+    }
+
+    private static Object read(ResultSet rs, DeviceView.Field field) throws SQLException {
+        switch (field) {
+            case ID:
+                return rs.getLong("id");
+            case CREATED_AT:
+                return rs.getTimestamp("created_at");
+            default:
+                return rs.getString(VIEW_COLUMNS.get(field));
+        }
+    }
+
+    private static List<HikariDataSource> pools(String[] urls, String username, String password, int poolSize) {
+        List<HikariDataSource> pools = new ArrayList<>(urls.length);
+        for (int i = 0; i < urls.length; i++) {
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("device-shard-" + i);
+            config.setJdbcUrl(urls[i].trim());
+            config.setUsername(username);
+            config.setPassword(password);
+            config.setMaximumPoolSize(poolSize);
+            pools.add(new HikariDataSource(config));
+        }
+        return pools;
+    }
+
+    @FunctionalInterface
+    private interface ShardQuery<T> {
+        T run(Shard shard, List<Long> ids);
+    }
+
+    private static final class Shard {
+        private final int number;
+        private final NamedParameterJdbcTemplate jdbc;
+        private final TransactionTemplate transaction;
+        private final ReentrantLock idLock = new ReentrantLock();
+        private long nextLocalId;
+        private long localIdLimit;
+
+        private Shard(int number, DataSource dataSource) {
+            this.number = number;
+            this.jdbc = new NamedParameterJdbcTemplate(dataSource);
+            this.transaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+            for (String statement : SCHEMA) {
+                jdbc.getJdbcOperations().execute(statement);
+            }
+        }
+
+        /**
+         * Hands out the ids of the block reserved by the last sequence call, reserves the next block when it is used up.
+         * A ReentrantLock and not synchronized, the sequence call blocks on JDBC and would pin a virtual thread.
+         */
+        private long nextId() {
+            idLock.lock();
+            try {
+                if (nextLocalId == localIdLimit) {
+                    nextLocalId = jdbc.queryForObject("select next value for device_seq", Map.of(), Long.class);
+                    localIdLimit = nextLocalId + ID_BLOCK;
+                }
+                return nextLocalId++ << SHARD_BITS | number;
+            } finally {
+                idLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Keyset cursor over the Devices of one shard, ordered by id.
+     */
+    private static final class ShardCursor {
+        private final Shard shard;
+        private final ArrayDeque<Device> rows = new ArrayDeque<>();
+        private long lastId;
+        private boolean exhausted;
+
+        private ShardCursor(Shard shard) {
+            this.shard = shard;
+        }
+
+        private long peekId() {
+            return rows.peek().getId();
+        }
+
+        /**
+         * Reads the next rows of the shard into the empty buffer.
+         * @return false when the shard has no more rows
+         */
+        private boolean fill() {
+            if (exhausted) {
+                return false;
+            }
+            List<Device> next = shard.jdbc.query("select " + COLUMNS + " from device where id > :after order by id limit :limit",
+                    Map.of("after", lastId, "limit", FETCH_SIZE), DEVICE);
+            exhausted = next.size() < FETCH_SIZE;
+            if (next.isEmpty()) {
+                return false;
+            }
+            rows.addAll(next);
+            lastId = next.get(next.size() - 1).getId();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.phone.device.threads;
+
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs every request on its own virtual thread instead of the Tomcat worker pool when device.threads.virtual is set.
+ * A request waiting on JDBC then parks its virtual thread and leaves the carrier thread to other requests, so the
+ * number of requests in flight is bounded by server.tomcat.max-connections and the connection pool, no longer by
+ * server.tomcat.threads.max. The async parts of requests, such as the NDJSON export, get virtual threads as well.
+ *
+ * Needs Java 21 or later. On older runtimes a warning is logged and requests keep the platform thread pool.
+ */
+@Configuration
+public class ThreadsConfiguration implements WebMvcConfigurer {
+
+    private static final Logger log = LoggerFactory.getLogger(ThreadsConfiguration.class);
+
+    private final ExecutorService virtualThreads;
+
+    @Autowired
+    public ThreadsConfiguration(@Value("${device.threads.virtual:false}") boolean virtual) {
+        this.virtualThreads = virtual ? VirtualThreads.newPerTaskExecutor("device-request-").orElse(null) : null;
+        if (virtual && virtualThreads == null) {
+            log.warn("device.threads.virtual is set but Java {} has no virtual threads, requests run on the Tomcat thread pool",
+                    Runtime.version().feature());
+        }
+    }
+
+    /**
+     * Whether requests run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtualThreads != null;
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadRequests() {
+        return protocolHandler -> {
+            if (virtualThreads != null) {
+                protocolHandler.setExecutor(virtualThreads);
+            }
+        };
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        if (virtualThreads != null) {
+            configurer.setTaskExecutor(new ConcurrentTaskExecutor(virtualThreads));
+        }
+    }
+
+    /**
+     * Tomcat does not shut down an executor it has been given.
+     */
+    @PreDestroy
+    public void close() {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.phone.device.threads;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of Java 21 and later. The application is compiled for Java 11, so the API is looked up by
+ * reflection and is simply missing on older runtimes, or on 19 and 20 without --enable-preview.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Whether the running JVM can start virtual threads.
+     */
+    public static boolean isSupported() {
+        return factory("device-virtual-check-").isPresent();
+    }
+
+    /**
+     * An executor that starts a new virtual thread for every task, named with the given prefix and a counter.
+     * @param namePrefix Prefix of the thread names
+     * @return The executor, empty when the JVM has no virtual threads
+     */
+    public static Optional<ExecutorService> newPerTaskExecutor(String namePrefix) {
+        return factory(namePrefix).map(factory -> {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads are supported but no executor could be created", e);
+            }
+        });
+    }
+
+    private static Optional<ThreadFactory> factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return Optional.of((ThreadFactory) builderType.getMethod("factory").invoke(builder));
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+            return Optional.empty();
+        } catch (InvocationTargetException e) {
+            // Java 19 and 20 have the methods but refuse them without --enable-preview.
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                return Optional.empty();
+            }
+            throw new IllegalStateException("Virtual threads could not be created", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.truphone.cache;
+
+import com.phone.device.cache.SingleFlight;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrent_callers_share_one_query() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger queries = new AtomicInteger();
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> flights.run("apple", () -> {
+                await(release);
+                return "result " + queries.incrementAndGet();
+            })));
+        }
+        awaitJoined(7);
+        release.countDown();
+
+        String first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<String> result : results) {
+            assertSame(first, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, queries.get());
+        assertEquals(1, flights.queries());
+        assertEquals(0, flights.running());
+
+        assertEquals("next", flights.run("apple", () -> "next"));
+        assertEquals(2, flights.queries());
+    }
+
+    @Test
+    public void forgotten_query_is_not_joined() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> beforeWrite = executor.submit(() -> flights.run("apple", () -> {
+            await(release);
+            return "before";
+        }));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (flights.running() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Future<String> joined = executor.submit(() -> flights.run("apple", () -> "not run"));
+        awaitJoined(1);
+
+        flights.forget("apple");
+        assertEquals("after", flights.run("apple", () -> "after"));
+        release.countDown();
+        assertEquals("before", beforeWrite.get(10, TimeUnit.SECONDS));
+        assertEquals("before", joined.get(10, TimeUnit.SECONDS));
+        assertEquals(2, flights.queries());
+    }
+
+    @Test
+    public void failure_reaches_every_caller() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> flights.run("apple", () -> {
+                await(release);
+                throw new IllegalStateException("connection refused");
+            })));
+        }
+        awaitJoined(3);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(0, flights.running());
+    }
+
+    private void awaitJoined(long joined) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (flights.joined() < joined && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(joined, flights.joined());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
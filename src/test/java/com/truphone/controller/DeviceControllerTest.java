@@ -1,9 +1,17 @@
 package com.truphone.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.phone.device.DeviceManagerApplication;
+import com.phone.device.controller.DeviceController;
+import com.phone.device.dto.DeviceView;
+import com.phone.device.dto.KeysetSlice;
 import com.phone.device.entity.Device;
 import com.phone.device.jpa.DeviceRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
@@ -11,19 +19,40 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.hamcrest.Matchers.*;
 
@@ -32,6 +61,7 @@ import static org.hamcrest.Matchers.*;
         webEnvironment = SpringBootTest.WebEnvironment.MOCK,
         classes = DeviceManagerApplication.class)
 @AutoConfigureMockMvc
+@TestPropertySource(properties = {"device.search.index.enabled=false", "device.brands.enabled=false"})
 public class DeviceControllerTest {
 
     private static final ObjectMapper om = new ObjectMapper();
@@ -39,9 +69,32 @@ public class DeviceControllerTest {
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @MockBean
     private DeviceRepository deviceRepository;
 
+    /**
+     * The real repository assigns the id on save, listeners of DeviceEvent rely on it.
+     */
+    @Before
+    public void assign_ids_on_save() {
+        AtomicLong ids = new AtomicLong(100);
+        Mockito.when(deviceRepository.saveAndFlush(any(Device.class))).thenAnswer(invocation -> {
+            Device device = invocation.getArgument(0);
+            if (device.getId() == null) {
+                device.setId(ids.incrementAndGet());
+            }
+            return device;
+        });
+        Mockito.when(deviceRepository.saveAll(any())).thenAnswer(invocation -> {
+            List<Device> devices = invocation.getArgument(0);
+            devices.forEach(device -> device.setId(ids.incrementAndGet()));
+            return devices;
+        });
+    }
+
     @Test
     public void create_device_empty_values_400() throws Exception {
         String device = "{}";
@@ -126,6 +179,59 @@ public class DeviceControllerTest {
 
     }
 
+    @Test
+    public void update_device_if_match_412() throws Exception {
+        Mockito.when(deviceRepository.updateNonNullFields(argThat(patch -> patch.getVersion() == 4L))).thenReturn(1);
+        Mockito.when(deviceRepository.existsById(31L)).thenReturn(true);
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":31, \"name\":\"3310\"}")
+                .header(HttpHeaders.IF_MATCH, "\"30-4\", \"31-4\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isNoContent())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"31-5\""));
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":31, \"name\":\"3310\"}")
+                .header(HttpHeaders.IF_MATCH, "\"31-3\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isPreconditionFailed());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":31, \"name\":\"3310\", \"version\":3}")
+                .header(HttpHeaders.IF_MATCH, "\"31-4\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":31, \"name\":\"3310\"}")
+                .header(HttpHeaders.IF_MATCH, "\"32-4\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isPreconditionFailed());
+
+        verify(deviceRepository,times(2)).updateNonNullFields(any(Device.class));
+        verify(deviceRepository,times(1)).existsById(31L);
+    }
+
+    @Test
+    public void update_missing_device_if_match_412() throws Exception {
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":32, \"name\":\"3310\"}")
+                .header(HttpHeaders.IF_MATCH, "*")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isPreconditionFailed());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":32, \"name\":\"3310\"}")
+                .header(HttpHeaders.IF_MATCH, "\"32-0\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isPreconditionFailed());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":32, \"name\":\"3310\", \"version\":0}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isNotFound());
+
+        verify(deviceRepository,times(3)).existsById(32L);
+    }
+
     @Test
     public void update_device_no_id_400() throws Exception {
 
@@ -151,19 +257,17 @@ public class DeviceControllerTest {
                 "    \"id\":1," +
                 "    \"brand\":\"nokia\"\n" +
                 "}";
-        Device oldDevice = new Device();
-        oldDevice.setId(Long.getLong("1"));
-        oldDevice.setName("Galaxy S5");
-        oldDevice.setBrand("Samsung");
-        Mockito.when(deviceRepository.getById(anyLong())).thenReturn(oldDevice);
+        Mockito.when(deviceRepository.updateNonNullFields(any(Device.class))).thenReturn(1);
         mockMvc.perform(patch("/api/device")
                 .content(device)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
                 .andDo(print())
                 .andExpect(status().isNoContent());
 
-        verify(deviceRepository,times(1)).getById(anyLong());
-        verify(deviceRepository,times(1)).saveAndFlush(any(Device.class));
+        verify(deviceRepository,times(1)).updateNonNullFields(argThat(patch ->
+                patch.getId() == 1L && patch.getName() == null && patch.getBrand().equals("nokia")));
+        verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
 
     }
 
@@ -174,19 +278,17 @@ public class DeviceControllerTest {
                 "    \"id\":1," +
                 "    \"name\":\"3310\"\n" +
                 "}";
-        Device oldDevice = new Device();
-        oldDevice.setId(Long.getLong("1"));
-        oldDevice.setName("Galaxy S5");
-        oldDevice.setBrand("Samsung");
-        Mockito.when(deviceRepository.getById(anyLong())).thenReturn(oldDevice);
+        Mockito.when(deviceRepository.updateNonNullFields(any(Device.class))).thenReturn(1);
         mockMvc.perform(patch("/api/device")
                 .content(device)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
                 .andDo(print())
                 .andExpect(status().isNoContent());
 
-        verify(deviceRepository,times(1)).getById(anyLong());
-        verify(deviceRepository,times(1)).saveAndFlush(any(Device.class));
+        verify(deviceRepository,times(1)).updateNonNullFields(argThat(patch ->
+                patch.getId() == 1L && patch.getName().equals("3310") && patch.getBrand() == null));
+        verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
 
     }
 
@@ -202,6 +304,7 @@ public class DeviceControllerTest {
                 .andExpect(jsonPath("$.message",is("Device Not found or Invalid Device Id.")));
 
         verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).updateNonNullFields(any(Device.class));
         verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
 
     }
@@ -220,6 +323,7 @@ public class DeviceControllerTest {
                 .andExpect(status().isBadRequest());
 
         verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).updateNonNullFields(any(Device.class));
         verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
 
     }
@@ -238,6 +342,7 @@ public class DeviceControllerTest {
                 .andExpect(jsonPath("$.message",is("At least one of name or device value are needed.")));
 
         verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).updateNonNullFields(any(Device.class));
         verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
 
     }
@@ -250,19 +355,33 @@ public class DeviceControllerTest {
                 "    \"name\":\"3310\",\n" +
                 "    \"brand\":\"nokia\"\n" +
                 "}";
-        Device oldDevice = new Device();
-        oldDevice.setId(1L);
-        oldDevice.setBrand("nokia");
-        oldDevice.setName("5510");
-        Mockito.when(deviceRepository.getById(1L)).thenReturn(oldDevice);
+        Mockito.when(deviceRepository.updateNonNullFields(any(Device.class))).thenReturn(1);
         mockMvc.perform(patch("/api/device")
                 .content(device)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
                 .andDo(print())
                 .andExpect(status().isNoContent());
 
-        verify(deviceRepository,times(1)).getById(anyLong());
-        verify(deviceRepository,times(1)).saveAndFlush(any(Device.class));
+        verify(deviceRepository,times(1)).updateNonNullFields(any(Device.class));
+        verify(deviceRepository,times(0)).getById(anyLong());
+        verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
+    }
+
+    @Test
+    public void update_device_missing_id_404() throws Exception {
+
+        String device = "{\n" +
+                "    \"id\":8888," +
+                "    \"name\":\"3310\"\n" +
+                "}";
+        mockMvc.perform(patch("/api/device")
+                .content(device)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message",is("Device Not found or Invalid Device Id.")));
+
+        verify(deviceRepository,times(1)).updateNonNullFields(any(Device.class));
     }
 
     @Test
@@ -336,26 +455,83 @@ public class DeviceControllerTest {
     }
 
     @Test
-    public void delete_wrong_device_id_400() throws Exception {
+    public void delete_wrong_device_id_404() throws Exception {
         mockMvc.perform(delete("/api/device/11")
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
                 .andDo(print())
-                .andExpect(status().isBadRequest());
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message",is("Device Not found or Invalid Device Id.")));
 
+        verify(deviceRepository,times(1)).deleteWhereId(11L);
         verify(deviceRepository,times(0)).deleteById(anyLong());
-
     }
 
     @Test
     public void delete_device_id_200() throws Exception {
-        Mockito.when(deviceRepository.existsById(11L)).thenReturn(true);
-        doNothing().when(deviceRepository).deleteById(11L);
+        Mockito.when(deviceRepository.deleteWhereId(11L)).thenReturn(1);
         mockMvc.perform(delete("/api/device/11")
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
                 .andDo(print())
                 .andExpect(status().isNoContent());
 
-        verify(deviceRepository,times(1)).deleteById(anyLong());
+        verify(deviceRepository,times(1)).deleteWhereId(11L);
+        verify(deviceRepository,times(0)).existsById(anyLong());
+        verify(deviceRepository,times(0)).deleteById(anyLong());
+    }
+
+    @Test
+    public void delete_devices_by_id_200() throws Exception {
+        Device device = new Device();
+        device.setId(43L);
+        device.setName("iPhone 12");
+        device.setBrand("Apple");
+        Mockito.when(deviceRepository.findById(43L)).thenReturn(java.util.Optional.of(device));
+        Mockito.when(deviceRepository.deleteWhereIdInReturningIds(any())).thenReturn(List.of(43L));
+        Mockito.when(deviceRepository.findAllById(any())).thenReturn(List.of());
+        mockMvc.perform(get("/api/device/43"))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(delete("/api/device")
+                .content("[43, 44, 43]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.requested",is(2)))
+                .andExpect(jsonPath("$.deleted",is(1)));
+
+        Mockito.when(deviceRepository.findById(43L)).thenReturn(java.util.Optional.empty());
+        mockMvc.perform(get("/api/device/43"))
+                .andExpect(status().isNotFound());
+        verify(deviceRepository,times(1)).deleteWhereIdInReturningIds(List.of(43L, 44L));
+        verify(deviceRepository,times(0)).deleteById(anyLong());
+    }
+
+    @Test
+    public void delete_devices_null_id_400() throws Exception {
+        mockMvc.perform(delete("/api/device")
+                .content("[1, null]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+
+        verify(deviceRepository,times(0)).deleteWhereIdInReturningIds(any());
+    }
+
+    @Test
+    public void delete_devices_by_brand_200() throws Exception {
+        Mockito.when(deviceRepository.findIdsByBrand(eq("Nokia"), eq(0L), any())).thenReturn(List.of(5L, 6L));
+        Mockito.when(deviceRepository.findIdsByBrand(eq("Nokia"), eq(6L), any())).thenReturn(List.of());
+        Mockito.when(deviceRepository.deleteWhereBrandAndIdInReturningIds("Nokia", List.of(5L, 6L))).thenReturn(List.of(5L, 6L));
+
+        mockMvc.perform(delete("/api/device")
+                .param("brand", "Nokia"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(2)))
+                .andExpect(jsonPath("$.requested").doesNotExist());
+
+        verify(deviceRepository,times(1)).deleteWhereBrandAndIdInReturningIds("Nokia", List.of(5L, 6L));
+        verify(deviceRepository,times(0)).findAllById(any());
     }
 
     @Test
@@ -378,6 +554,115 @@ public class DeviceControllerTest {
         verify(deviceRepository,times(1)).findAll();
     }
 
+    @Test
+    public void list_device_cbor_200() throws Exception {
+        Device device = new Device();
+        device.setId(1L);
+        device.setName("iPhone 15");
+        device.setBrand("Apple");
+        Mockito.when(deviceRepository.findAll()).thenReturn(List.of(device));
+        byte[] body = mockMvc.perform(get("/api/device/list")
+                .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        JsonNode devices = new ObjectMapper(new CBORFactory()).readTree(body);
+        assertEquals("iPhone 15", devices.get(0).get("name").asText());
+        assertEquals("Apple", devices.get(0).get("brand").asText());
+    }
+
+    @Test
+    public void create_device_batch_smile_200() throws Exception {
+        ObjectMapper smile = new ObjectMapper(new SmileFactory());
+        byte[] body = mockMvc.perform(post("/api/device/batch")
+                .content(smile.writeValueAsBytes(List.of(Map.of("name", "3310", "brand", "nokia"))))
+                .contentType(DeviceController.APPLICATION_SMILE_VALUE)
+                .accept(DeviceController.APPLICATION_SMILE_VALUE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(DeviceController.APPLICATION_SMILE_VALUE))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertEquals(201, smile.readTree(body).get(0).get("status").asInt());
+    }
+
+    @Test
+    public void list_device_error_is_json_400() throws Exception {
+        mockMvc.perform(get("/api/device/list").param("fields", "serial")
+                .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.message",containsString("Unknown field serial")));
+    }
+
+    @Test
+    public void list_device_error_escapes_fields_400() throws Exception {
+        String fields = "name,a\"}\\";
+        for (MvcResult result : List.of(
+                mockMvc.perform(get("/api/device/list").param("fields", fields)).andReturn(),
+                mockMvc.perform(get("/api/device/paged-list").param("fields", fields)).andReturn(),
+                mockMvc.perform(get("/api/device/search/sa").param("fields", fields)).andReturn())) {
+            assertEquals(400, result.getResponse().getStatus());
+            JsonNode error = om.readTree(result.getResponse().getContentAsString());
+            assertEquals(1, error.size());
+            assertEquals("Unknown field a\"}\\, fields can be id, name, brand and createdAt.", error.get("message").asText());
+        }
+    }
+
+    @Test
+    public void list_device_fields_200() throws Exception {
+        DeviceView view = new DeviceView();
+        view.setId(1L);
+        view.setName("iPhone 15");
+        Mockito.when(deviceRepository.findAllViews(EnumSet.of(DeviceView.Field.ID, DeviceView.Field.NAME)))
+                .thenReturn(List.of(view));
+        mockMvc.perform(get("/api/device/list").param("fields", "name"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id",is(1)))
+                .andExpect(jsonPath("$[0].name",is("iPhone 15")))
+                .andExpect(jsonPath("$[0].brand").doesNotExist())
+                .andExpect(jsonPath("$[0].createdAt").doesNotExist());
+
+        verify(deviceRepository,times(0)).findAll();
+    }
+
+    @Test
+    public void list_device_unknown_field_400() throws Exception {
+        mockMvc.perform(get("/api/device/list").param("fields", "id,updatedAt"))
+                .andDo(print())
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message",containsString("Unknown field updatedAt")));
+    }
+
+    @Test
+    public void search_device_fields_200() throws Exception {
+        DeviceView view = new DeviceView();
+        view.setId(2L);
+        view.setBrand("Samsung");
+        Mockito.when(deviceRepository.findViewsByBrandContainingIgnoreCase("sa", EnumSet.of(DeviceView.Field.ID, DeviceView.Field.BRAND)))
+                .thenReturn(List.of(view));
+        mockMvc.perform(get("/api/device/search/sa").param("fields", "id,brand"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].brand",is("Samsung")))
+                .andExpect(jsonPath("$[0].name").doesNotExist());
+
+        verify(deviceRepository,times(0)).findByBrandContainingIgnoreCase(anyString());
+    }
+
+    @Test
+    public void brands_from_store_200() throws Exception {
+        Mockito.when(deviceRepository.countByBrand()).thenReturn(List.of(
+                new Object[]{"Apple", 2L}, new Object[]{"Samsung", 5L}, new Object[]{"Sony", 5L}));
+        mockMvc.perform(get("/api/device/brands").param("prefix", "s").param("top", "1"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"Samsung\":5}", true));
+        mockMvc.perform(get("/api/device/brands").param("top", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void search_device_200() throws Exception {
         Device device1 = new Device();
@@ -400,4 +685,492 @@ public class DeviceControllerTest {
         verify(deviceRepository,times(1)).findByBrandContainingIgnoreCase(anyString());
     }
 
+    @Test
+    public void create_device_batch_partial_200() throws Exception {
+        String devices = "[\n" +
+                "    {\"name\":\"3310\", \"brand\":\"nokia\"},\n" +
+                "    {\"name\":\"Galaxy S4\"},\n" +
+                "    {\"name\":\"iPhone 12\", \"brand\":\"Apple\"}\n" +
+                "]";
+        mockMvc.perform(post("/api/device/batch")
+                .content(devices)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$",hasSize(3)))
+                .andExpect(jsonPath("$[0].status",is(201)))
+                .andExpect(jsonPath("$[1].index",is(1)))
+                .andExpect(jsonPath("$[1].status",is(400)))
+                .andExpect(jsonPath("$[1].errors",hasItem("brand is required.")))
+                .andExpect(jsonPath("$[2].status",is(201)));
+
+        verify(deviceRepository,times(1)).saveAll(argThat(chunk -> ((List<?>) chunk).size() == 2));
+        verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
+    }
+
+    @Test
+    public void create_device_batch_invalid_json_body() throws Exception {
+        mockMvc.perform(post("/api/device/batch")
+                .content("[{\"name\":\"3310\", \"brand\":nokia}]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().is4xxClientError());
+
+        verify(deviceRepository,times(0)).saveAll(any());
+    }
+
+    @Test
+    public void list_device_ndjson_200() throws Exception {
+        Device device1 = new Device();
+        device1.setId(1L);
+        device1.setName("3310");
+        device1.setBrand("nokia");
+        device1.setVersion(0L);
+        Device device2 = new Device();
+        device2.setId(2L);
+        device2.setName("iPhone 12");
+        device2.setBrand("Apple");
+        device2.setVersion(3L);
+        Mockito.when(deviceRepository.streamAllBy()).thenReturn(Stream.of(device1, device2));
+
+        MvcResult result = mockMvc.perform(get("/api/device/list")
+                .header(HttpHeaders.ACCEPT, MediaType.APPLICATION_NDJSON_VALUE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string(
+                        "{\"id\":1,\"name\":\"3310\",\"brand\":\"nokia\",\"createdAt\":null,\"version\":0}\n" +
+                        "{\"id\":2,\"name\":\"iPhone 12\",\"brand\":\"Apple\",\"createdAt\":null,\"version\":3}\n"));
+
+        verify(deviceRepository,times(1)).streamAllBy();
+        verify(deviceRepository,times(0)).findAll();
+    }
+
+    @Test
+    public void keyset_list_next_page_200() throws Exception {
+        Device device1 = new Device();
+        device1.setId(4L);
+        device1.setName("3310");
+        device1.setBrand("nokia");
+        Device device2 = new Device();
+        device2.setId(7L);
+        device2.setName("iPhone 12");
+        device2.setBrand("Apple");
+        Mockito.when(deviceRepository.findByIdGreaterThan(eq(3L), any()))
+                .thenReturn(new SliceImpl<>(List.of(device1, device2), PageRequest.of(0, 2), true));
+
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", KeysetSlice.encodeCursor(3L))
+                .param("size", "2"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content",hasSize(2)))
+                .andExpect(jsonPath("$.hasNext",is(true)))
+                .andExpect(jsonPath("$.next",is(KeysetSlice.encodeCursor(7L))))
+                .andExpect(jsonPath("$.totalElements").doesNotExist());
+
+        verify(deviceRepository,times(1)).findByIdGreaterThan(eq(3L), any());
+        verify(deviceRepository,times(0)).count();
+    }
+
+    @Test
+    public void keyset_list_first_and_last_page_200() throws Exception {
+        Mockito.when(deviceRepository.findByIdGreaterThan(eq(0L), any()))
+                .thenReturn(new SliceImpl<>(List.of(), PageRequest.of(0, 3), false));
+
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", ""))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.hasNext",is(false)))
+                .andExpect(jsonPath("$.next").doesNotExist());
+    }
+
+    @Test
+    public void keyset_list_invalid_cursor_400() throws Exception {
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", "not-a-cursor"))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+
+        verify(deviceRepository,times(0)).findByIdGreaterThan(anyLong(), any());
+    }
+
+    @Test
+    public void get_device_cached_200() throws Exception {
+        Device device = new Device();
+        device.setId(21L);
+        device.setBrand("nokia");
+        device.setName("5510");
+        Mockito.when(deviceRepository.findById(21L)).thenReturn(java.util.Optional.of(device));
+
+        for (int i = 0; i < 3; i++) {
+            mockMvc.perform(get("/api/device/21"))
+                    .andDo(print())
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.name",is("5510")));
+        }
+
+        verify(deviceRepository,times(1)).findById(21L);
+    }
+
+    @Test
+    public void get_device_after_update_not_stale_200() throws Exception {
+        Device device = new Device();
+        device.setId(22L);
+        device.setBrand("nokia");
+        device.setName("5510");
+        Mockito.when(deviceRepository.findById(22L)).thenReturn(java.util.Optional.of(device));
+        Mockito.when(deviceRepository.updateNonNullFields(any(Device.class))).thenAnswer(invocation -> {
+            device.setName(invocation.<Device>getArgument(0).getName());
+            return 1;
+        });
+
+        mockMvc.perform(get("/api/device/22"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name",is("5510")));
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":22, \"name\":\"3310\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/device/22"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name",is("3310")));
+
+        verify(deviceRepository,times(2)).findById(22L);
+    }
+
+    @Test
+    public void get_device_not_modified_304() throws Exception {
+        Device device = new Device();
+        device.setId(23L);
+        device.setBrand("nokia");
+        device.setName("5510");
+        device.setUpdatedAt(new java.sql.Timestamp(1_600_000_000_000L));
+        device.setVersion(2L);
+        Mockito.when(deviceRepository.findById(23L)).thenReturn(java.util.Optional.of(device));
+
+        String eTag = mockMvc.perform(get("/api/device/23"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/api/device/23")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andDo(print())
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        mockMvc.perform(get("/api/device/23")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"23-0-0\""))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void get_device_encoded_per_format_cached_200() throws Exception {
+        Device device = new Device();
+        device.setId(24L);
+        device.setBrand("nokia");
+        device.setName("5510");
+        device.setUpdatedAt(new java.sql.Timestamp(1_600_000_000_000L));
+        device.setVersion(2L);
+        Mockito.when(deviceRepository.findById(24L)).thenReturn(java.util.Optional.of(device));
+
+        String json = mockMvc.perform(get("/api/device/24"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.name",is("5510")))
+                .andReturn().getResponse().getContentAsString();
+        String eTag = null;
+        for (int i = 0; i < 2; i++) {
+            MvcResult result = mockMvc.perform(get("/api/device/24")
+                    .accept(MediaType.APPLICATION_CBOR))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                    .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                    .andReturn();
+            JsonNode cbor = new ObjectMapper(new CBORFactory()).readTree(result.getResponse().getContentAsByteArray());
+            assertEquals("5510", cbor.get("name").asText());
+            eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        }
+        mockMvc.perform(get("/api/device/24"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(json));
+        mockMvc.perform(get("/api/device/24")
+                .accept(MediaType.APPLICATION_CBOR)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        verify(deviceRepository,times(1)).findById(24L);
+        mockMvc.perform(get("/api/device/cache"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.responses.enabled",is(true)))
+                .andExpect(jsonPath("$.responses.hits",greaterThanOrEqualTo(3)));
+        org.junit.Assert.assertNotNull(meterRegistry.find("device.response.cache.bytes").gauge());
+    }
+
+    @Test
+    public void search_concurrent_identical_coalesced_200() throws Exception {
+        Device device = new Device();
+        device.setId(25L);
+        device.setBrand("Launchphone");
+        device.setName("One");
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(deviceRepository.findByBrandContainingIgnoreCase("launch")).thenAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return List.of(device);
+        });
+
+        int requests = 6;
+        double coalescedBefore = meterRegistry.get("device.reads.coalesced").tag("read", "search").functionCounter().count();
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                responses.add(executor.submit(() -> mockMvc.perform(get("/api/device/search/launch"))
+                        .andExpect(status().isOk())
+                        .andReturn().getResponse().getContentAsString()));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (meterRegistry.get("device.reads.coalesced").tag("read", "search").functionCounter().count()
+                    < coalescedBefore + requests - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> response : responses) {
+                assertEquals("[{\"id\":25,\"name\":\"One\",\"brand\":\"Launchphone\",\"createdAt\":null,\"version\":null}]",
+                        response.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(deviceRepository,times(1)).findByBrandContainingIgnoreCase("launch");
+        mockMvc.perform(get("/api/device/cache"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.coalescing.search.coalesced",greaterThanOrEqualTo(requests - 1)));
+    }
+
+    @Test
+    public void list_device_not_modified_304() throws Exception {
+        String eTag = mockMvc.perform(get("/api/device/list"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/api/device/list")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andDo(print())
+                .andExpect(status().isNotModified());
+        verify(deviceRepository,times(1)).findAll();
+
+        mockMvc.perform(post("/api/device")
+                .content("{\"name\":\"3310\", \"brand\":\"nokia\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isCreated());
+        mockMvc.perform(get("/api/device/list")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, not(eTag)));
+        verify(deviceRepository,times(2)).findAll();
+    }
+
+    @Test
+    public void request_metrics_recorded() throws Exception {
+        mockMvc.perform(get("/api/device/search/nokia"))
+                .andExpect(status().isOk());
+
+        org.junit.Assert.assertTrue(meterRegistry.get("device.jdbc.statements")
+                .tag("uri", "/api/device/search/{searchTerm}")
+                .tag("method", "GET")
+                .summary().count() > 0);
+        org.junit.Assert.assertTrue(meterRegistry.get("http.server.requests")
+                .tag("uri", "/api/device/search/{searchTerm}")
+                .timer().count() > 0);
+        org.junit.Assert.assertNotNull(meterRegistry.find("cache.gets").tag("cache", "device").meter());
+    }
+
+    @Test
+    public void lookup_devices_in_request_order_200() throws Exception {
+        Device device31 = new Device();
+        device31.setId(31L);
+        device31.setName("3310");
+        device31.setBrand("nokia");
+        Device device33 = new Device();
+        device33.setId(33L);
+        device33.setName("iPhone 12");
+        device33.setBrand("Apple");
+        Mockito.when(deviceRepository.findAllById(any())).thenAnswer(invocation -> {
+            List<Device> found = new java.util.ArrayList<>();
+            for (Long id : invocation.<Iterable<Long>>getArgument(0)) {
+                if (id == 31L) found.add(device31);
+                if (id == 33L) found.add(device33);
+            }
+            return found;
+        });
+
+        mockMvc.perform(get("/api/device/lookup").param("ids", "33,32,31,33"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.devices",hasSize(2)))
+                .andExpect(jsonPath("$.devices[0].id",is(33)))
+                .andExpect(jsonPath("$.devices[1].id",is(31)))
+                .andExpect(jsonPath("$.missing",contains(32)));
+
+        mockMvc.perform(post("/api/device/lookup")
+                .content("[31, 32, 33]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.devices[0].id",is(31)))
+                .andExpect(jsonPath("$.devices[1].id",is(33)))
+                .andExpect(jsonPath("$.missing",contains(32)));
+
+        verify(deviceRepository,times(1)).findAllById(List.of(33L, 32L, 31L));
+        verify(deviceRepository,times(1)).findAllById(List.of(32L));
+        verify(deviceRepository,times(0)).findById(anyLong());
+    }
+
+    @Test
+    public void lookup_devices_invalid_id_400() throws Exception {
+        mockMvc.perform(get("/api/device/lookup").param("ids", "1,abc"))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(post("/api/device/lookup")
+                .content("[1, null]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isBadRequest());
+
+        verify(deviceRepository,times(0)).findAllById(any());
+    }
+
+    @Test
+    public void store_stats_jpa_200() throws Exception {
+        mockMvc.perform(get("/api/device/store"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.type",is("jpa")));
+        mockMvc.perform(post("/api/device/store/snapshot"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message",is("The device store does not take snapshots.")));
+    }
+
+    @Test
+    public void import_csv_partial_202() throws Exception {
+        String csv = "name,brand\n" +
+                "3310,nokia\n" +
+                "\n" +
+                "\"Galaxy, S4\",\n" +
+                "\"iPhone \"\"12\"\"\", Apple \n" +
+                "\"broken,nokia\n";
+        MvcResult result = importDevices(csv, "text/csv")
+                .andExpect(status().isAccepted())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn();
+        List<JsonNode> lines = lines(result);
+        JsonNode job = lines.get(lines.size() - 1);
+        assertEquals("RUNNING", lines.get(0).get("status").asText());
+        assertEquals(job.get("id"), lines.get(0).get("id"));
+        assertEquals("http://localhost/api/device/import/" + job.get("id").asText(),
+                result.getResponse().getHeader(HttpHeaders.LOCATION));
+        assertEquals("COMPLETED", job.get("status").asText());
+        assertEquals(4, job.get("rowsRead").asInt());
+        assertEquals(2, job.get("rowsImported").asInt());
+        assertEquals(2, job.get("rowsRejected").asInt());
+        assertTrue(job.get("rowsPerSecond").asLong() >= 0);
+        assertEquals(4, job.get("rejections").get(0).get("line").asInt());
+        assertEquals("brand is required.", job.get("rejections").get(0).get("errors").get(0).asText());
+        assertEquals(6, job.get("rejections").get(1).get("line").asInt());
+        assertEquals("malformed CSV row.", job.get("rejections").get(1).get("errors").get(0).asText());
+
+        verify(deviceRepository,times(1)).saveAll(argThat(chunk -> {
+            List<Device> devices = (List<Device>) chunk;
+            return devices.size() == 2 && devices.get(1).getName().equals("iPhone \"12\"") && devices.get(1).getBrand().equals("Apple");
+        }));
+        verify(deviceRepository,times(0)).saveAndFlush(any(Device.class));
+    }
+
+    @Test
+    public void import_ndjson_and_job_status_202() throws Exception {
+        String ndjson = "{\"name\":\"3310\",\"brand\":\"nokia\"}\n" +
+                "{\"name\":\"Galaxy S4\",\"brand\":samsung}\n" +
+                "{\"name\":\"iPhone 12\",\"brand\":\"Apple\"}";
+        List<JsonNode> lines = lines(importDevices(ndjson, MediaType.APPLICATION_NDJSON_VALUE)
+                .andExpect(status().isAccepted())
+                .andReturn());
+        JsonNode job = lines.get(lines.size() - 1);
+        assertEquals("ndjson", job.get("format").asText());
+        assertEquals(2, job.get("rowsImported").asInt());
+        assertEquals(2, job.get("rejections").get(0).get("line").asInt());
+        assertEquals("malformed JSON.", job.get("rejections").get(0).get("errors").get(0).asText());
+        String id = job.get("id").asText();
+
+        mockMvc.perform(get("/api/device/import/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status",is("COMPLETED")))
+                .andExpect(jsonPath("$.rowsRead",is(3)));
+        mockMvc.perform(get("/api/device/import"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id",hasItem(id)));
+        mockMvc.perform(get("/api/device/import/unknown"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void import_row_too_long_202() throws Exception {
+        String csv = "name,brand\n" + "x".repeat(10_000) + ",nokia\n3310,nokia\n";
+        List<JsonNode> lines = lines(importDevices(csv, "text/csv")
+                .andExpect(status().isAccepted())
+                .andReturn());
+        JsonNode job = lines.get(lines.size() - 1);
+        assertEquals(2, job.get("rowsRead").asInt());
+        assertEquals(1, job.get("rowsImported").asInt());
+        assertEquals(2, job.get("rejections").get(0).get("line").asInt());
+        assertEquals("row longer than 8192 characters.", job.get("rejections").get(0).get("errors").get(0).asText());
+    }
+
+    @Test
+    public void import_csv_without_header_400() throws Exception {
+        importDevices("3310,nokia\n", "text/csv")
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.status",is("FAILED")))
+                .andExpect(jsonPath("$.message",is("The CSV header must contain the name and brand columns.")));
+
+        verify(deviceRepository,times(0)).saveAll(any());
+    }
+
+    @Test
+    public void import_unsupported_media_type_415() throws Exception {
+        mockMvc.perform(post("/api/device/import")
+                .content("[]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isUnsupportedMediaType());
+    }
+
+    /**
+     * Posts an import and waits for the end of its streamed response.
+     */
+    private ResultActions importDevices(String body, String contentType) throws Exception {
+        MvcResult result = mockMvc.perform(post("/api/device/import")
+                .content(body)
+                .header(HttpHeaders.CONTENT_TYPE, contentType))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result))
+                .andDo(print());
+    }
+
+    private static List<JsonNode> lines(MvcResult result) throws Exception {
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : result.getResponse().getContentAsString().split("\n")) {
+            lines.add(om.readTree(line));
+        }
+        return lines;
+    }
 }
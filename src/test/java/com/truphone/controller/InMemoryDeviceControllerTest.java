@@ -0,0 +1,582 @@
+package com.truphone.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
+import com.phone.device.DeviceManagerApplication;
+import com.phone.device.dto.KeysetSlice;
+import com.phone.device.feed.DeviceChangeFeed;
+import com.phone.device.store.DeviceStore;
+import com.phone.device.store.InMemoryDeviceStore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The requests of DeviceControllerTest against the memory profile, where the Devices live in InMemoryDeviceStore and
+ * there is no datasource. Nothing is mocked, so the tests create the Devices they need and only look at those.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.MOCK,
+        classes = DeviceManagerApplication.class)
+@AutoConfigureMockMvc
+@ActiveProfiles("memory")
+public class InMemoryDeviceControllerTest {
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DeviceStore deviceStore;
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Autowired
+    private DeviceChangeFeed changeFeed;
+
+    @Test
+    public void memory_store_without_datasource() {
+        assertTrue(deviceStore instanceof InMemoryDeviceStore);
+        assertEquals(null, dataSource);
+    }
+
+    @Test
+    public void create_device_empty_values_400() throws Exception {
+        mockMvc.perform(post("/api/device")
+                .content("{}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.errors",hasItem("brand is required.")))
+                .andExpect(jsonPath("$.errors",hasItem("device is required.")));
+    }
+
+    @Test
+    public void create_device_success_200() throws Exception {
+        int before = deviceStore.findAll().size();
+        mockMvc.perform(post("/api/device")
+                .content("{\"name\":\"3310\", \"brand\":\"nokia\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isCreated());
+
+        assertEquals(before + 1, deviceStore.findAll().size());
+    }
+
+    @Test
+    public void create_device_respond_async_202() throws Exception {
+        MvcResult accepted = mockMvc.perform(post("/api/device")
+                .content("{\"name\":\"8110\", \"brand\":\"nokia\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .header("Prefer", "wait=5, respond-async"))
+                .andDo(print())
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Preference-Applied", "respond-async"))
+                .andExpect(jsonPath("$.status", anyOf(is("QUEUED"), is("CREATED"))))
+                .andReturn();
+        String trackingId = JsonPath.read(accepted.getResponse().getContentAsString(), "$.trackingId");
+        assertEquals("http://localhost/api/device/async/" + trackingId, accepted.getResponse().getHeader(HttpHeaders.LOCATION));
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        JsonNode tracking = om.readTree(mockMvc.perform(get("/api/device/async/" + trackingId))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString());
+        while (!"CREATED".equals(tracking.get("status").asText()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            tracking = om.readTree(mockMvc.perform(get("/api/device/async/" + trackingId))
+                    .andReturn().getResponse().getContentAsString());
+        }
+        assertEquals("CREATED", tracking.get("status").asText());
+
+        mockMvc.perform(get("/api/device/" + tracking.get("id").asLong()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("8110")));
+        mockMvc.perform(get("/api/device/async/unknown"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/device/async"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.written", greaterThanOrEqualTo(1)));
+    }
+
+    @Test
+    public void create_device_respond_async_invalid_400() throws Exception {
+        mockMvc.perform(post("/api/device")
+                .content("{\"name\":\"8110\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .header("Prefer", "respond-async"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.errors", hasItem("brand is required.")));
+    }
+
+    @Test
+    public void update_device_success_200() throws Exception {
+        long id = create("3310", "nokia");
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name",is("3310")));
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"brand\":\"HMD\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isNoContent());
+
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name",is("3310")))
+                .andExpect(jsonPath("$.brand",is("HMD")));
+    }
+
+    @Test
+    public void update_device_only_id_400() throws Exception {
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":1}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message",is("At least one of name or device value are needed.")));
+    }
+
+    @Test
+    public void update_device_missing_id_404() throws Exception {
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":888888, \"name\":\"3310\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message",is("Device Not found or Invalid Device Id.")));
+    }
+
+    @Test
+    public void update_device_stale_version_412_409() throws Exception {
+        long id = create("3310", "nokia");
+        String eTag = mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.version",is(0)))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertEquals("\"" + id + "-0\"", eTag);
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"brand\":\"HMD\"}")
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isNoContent())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + id + "-1\""));
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"brand\":\"Nokia\"}")
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isPreconditionFailed());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"brand\":\"Nokia\", \"version\":0}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isConflict());
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"brand\":\"Nokia\"}")
+                .header(HttpHeaders.IF_MATCH, "W/\"" + id + "-1\"")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isPreconditionFailed());
+
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.brand",is("HMD")))
+                .andExpect(jsonPath("$.version",is(1)));
+    }
+
+    @Test
+    public void concurrent_conditional_updates_lose_nothing_204() throws Exception {
+        long id = create("0", "counter");
+        int threads = 8;
+        int incrementsPerThread = 25;
+        AtomicInteger conflicts = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < incrementsPerThread; ) {
+                        MvcResult read = mockMvc.perform(get("/api/device/" + id)).andReturn();
+                        int count = Integer.parseInt(JsonPath.read(read.getResponse().getContentAsString(), "$.name"));
+                        int status = mockMvc.perform(patch("/api/device")
+                                .content("{\"id\":" + id + ", \"name\":\"" + (count + 1) + "\"}")
+                                .header(HttpHeaders.IF_MATCH, read.getResponse().getHeader(HttpHeaders.ETAG))
+                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                                .andReturn().getResponse().getStatus();
+                        if (status == 204) {
+                            i++;
+                        } else {
+                            assertEquals(412, status);
+                            conflicts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int total = threads * incrementsPerThread;
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name",is(String.valueOf(total))))
+                .andExpect(jsonPath("$.version",is(total)));
+        System.out.println(total + " conditional updates, " + conflicts.get() + " retried after 412");
+    }
+
+    @Test
+    public void get_device_wrong_id_400() throws Exception {
+        mockMvc.perform(get("/api/device/adfadsf"))
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void get_device_valid_id_404() throws Exception {
+        mockMvc.perform(get("/api/device/888888"))
+                .andDo(print())
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void get_device_not_modified_304() throws Exception {
+        long id = create("5510", "nokia");
+        String eTag = mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/api/device/" + id)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andDo(print())
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void delete_wrong_device_id_404() throws Exception {
+        mockMvc.perform(delete("/api/device/888888"))
+                .andDo(print())
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void delete_devices_by_id_and_brand_200() throws Exception {
+        long first = create("3310", "Decommissioned");
+        long second = create("5510", "Decommissioned");
+        long third = create("6310", "Decommissioned");
+        long kept = create("7110", "Kept");
+        mockMvc.perform(get("/api/device/" + first))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(delete("/api/device")
+                .content("[" + first + ", 888888]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(1)));
+        mockMvc.perform(get("/api/device/" + first))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(delete("/api/device")
+                .param("brand", "Decommissioned"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(2)));
+        mockMvc.perform(get("/api/device/search/decommissioned"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$",hasSize(0)));
+        mockMvc.perform(get("/api/device/lookup").param("ids", second + "," + third + "," + kept))
+                .andExpect(jsonPath("$.devices[*].id",contains((int) kept)));
+    }
+
+    @Test
+    public void delete_unknown_ids_changes_nothing_200() throws Exception {
+        long id = create("3310", "Unknown");
+        String eTag = mockMvc.perform(get("/api/device/list"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        long seq = changeFeed.lastSeq();
+
+        mockMvc.perform(delete("/api/device")
+                .content("[888888, 999999]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(0)));
+        mockMvc.perform(delete("/api/device")
+                .param("brand", "NoSuchBrand"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(0)));
+        assertEquals(seq, changeFeed.lastSeq());
+        mockMvc.perform(get("/api/device/list").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        mockMvc.perform(delete("/api/device")
+                .content("[" + id + ", 888888]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.deleted",is(1)));
+        assertEquals(seq + 1, changeFeed.lastSeq());
+    }
+
+    @Test
+    public void delete_device_id_200() throws Exception {
+        long id = create("3310", "nokia");
+        mockMvc.perform(delete("/api/device/" + id))
+                .andDo(print())
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void list_device_200() throws Exception {
+        long id = create("3310", "nokia");
+        mockMvc.perform(get("/api/device/list"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id",hasItem((int) id)));
+    }
+
+    @Test
+    public void list_device_ndjson_200() throws Exception {
+        long id = create("3310", "nokia");
+        MvcResult result = mockMvc.perform(get("/api/device/list")
+                .header(HttpHeaders.ACCEPT, MediaType.APPLICATION_NDJSON_VALUE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string(containsString("{\"id\":" + id + ",\"name\":\"3310\",\"brand\":\"nokia\"")));
+    }
+
+    @Test
+    public void search_device_200() throws Exception {
+        long id = create("FP4", "Fairphone");
+        mockMvc.perform(get("/api/device/search/AIRPH"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id",hasItem((int) id)))
+                .andExpect(jsonPath("$[*].brand",everyItem(containsStringIgnoringCase("airph"))));
+    }
+
+    @Test
+    public void create_device_batch_partial_200() throws Exception {
+        mockMvc.perform(post("/api/device/batch")
+                .content("[{\"name\":\"3310\", \"brand\":\"nokia\"}, {\"name\":\"Galaxy S4\"}]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status",is(201)))
+                .andExpect(jsonPath("$[0].id",notNullValue()))
+                .andExpect(jsonPath("$[1].status",is(400)));
+    }
+
+    @Test
+    public void keyset_list_pages_200() throws Exception {
+        long first = create("3310", "nokia");
+        long second = create("iPhone 12", "Apple");
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", KeysetSlice.encodeCursor(first - 1))
+                .param("size", "1"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].id",is((int) first)))
+                .andExpect(jsonPath("$.hasNext",is(true)))
+                .andExpect(jsonPath("$.next",is(KeysetSlice.encodeCursor(first))));
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", KeysetSlice.encodeCursor(first))
+                .param("size", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].id",is((int) second)));
+    }
+
+    @Test
+    public void paged_list_200() throws Exception {
+        create("3310", "nokia");
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("page", "0")
+                .param("size", "1"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content",hasSize(1)))
+                .andExpect(jsonPath("$.totalElements",greaterThanOrEqualTo(1)));
+    }
+
+    @Test
+    public void lookup_devices_in_request_order_200() throws Exception {
+        long first = create("3310", "nokia");
+        long second = create("iPhone 12", "Apple");
+        mockMvc.perform(get("/api/device/lookup").param("ids", second + ",888888," + first))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.devices[0].id",is((int) second)))
+                .andExpect(jsonPath("$.devices[1].id",is((int) first)))
+                .andExpect(jsonPath("$.missing",contains(888888)));
+    }
+
+    @Test
+    public void import_csv_202() throws Exception {
+        MvcResult result = mockMvc.perform(post("/api/device/import")
+                .content("brand,name\nImported,one\nImported,two\n")
+                .header(HttpHeaders.CONTENT_TYPE, "text/csv"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andDo(print())
+                .andExpect(status().isAccepted())
+                .andExpect(content().string(containsString("\"rowsImported\":2")));
+        mockMvc.perform(get("/api/device/search/imported"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name",hasItems("one", "two")));
+    }
+
+    @Test
+    public void list_and_search_fields_200() throws Exception {
+        long id = create("Fields 1", "fieldsbrand");
+        mockMvc.perform(get("/api/device/search/fieldsbrand").param("fields", "name"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$",hasSize(1)))
+                .andExpect(jsonPath("$[0].id",is((int) id)))
+                .andExpect(jsonPath("$[0].name",is("Fields 1")))
+                .andExpect(jsonPath("$[0].brand").doesNotExist());
+        mockMvc.perform(get("/api/device/list").param("fields", "brand,createdAt"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[?(@.id == " + id + ")].brand",contains("fieldsbrand")))
+                .andExpect(jsonPath("$[?(@.id == " + id + ")].createdAt",hasSize(1)))
+                .andExpect(jsonPath("$[?(@.id == " + id + ")].name",empty()));
+        mockMvc.perform(get("/api/device/paged-list")
+                .param("after", KeysetSlice.encodeCursor(id - 1))
+                .param("size", "1")
+                .param("fields", "id"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].id",is((int) id)))
+                .andExpect(jsonPath("$.content[0].name").doesNotExist());
+    }
+
+    @Test
+    public void brand_counts_follow_writes_200() throws Exception {
+        long first = create("Counted 1", "countbrand-a");
+        create("Counted 2", "countbrand-a");
+        long third = create("Counted 3", "countbrand-b");
+        mockMvc.perform(get("/api/device/brands").param("prefix", "COUNTBRAND"))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"countbrand-a\":2,\"countbrand-b\":1}", true));
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + first + ", \"brand\":\"countbrand-b\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(delete("/api/device/" + third))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/device/brands").param("prefix", "countbrand").param("top", "1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"countbrand-a\":1}", true));
+    }
+
+    @Test
+    public void changes_stream_and_resume_200() throws Exception {
+        MvcResult live = mockMvc.perform(get("/api/device/changes"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        long id = create("Feed 1", "feedbrand");
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"name\":\"Feed 2\"}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(delete("/api/device/" + id))
+                .andExpect(status().isNoContent());
+        String events = awaitContent(live, "event:deleted");
+        assertTrue(events.contains("event:created"));
+        assertTrue(events.contains("\"name\":\"Feed 1\""));
+        assertTrue(events.contains("\"name\":\"Feed 2\",\"version\":1"));
+
+        Matcher created = Pattern.compile("id:(\\S+)\nevent:created").matcher(events);
+        assertTrue(created.find());
+        MvcResult resumed = mockMvc.perform(get("/api/device/changes")
+                .header("Last-Event-ID", created.group(1)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String replayed = awaitContent(resumed, "event:deleted");
+        assertTrue(replayed.contains("\"id\":" + id));
+        assertTrue(!replayed.contains("event:created"));
+    }
+
+    @Test
+    public void changes_of_another_run_410() throws Exception {
+        mockMvc.perform(get("/api/device/changes").header("Last-Event-ID", "0:1"))
+                .andExpect(status().isGone());
+        mockMvc.perform(get("/api/device/changes").param("since", "1000000000"))
+                .andExpect(status().isGone());
+        mockMvc.perform(get("/api/device/changes").param("since", "abc"))
+                .andExpect(status().isBadRequest());
+    }
+
+    /**
+     * Waits for an event stream to contain the given text, the events are written by the thread of the feed.
+     */
+    private static String awaitContent(MvcResult result, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        String content = result.getResponse().getContentAsString();
+        while (!content.contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            content = result.getResponse().getContentAsString();
+        }
+        assertTrue(content, content.contains(expected));
+        return content;
+    }
+
+    private long create(String name, String brand) throws Exception {
+        String body = mockMvc.perform(post("/api/device/batch")
+                .content("[{\"name\":\"" + name + "\", \"brand\":\"" + brand + "\"}]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonNode result = om.readTree(body).get(0);
+        assertEquals(201, result.get("status").asInt());
+        return result.get("id").asLong();
+    }
+}
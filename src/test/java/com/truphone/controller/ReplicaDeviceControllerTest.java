@@ -0,0 +1,197 @@
+package com.truphone.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.DeviceManagerApplication;
+import com.phone.device.replica.ReplicaRouter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Read replicas of the JPA store. The replica is a second in memory H2 database, replicated by copying the tables of
+ * the primary through linked tables whenever a test calls replicate. Rows the tests change on the replica only show
+ * which database a response was read from. The caches are off, so every GET reads the store.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.MOCK,
+        classes = DeviceManagerApplication.class)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:h2:mem:replicaprimary",
+        "device.replicas.enabled=true",
+        "device.replicas.urls=" + ReplicaDeviceControllerTest.REPLICA_URL + ";IFEXISTS=TRUE",
+        "device.replicas.connection-timeout=250ms",
+        "device.replicas.max-staleness=300ms",
+        "device.replicas.check-interval=1h",
+        "device.cache.enabled=false",
+        "device.response-cache.enabled=false",
+        "device.search.index.enabled=false"})
+public class ReplicaDeviceControllerTest {
+
+    static final String REPLICA_URL = "jdbc:h2:mem:replicareplica;DB_CLOSE_DELAY=-1";
+
+    private static final long QUIET_MILLIS = 400;
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    static {
+        // The replica has to exist before the application starts, its url only opens an existing database.
+        try (Connection replica = DriverManager.getConnection(REPLICA_URL, "sa", "")) {
+            replica.isValid(1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ReplicaRouter replicaRouter;
+
+    @Before
+    public void setUp() throws Exception {
+        onReplica("create linked table if not exists primary_device('org.h2.Driver', 'jdbc:h2:mem:replicaprimary', 'sa', '', 'DEVICE')",
+                "create linked table if not exists primary_heartbeat('org.h2.Driver', 'jdbc:h2:mem:replicaprimary', 'sa', '', 'DEVICE_REPLICA_HEARTBEAT')",
+                "create table if not exists device as select * from primary_device where false",
+                "create table if not exists device_replica_heartbeat as select * from primary_heartbeat where false");
+        replicate();
+    }
+
+    @Test
+    public void reads_own_writes_from_the_primary_and_the_rest_from_the_replica() throws Exception {
+        long id = create("3310", "ReplicaNokia");
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("3310")));
+        mockMvc.perform(get("/api/device/search/replicanok"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name", contains("3310")));
+
+        replicate();
+        onReplica("update device set name = 'replica ' || name where id = " + id);
+        Thread.sleep(QUIET_MILLIS);
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("replica 3310")));
+        mockMvc.perform(get("/api/device/search/replicanok"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name", contains("replica 3310")));
+        mockMvc.perform(get("/api/device/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name", hasItem("replica 3310")));
+        assertTrue(replica().get("reads") instanceof Number && ((Number) replica().get("reads")).longValue() >= 3);
+
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + id + ", \"name\":\"8110\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("8110")));
+        mockMvc.perform(get("/api/device/search/replicanok"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name", contains("8110")));
+    }
+
+    @Test
+    public void stale_replica_is_left_out_until_it_catches_up() throws Exception {
+        long id = create("N95", "StaleNokia");
+        replicate();
+        onReplica("update device set name = 'replica ' || name where id = " + id);
+        Thread.sleep(QUIET_MILLIS);
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(jsonPath("$.name", is("replica N95")));
+
+        // No replication since, the heartbeat of the replica gets older than max-staleness.
+        replicaRouter.check();
+        assertEquals(false, replica().get("usable"));
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(jsonPath("$.name", is("N95")));
+
+        replicate();
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(jsonPath("$.name", is("N95")));
+        assertEquals(true, replica().get("usable"));
+    }
+
+    @Test
+    public void unreachable_replica_fails_over_to_the_primary() throws Exception {
+        long id = create("E71", "DownNokia");
+        replicate();
+        Thread.sleep(QUIET_MILLIS);
+        onReplica("shutdown");
+        // Past the time the pool hands out connections without validating them.
+        Thread.sleep(600);
+
+        mockMvc.perform(get("/api/device/" + id))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("E71")));
+        mockMvc.perform(get("/api/device/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].name", hasItem("E71")));
+        assertEquals(false, replica().get("healthy"));
+        mockMvc.perform(get("/api/device/store"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.replication.replicas[0].healthy", is(false)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> replica() {
+        return ((List<Map<String, Object>>) replicaRouter.stats().get("replicas")).get(0);
+    }
+
+    /**
+     * Copies the primary to the replica, with a fresh heartbeat, and measures the replica again.
+     */
+    private void replicate() throws SQLException {
+        replicaRouter.check();
+        onReplica("delete from device", "insert into device select * from primary_device",
+                "delete from device_replica_heartbeat", "insert into device_replica_heartbeat select * from primary_heartbeat");
+        replicaRouter.check();
+    }
+
+    private static void onReplica(String... statements) throws SQLException {
+        try (Connection replica = DriverManager.getConnection(REPLICA_URL, "sa", "");
+             Statement statement = replica.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private long create(String name, String brand) throws Exception {
+        String body = mockMvc.perform(post("/api/device/batch")
+                .content("[{\"name\":\"" + name + "\", \"brand\":\"" + brand + "\"}]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonNode result = om.readTree(body).get(0);
+        assertEquals(201, result.get("status").asInt());
+        return result.get("id").asLong();
+    }
+}
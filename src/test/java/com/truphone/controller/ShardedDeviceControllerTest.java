@@ -0,0 +1,142 @@
+package com.truphone.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.DeviceManagerApplication;
+import com.phone.device.store.DeviceStore;
+import com.phone.device.store.ShardedDeviceStore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The sharded profile, with its shards as separate in memory H2 databases. Nothing is mocked, so the tests create the
+ * Devices they need and only look at those.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.MOCK,
+        classes = DeviceManagerApplication.class)
+@AutoConfigureMockMvc
+@ActiveProfiles("sharded")
+@TestPropertySource(properties = "device.store.sharded.urls="
+        + "jdbc:h2:mem:testshard0;DB_CLOSE_DELAY=-1,jdbc:h2:mem:testshard1;DB_CLOSE_DELAY=-1")
+public class ShardedDeviceControllerTest {
+
+    private static final ObjectMapper om = new ObjectMapper();
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DeviceStore deviceStore;
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Test
+    public void sharded_store_without_datasource() throws Exception {
+        assertTrue(deviceStore instanceof ShardedDeviceStore);
+        assertEquals(null, dataSource);
+        mockMvc.perform(get("/api/device/store"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.type", is("sharded")))
+                .andExpect(jsonPath("$.shards", is(2)));
+    }
+
+    @Test
+    public void crud_routed_to_the_owning_shard() throws Exception {
+        long first = create("3310", "ShardNokia");
+        long second = create("8110", "ShardNokia");
+        assertEquals(2, List.of(ShardedDeviceStore.shardOf(first), ShardedDeviceStore.shardOf(second)).stream()
+                .distinct().count());
+
+        String eTag = mockMvc.perform(get("/api/device/" + second))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name", is("8110")))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mockMvc.perform(patch("/api/device")
+                .content("{\"id\":" + second + ", \"name\":\"8110 4G\"}")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .header(HttpHeaders.IF_MATCH, eTag))
+                .andExpect(status().isNoContent())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + second + "-1\""));
+        mockMvc.perform(get("/api/device/search/shardnok"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", containsInAnyOrder((int) first, (int) second)))
+                .andExpect(jsonPath("$[*].name", containsInAnyOrder("3310", "8110 4G")));
+
+        mockMvc.perform(delete("/api/device/" + first))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/device/" + first))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void listings_merged_in_id_order() throws Exception {
+        List<Long> created = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            created.add(create("device " + i, "ShardList"));
+        }
+        List<Long> listed = ids(om.readTree(mockMvc.perform(get("/api/device/list"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString()));
+        assertTrue(listed.containsAll(created));
+        assertEquals(listed.stream().sorted().collect(Collectors.toList()), listed);
+
+        List<Long> paged = new ArrayList<>();
+        String cursor = "";
+        JsonNode slice;
+        do {
+            slice = om.readTree(mockMvc.perform(get("/api/device/paged-list").param("after", cursor).param("size", "3"))
+                    .andExpect(status().isOk())
+                    .andReturn().getResponse().getContentAsString());
+            paged.addAll(ids(slice.get("content")));
+            cursor = slice.path("next").asText();
+        } while (slice.get("hasNext").asBoolean());
+        assertEquals(listed, paged);
+
+        List<Long> page = ids(om.readTree(mockMvc.perform(get("/api/device/paged-list").param("page", "1").param("size", "3"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString()).get("content"));
+        assertEquals(listed.subList(3, 6), page);
+    }
+
+    private static List<Long> ids(JsonNode devices) {
+        List<Long> ids = new ArrayList<>();
+        devices.forEach(device -> ids.add(device.get("id").asLong()));
+        return ids;
+    }
+
+    private long create(String name, String brand) throws Exception {
+        String body = mockMvc.perform(post("/api/device/batch")
+                .content("[{\"name\":\"" + name + "\", \"brand\":\"" + brand + "\"}]")
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        JsonNode result = om.readTree(body).get(0);
+        assertEquals(201, result.get("status").asInt());
+        return result.get("id").asLong();
+    }
+}
@@ -0,0 +1,74 @@
+package com.truphone.feed;
+
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.feed.DeviceChangeFeed;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceChangeFeedTest {
+
+    private DeviceChangeFeed feed;
+
+    @Before
+    public void setUp() {
+        feed = new DeviceChangeFeed(4, 1, Duration.ofSeconds(15), Duration.ofMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        feed.close();
+    }
+
+    @Test
+    public void numbers_every_change() {
+        assertEquals(0, feed.lastSeq());
+        publish(3);
+        assertEquals(3, feed.lastSeq());
+        assertEquals(OptionalLong.of(0), feed.resumeAfter("0"));
+        assertEquals(OptionalLong.of(2), feed.resumeAfter("2"));
+        assertEquals(OptionalLong.of(3), feed.resumeAfter("3"));
+        assertEquals(OptionalLong.empty(), feed.resumeAfter("4"));
+    }
+
+    @Test
+    public void can_not_resume_behind_the_ring() {
+        publish(10);
+        assertEquals(OptionalLong.empty(), feed.resumeAfter("5"));
+        assertEquals(OptionalLong.of(6), feed.resumeAfter("6"));
+    }
+
+    @Test
+    public void can_not_resume_an_id_of_another_run() {
+        publish(2);
+        assertEquals(OptionalLong.empty(), feed.resumeAfter("0:1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_a_malformed_position() {
+        feed.resumeAfter("abc");
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void rejects_subscribers_beyond_the_limit() {
+        feed.subscribe(0);
+        feed.subscribe(0);
+    }
+
+    private void publish(int count) {
+        for (long id = 1; id <= count; id++) {
+            Device device = new Device();
+            device.setId(id);
+            device.setName("Device " + id);
+            device.setBrand("brand");
+            feed.onDeviceEvent(DeviceEvent.created(device));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.truphone.search;
+
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.search.DeviceBrandCounts;
+import com.phone.device.store.InMemoryDeviceStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceBrandCountsTest {
+
+    private static final String[] BRANDS = {"Apple", "Samsung", "Nokia", "SAMSUNG Mobile", "Sony", "Xiaomi"};
+
+    private InMemoryDeviceStore store;
+    private DeviceBrandCounts counts;
+
+    @Before
+    public void setUp() {
+        store = new InMemoryDeviceStore(16);
+        for (int i = 0; i < 50; i++) {
+            store.create(device(BRANDS[i % BRANDS.length]));
+        }
+        counts = new DeviceBrandCounts(store, true, Duration.ZERO);
+        counts.afterSingletonsInstantiated();
+    }
+
+    @After
+    public void tearDown() {
+        counts.close();
+    }
+
+    @Test
+    public void built_from_the_store() {
+        assertEquals(store.countByBrand(), counts.top(null, null).orElseThrow());
+    }
+
+    @Test
+    public void follows_creates_updates_and_deletes() {
+        Random random = new Random(42);
+        List<Long> ids = new ArrayList<>();
+        store.forEach(device -> ids.add(device.getId()));
+        for (int i = 0; i < 2_000; i++) {
+            int operation = random.nextInt(3);
+            if (operation == 0 || ids.isEmpty()) {
+                Device device = device(BRANDS[random.nextInt(BRANDS.length)]);
+                store.create(device);
+                ids.add(device.getId());
+                counts.onDeviceEvent(DeviceEvent.created(device));
+            } else if (operation == 1) {
+                Device patch = new Device();
+                patch.setId(ids.get(random.nextInt(ids.size())));
+                if (random.nextBoolean()) {
+                    patch.setBrand(BRANDS[random.nextInt(BRANDS.length)]);
+                } else {
+                    patch.setName("renamed");
+                }
+                store.updateNonNullFields(patch);
+                counts.onDeviceEvent(DeviceEvent.updated(patch));
+            } else {
+                long id = ids.remove(random.nextInt(ids.size()));
+                store.deleteById(id);
+                counts.onDeviceEvent(DeviceEvent.deleted(id));
+            }
+        }
+        assertEquals(store.countByBrand(), counts.top(null, null).orElseThrow());
+        assertTrue(counts.reconcile());
+        assertEquals(0L, counts.stats().get("corrections"));
+    }
+
+    @Test
+    public void reconcile_repairs_writes_without_events() {
+        store.create(device("Fairphone"));
+        store.deleteAllByBrandAndId("Apple", List.of(1L, 7L));
+        assertFalse(counts.top(null, null).orElseThrow().containsKey("Fairphone"));
+
+        assertTrue(counts.reconcile());
+        assertEquals(store.countByBrand(), counts.top(null, null).orElseThrow());
+        assertEquals(1L, counts.stats().get("corrections"));
+    }
+
+    @Test
+    public void top_filters_by_prefix_and_orders_by_count() {
+        store.create(device("Samsung"));
+        counts.reconcile();
+        Map<String, Long> top = counts.top("sam", null).orElseThrow();
+        assertEquals(List.of("Samsung", "SAMSUNG Mobile"), new ArrayList<>(top.keySet()));
+        assertEquals(List.of(10L, 8L), new ArrayList<>(top.values()));
+        assertEquals(List.of("Samsung"), new ArrayList<>(counts.top(null, 1).orElseThrow().keySet()));
+    }
+
+    private static Device device(String brand) {
+        Device device = new Device();
+        device.setName("Device");
+        device.setBrand(brand);
+        return device;
+    }
+}
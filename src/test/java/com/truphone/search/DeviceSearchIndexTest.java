@@ -0,0 +1,135 @@
+package com.truphone.search;
+
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.search.DeviceSearchIndex;
+import com.phone.device.store.DeviceStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSearchIndexTest {
+
+    private static final String[] BRANDS = {"Apple", "Samsung", "Nokia", "SAMSUNG Mobile", "Sony Ericsson", "Xiaomi",
+            "OnePlus", "Motorola", "nok", "Straße", "Sam", "a_b%c"};
+
+    private DeviceStore deviceStore;
+    private DeviceSearchIndex index;
+    private Map<Long, String> table;
+
+    @Before
+    public void setUp() {
+        deviceStore = Mockito.mock(DeviceStore.class);
+        table = new TreeMap<>();
+        for (long id = 1; id <= 200; id++) {
+            table.put(id, BRANDS[(int) (id % BRANDS.length)]);
+        }
+        Mockito.doAnswer(invocation -> {
+            devices().forEach(invocation.<Consumer<Device>>getArgument(0));
+            return null;
+        }).when(deviceStore).forEach(Mockito.any());
+        index = new DeviceSearchIndex(deviceStore, true);
+    }
+
+    @Test
+    public void not_ready_before_rebuild() {
+        assertFalse(index.findIdsByBrandContaining("sam").isPresent());
+    }
+
+    @Test
+    public void matches_case_insensitive_substring_search() {
+        index.afterSingletonsInstantiated();
+        Random random = new Random(42);
+        String alphabet = "aAbcCeiklmMnNoOpsStuUß%_ ";
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder term = new StringBuilder();
+            int length = 1 + random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                term.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertSearch(term.toString());
+        }
+        for (String brand : BRANDS) {
+            assertSearch(brand);
+            assertSearch(brand.substring(1));
+        }
+    }
+
+    @Test
+    public void follows_create_update_and_delete() {
+        index.afterSingletonsInstantiated();
+
+        Device created = device(1000L, "Fairphone");
+        table.put(1000L, "Fairphone");
+        index.onDeviceEvent(DeviceEvent.created(created));
+        assertSearch("fairp");
+
+        table.put(3L, "Fairphone");
+        index.onDeviceEvent(DeviceEvent.updated(device(3L, "Fairphone")));
+        assertSearch("fairp");
+        assertSearch(BRANDS[3]);
+
+        Device renamed = new Device();
+        renamed.setId(3L);
+        renamed.setName("FP4");
+        index.onDeviceEvent(DeviceEvent.updated(renamed));
+        assertSearch("fairp");
+
+        table.remove(1000L);
+        index.onDeviceEvent(DeviceEvent.deleted(1000L));
+        assertSearch("fairp");
+        assertArrayEquals(new long[]{3L}, index.findIdsByBrandContaining("AIRPH").get());
+    }
+
+    @Test
+    public void rebuild_does_not_restore_devices_deleted_meanwhile() {
+        Mockito.doAnswer(invocation -> {
+            List<Device> snapshot = devices();
+            table.remove(5L);
+            index.onDeviceEvent(DeviceEvent.deleted(5L));
+            snapshot.forEach(invocation.<Consumer<Device>>getArgument(0));
+            return null;
+        }).when(deviceStore).forEach(Mockito.any());
+        index.rebuild();
+
+        assertTrue(index.findIdsByBrandContaining(BRANDS[5]).isPresent());
+        assertSearch(BRANDS[5]);
+        assertEquals(table.size(), index.stats().get("devices"));
+    }
+
+    private void assertSearch(String term) {
+        String needle = term.toUpperCase(Locale.ENGLISH);
+        long[] expected = table.entrySet().stream()
+                .filter(entry -> entry.getValue().toUpperCase(Locale.ENGLISH).contains(needle))
+                .mapToLong(Map.Entry::getKey)
+                .toArray();
+        assertArrayEquals("search for " + term, expected, index.findIdsByBrandContaining(term).get());
+    }
+
+    private List<Device> devices() {
+        List<Device> devices = new ArrayList<>();
+        table.forEach((id, brand) -> devices.add(device(id, brand)));
+        return devices;
+    }
+
+    private static Device device(long id, String brand) {
+        Device device = new Device();
+        device.setId(id);
+        device.setName("device " + id);
+        device.setBrand(brand);
+        return device;
+    }
+}
@@ -0,0 +1,149 @@
+package com.truphone.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.phone.device.dto.BatchItemResult;
+import com.phone.device.dto.ImportJob;
+import com.phone.device.entity.Device;
+import com.phone.device.service.DeviceBatchService;
+import com.phone.device.service.DeviceImportService;
+import com.phone.device.store.FileDeviceStore;
+import com.phone.device.store.InMemoryDeviceStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A chunk the store fails to write, here the second one failing like the file store does, is recorded as failed and
+ * the chunks around it are still written.
+ *
+ * The file store tests let a Device without a name past a validator that accepts everything: the log fails on it in
+ * the middle of its chunk, after the Devices before it have been written to the log buffer.
+ */
+public class DeviceChunkFailureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Validator acceptAll = Mockito.mock(Validator.class);
+
+    private final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+    private final AtomicInteger chunks = new AtomicInteger();
+    private final List<Object> events = new ArrayList<>();
+
+    private final InMemoryDeviceStore store = new InMemoryDeviceStore(16) {
+        @Override
+        public void createAll(List<Device> devices) {
+            if (chunks.incrementAndGet() == 2) {
+                throw new UncheckedIOException(new IOException("No space left on device"));
+            }
+            super.createAll(devices);
+        }
+    };
+
+    @Test
+    public void import_records_failed_chunk() {
+        DeviceImportService service = new DeviceImportService(store, validator, new ObjectMapper(), events::add, 2, 100, 10,
+                8192, Duration.ofSeconds(1));
+        String csv = "name,brand\n3310,Nokia\n8110,Nokia\nE71,Nokia\nN95,Nokia\n6310,Nokia\n";
+
+        ImportJob job = service.importDevices(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)),
+                DeviceImportService.TEXT_CSV);
+
+        assertEquals(ImportJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getRowsImported());
+        assertEquals(2, job.getRowsRejected());
+        assertEquals(List.of(4L, 5L), job.getRejections().stream().map(ImportJob.RejectedRow::getLine).collect(Collectors.toList()));
+        assertEquals(3, events.size());
+        assertEquals(3, store.findAll().size());
+    }
+
+    @Test
+    public void batch_records_failed_chunk() {
+        DeviceBatchService service = new DeviceBatchService(store, validator, events::add, 2);
+        List<Device> devices = new ArrayList<>();
+        for (String name : List.of("3310", "8110", "E71", "N95", "6310")) {
+            Device device = new Device();
+            device.setName(name);
+            device.setBrand("Nokia");
+            devices.add(device);
+        }
+
+        List<BatchItemResult> results = service.createAll(devices);
+
+        assertEquals(List.of(201, 201, 500, 500, 201),
+                results.stream().map(BatchItemResult::getStatus).collect(Collectors.toList()));
+        assertEquals(List.of("device could not be stored."), results.get(2).getErrors());
+        assertEquals(3, events.size());
+        assertEquals(3, store.findAll().size());
+    }
+
+    @Test
+    public void batch_chunk_failing_in_the_file_log_is_not_stored() throws IOException {
+        FileDeviceStore fileStore = openFileStore();
+        DeviceBatchService service = new DeviceBatchService(fileStore, acceptAll, events::add, 3);
+        List<Device> devices = new ArrayList<>();
+        for (String name : new String[]{"3310", "8110", "E71", "N95", null, "6310"}) {
+            Device device = new Device();
+            device.setName(name);
+            device.setBrand("Nokia");
+            devices.add(device);
+        }
+
+        List<BatchItemResult> results = service.createAll(devices);
+
+        assertEquals(List.of(201, 201, 201, 500, 500, 500),
+                results.stream().map(BatchItemResult::getStatus).collect(Collectors.toList()));
+        assertEquals(3, events.size());
+        assertEquals(List.of("3310", "8110", "E71"), names(fileStore));
+        fileStore.close();
+        FileDeviceStore reopened = openFileStore();
+        assertEquals(List.of("3310", "8110", "E71"), names(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void import_chunk_failing_in_the_file_log_is_not_stored() throws IOException {
+        FileDeviceStore fileStore = openFileStore();
+        DeviceImportService service = new DeviceImportService(fileStore, acceptAll, new ObjectMapper(), events::add, 3, 100, 10,
+                8192, Duration.ofSeconds(1));
+        String csv = "name,brand\n3310,Nokia\n8110,Nokia\nE71,Nokia\nN95,Nokia\n5110\n6310,Nokia\n";
+
+        ImportJob job = service.importDevices(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)),
+                DeviceImportService.TEXT_CSV);
+
+        assertEquals(ImportJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getRowsImported());
+        assertEquals(List.of(5L, 6L, 7L), job.getRejections().stream().map(ImportJob.RejectedRow::getLine).collect(Collectors.toList()));
+        assertEquals(3, events.size());
+        assertEquals(List.of("3310", "8110", "E71"), names(fileStore));
+        fileStore.close();
+        FileDeviceStore reopened = openFileStore();
+        assertEquals(List.of("3310", "8110", "E71"), names(reopened));
+        reopened.close();
+    }
+
+    private FileDeviceStore openFileStore() throws IOException {
+        FileDeviceStore fileStore = new FileDeviceStore(16, folder.getRoot().getPath(), false, 1_000_000, false);
+        fileStore.restore();
+        return fileStore;
+    }
+
+    private static List<String> names(FileDeviceStore fileStore) {
+        return fileStore.findAll().stream().map(Device::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,147 @@
+package com.truphone.service;
+
+import com.phone.device.dto.AsyncCreate;
+import com.phone.device.entity.Device;
+import com.phone.device.event.DeviceEvent;
+import com.phone.device.service.DeviceWriteBehindService;
+import com.phone.device.store.InMemoryDeviceStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceWriteBehindTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final AtomicInteger groups = new AtomicInteger();
+    private final List<DeviceEvent> events = new CopyOnWriteArrayList<>();
+
+    /**
+     * Holds the writer in its first createAll until release, so that the tests can fill the queue behind it.
+     */
+    private final InMemoryDeviceStore store = new InMemoryDeviceStore(16) {
+        @Override
+        public void createAll(List<Device> devices) {
+            groups.incrementAndGet();
+            writing.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.createAll(devices);
+        }
+    };
+
+    private DeviceWriteBehindService service;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (service != null) {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void full_queue_rejects() throws Exception {
+        service = service(2, 100);
+        service.start();
+        assertTrue(service.submit(device(0)).isPresent());
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        assertTrue(service.submit(device(1)).isPresent());
+        assertTrue(service.submit(device(2)).isPresent());
+        assertFalse(service.submit(device(3)).isPresent());
+        assertEquals(1L, service.stats().get("rejected"));
+    }
+
+    @Test
+    public void queued_devices_are_written_in_groups() throws Exception {
+        service = service(1000, 100);
+        service.start();
+        List<AsyncCreate> trackings = new ArrayList<>();
+        trackings.add(service.submit(device(0)).get());
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 250; i++) {
+            trackings.add(service.submit(device(i)).get());
+        }
+        release.countDown();
+
+        awaitWritten(250);
+        // The first Device alone, then the 249 queued behind it in groups of at most 100.
+        assertEquals(4, groups.get());
+        assertEquals(250, store.findAll().size());
+        assertEquals(250, events.size());
+        for (AsyncCreate tracking : trackings) {
+            Optional<AsyncCreate> found = service.find(tracking.getTrackingId());
+            assertTrue(found.isPresent());
+            assertEquals(AsyncCreate.Status.CREATED, found.get().getStatus());
+            assertTrue(store.existsById(found.get().getId()));
+        }
+    }
+
+    @Test
+    public void stop_writes_the_queue_and_rejects_new_devices() throws Exception {
+        service = service(1000, 100);
+        service.start();
+        service.submit(device(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 500; i++) {
+            service.submit(device(i));
+        }
+        Thread stopping = new Thread(service::stop);
+        stopping.start();
+        while (service.submit(device(-1)).isPresent()) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        stopping.join(5_000);
+
+        assertFalse(stopping.isAlive());
+        assertFalse(service.isRunning());
+        assertEquals(500, store.findAll().stream().filter(device -> !device.getName().equals("-1")).count());
+        assertEquals(0, service.stats().get("queued"));
+    }
+
+    @Test
+    public void disabled_service_accepts_nothing() {
+        service = new DeviceWriteBehindService(store, event -> events.add((DeviceEvent) event), false, 10, 10, Duration.ofMillis(1), 10,
+                Duration.ofMinutes(1), Duration.ofSeconds(5));
+        service.start();
+        assertFalse(service.isRunning());
+        assertFalse(service.submit(device(0)).isPresent());
+    }
+
+    private DeviceWriteBehindService service(int queueCapacity, int batchSize) {
+        return new DeviceWriteBehindService(store, event -> events.add((DeviceEvent) event), true, queueCapacity,
+                batchSize, Duration.ofMillis(5), 10_000, Duration.ofMinutes(1), Duration.ofSeconds(5));
+    }
+
+    private void awaitWritten(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while ((long) service.stats().get("written") < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, service.stats().get("written"));
+    }
+
+    private static Device device(int i) {
+        Device device = new Device();
+        device.setName(String.valueOf(i));
+        device.setBrand("brand " + i % 7);
+        return device;
+    }
+}
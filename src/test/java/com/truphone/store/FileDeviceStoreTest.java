@@ -0,0 +1,212 @@
+package com.truphone.store;
+
+import com.phone.device.entity.Device;
+import com.phone.device.store.FileDeviceStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileDeviceStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileDeviceStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = open(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void restores_from_the_log() throws IOException {
+        Device first = create("3310", "nokia");
+        Device second = create("iPhone 12", "Apple");
+        store.deleteById(first.getId());
+        store.updateNonNullFields(patch(second.getId(), "iPhone 13"));
+        Map<Long, String> expected = names(store.findAll());
+
+        reopen(false);
+
+        assertEquals(expected, names(store.findAll()));
+        assertEquals(4L, store.stats().get("replayedLogRecords"));
+        assertEquals(second.getCreatedAt(), store.findById(second.getId()).get().getCreatedAt());
+        Device third = create("FP4", "Fairphone");
+        assertTrue(third.getId() > second.getId());
+    }
+
+    @Test
+    public void restores_from_snapshot_and_newer_log() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            create("device " + i, "brand " + i % 7);
+        }
+        assertTrue(store.snapshot());
+        store.deleteById(5L);
+        store.updateNonNullFields(patch(6L, "renamed"));
+        Device last = create("last", "brand");
+        Map<Long, String> expected = names(store.findAll());
+
+        reopen(false);
+
+        assertEquals(expected, names(store.findAll()));
+        assertEquals(3L, store.stats().get("replayedLogRecords"));
+        assertEquals(last.getId().longValue(), store.stats().get("lastId"));
+        try (java.util.stream.Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(List.of("devices-1.log", "devices.snapshot"),
+                    files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void deleted_last_id_is_not_handed_out_again() throws IOException {
+        create("3310", "nokia");
+        Device deleted = create("5510", "nokia");
+        store.deleteById(deleted.getId());
+        assertTrue(store.snapshot());
+
+        reopen(false);
+
+        assertTrue(create("6310", "nokia").getId() > deleted.getId());
+    }
+
+    @Test
+    public void drops_a_torn_record_at_the_end_of_the_log() throws IOException {
+        Device kept = create("3310", "nokia");
+        Device torn = create("5510", "nokia");
+        Path log = folder.getRoot().toPath().resolve("devices-0.log");
+        store.close();
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        store = open(false);
+
+        assertTrue(store.findById(kept.getId()).isPresent());
+        assertFalse(store.findById(torn.getId()).isPresent());
+        assertTrue((Long) store.stats().get("droppedLogBytes") > 0);
+    }
+
+    @Test
+    public void failed_chunk_is_neither_stored_nor_replayed() throws IOException {
+        Device kept = create("3310", "nokia");
+        Path log = folder.getRoot().toPath().resolve("devices-0.log");
+        long logBytes = Files.size(log);
+        // More than the log buffer holds, so part of the chunk reaches the file before its last record fails.
+        List<Device> chunk = new java.util.ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            Device device = new Device();
+            device.setName("device " + i);
+            device.setBrand("brand");
+            chunk.add(device);
+        }
+        chunk.get(chunk.size() - 1).setName(null);
+
+        try {
+            store.createAll(chunk);
+            fail();
+        } catch (RuntimeException expected) {
+            // The log can not write a Device without a name.
+        }
+
+        assertEquals(List.of(kept.getId()), store.findAll().stream().map(Device::getId).collect(Collectors.toList()));
+        assertEquals(logBytes, Files.size(log));
+        Device next = create("5510", "nokia");
+        Map<Long, String> expected = names(store.findAll());
+
+        reopen(false);
+
+        assertEquals(expected, names(store.findAll()));
+        assertEquals(2L, store.stats().get("replayedLogRecords"));
+        assertTrue(next.getId() > kept.getId());
+    }
+
+    @Test
+    public void snapshot_while_writing() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new java.util.ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        Device device = create("device", "brand");
+                        if (i % 4 == 0) {
+                            store.deleteById(device.getId());
+                        } else if (i % 4 == 1) {
+                            store.updateNonNullFields(patch(device.getId(), "renamed"));
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < 5; i++) {
+                store.snapshot();
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Map<Long, String> expected = names(store.findAll());
+
+        reopen(false);
+
+        assertEquals(expected, names(store.findAll()));
+    }
+
+    private void reopen(boolean snapshotOnShutdown) throws IOException {
+        store.close();
+        store = open(snapshotOnShutdown);
+    }
+
+    private FileDeviceStore open(boolean snapshotOnShutdown) throws IOException {
+        FileDeviceStore opened = new FileDeviceStore(16, folder.getRoot().getPath(), false, 1_000_000,
+                snapshotOnShutdown);
+        opened.restore();
+        return opened;
+    }
+
+    private Device create(String name, String brand) {
+        Device device = new Device();
+        device.setName(name);
+        device.setBrand(brand);
+        store.create(device);
+        return device;
+    }
+
+    private static Device patch(long id, String name) {
+        Device patch = new Device();
+        patch.setId(id);
+        patch.setName(name);
+        return patch;
+    }
+
+    private static Map<Long, String> names(List<Device> devices) {
+        Map<Long, String> names = new TreeMap<>();
+        devices.forEach(device -> names.put(device.getId(), device.getName() + "/" + device.getBrand()));
+        return names;
+    }
+}
@@ -0,0 +1,142 @@
+package com.truphone.store;
+
+import com.phone.device.entity.Device;
+import com.phone.device.store.InMemoryDeviceStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryDeviceStoreTest {
+
+    private InMemoryDeviceStore store;
+
+    @Before
+    public void setUp() {
+        // Small tables, so that the random operations below resize them many times.
+        store = new InMemoryDeviceStore(16);
+    }
+
+    @Test
+    public void matches_a_sorted_map_under_random_operations() {
+        Map<Long, String> expected = new TreeMap<>();
+        List<Long> ids = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 5 || ids.isEmpty()) {
+                Device device = device("brand " + random.nextInt(100));
+                store.create(device);
+                expected.put(device.getId(), device.getBrand());
+                ids.add(device.getId());
+            } else if (operation < 7) {
+                long id = ids.remove(random.nextInt(ids.size()));
+                store.deleteById(id);
+                expected.remove(id);
+            } else {
+                long id = ids.get(random.nextInt(ids.size()));
+                Device patch = new Device();
+                patch.setId(id);
+                patch.setBrand("patched " + i);
+                assertEquals(1, store.updateNonNullFields(patch));
+                expected.put(id, patch.getBrand());
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        List<Device> all = store.findAll();
+        assertEquals(new ArrayList<>(expected.keySet()), all.stream().map(Device::getId).collect(Collectors.toList()));
+        for (Device device : all) {
+            assertEquals(expected.get(device.getId()), device.getBrand());
+            assertEquals(expected.get(device.getId()), store.findById(device.getId()).get().getBrand());
+        }
+        assertFalse(store.findById(0L).isPresent());
+        assertEquals(0, store.updateNonNullFields(patch(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void pages_in_id_order() {
+        for (int i = 0; i < 10; i++) {
+            store.create(device(i % 2 == 0 ? "Nokia" : "Apple"));
+        }
+        store.deleteById(4L);
+
+        Slice<Device> slice = store.findAfter(2L, 3);
+        assertEquals(List.of(3L, 5L, 6L), slice.getContent().stream().map(Device::getId).collect(Collectors.toList()));
+        assertTrue(slice.hasNext());
+        assertFalse(store.findAfter(8L, 3).hasNext());
+        assertEquals(List.of(6L, 7L), store.findAll(PageRequest.of(2, 2)).getContent().stream()
+                .map(Device::getId).collect(Collectors.toList()));
+        assertEquals(List.of(2L, 6L, 8L, 10L), store.findByBrandContainingIgnoreCase("APP").stream()
+                .map(Device::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void returns_copies() {
+        Device device = device("Nokia");
+        store.create(device);
+        store.findById(device.getId()).get().setBrand("changed");
+        assertEquals("Nokia", store.findById(device.getId()).get().getBrand());
+    }
+
+    @Test
+    public void concurrent_writers_and_readers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Long>>> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                writers.add(executor.submit(() -> {
+                    List<Long> kept = new ArrayList<>();
+                    for (int i = 0; i < 5_000; i++) {
+                        Device device = device("Nokia");
+                        store.create(device);
+                        assertTrue(store.findById(device.getId()).isPresent());
+                        if (i % 3 == 0) {
+                            store.deleteById(device.getId());
+                            assertFalse(store.existsById(device.getId()));
+                        } else {
+                            kept.add(device.getId());
+                        }
+                    }
+                    return kept;
+                }));
+            }
+            List<Long> kept = new ArrayList<>();
+            for (Future<List<Long>> writer : writers) {
+                kept.addAll(writer.get());
+            }
+            assertEquals(kept.size(), store.size());
+            assertEquals(kept.size(), store.findAllById(kept).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Device device(String brand) {
+        Device device = new Device();
+        device.setName("device");
+        device.setBrand(brand);
+        return device;
+    }
+
+    private static Device patch(long id) {
+        Device patch = new Device();
+        patch.setId(id);
+        patch.setName("patched");
+        return patch;
+    }
+}
@@ -0,0 +1,209 @@
+package com.truphone.store;
+
+import com.phone.device.dto.DeviceView;
+import com.phone.device.entity.Device;
+import com.phone.device.store.ShardedDeviceStore;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ShardedDeviceStore over three in memory H2 databases, each shard its own database.
+ */
+public class ShardedDeviceStoreTest {
+
+    private static final int SHARDS = 3;
+
+    private ShardedDeviceStore store;
+
+    @Before
+    public void setUp() {
+        String run = UUID.randomUUID().toString();
+        List<JdbcDataSource> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:shard" + i + "-" + run + ";DB_CLOSE_DELAY=-1");
+            dataSource.setUser("sa");
+            shards.add(dataSource);
+        }
+        store = new ShardedDeviceStore(shards, 4);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void spreads_creates_and_routes_by_id() {
+        int[] perShard = new int[SHARDS];
+        for (int i = 0; i < 30; i++) {
+            Device device = create("device " + i, "brand " + i % 4);
+            perShard[ShardedDeviceStore.shardOf(device.getId())]++;
+            assertEquals(0L, device.getVersion().longValue());
+            assertEquals("device " + i, store.findById(device.getId()).get().getName());
+        }
+        assertEquals(List.of(10, 10, 10), List.of(perShard[0], perShard[1], perShard[2]));
+        assertEquals(List.of(10L, 10L, 10L), store.stats().get("devicesPerShard"));
+        assertFalse(store.findById(5L).isPresent());
+        assertFalse(store.existsById(1L << ShardedDeviceStore.SHARD_BITS | 200));
+    }
+
+    @Test
+    public void matches_a_sorted_map_under_random_operations() {
+        Map<Long, String> expected = new TreeMap<>();
+        List<Long> ids = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2_000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 5 || ids.isEmpty()) {
+                Device device = create("device", "brand " + random.nextInt(20));
+                expected.put(device.getId(), device.getBrand());
+                ids.add(device.getId());
+            } else if (operation < 7) {
+                long id = ids.remove(random.nextInt(ids.size()));
+                assertEquals(1, store.deleteById(id));
+                expected.remove(id);
+            } else {
+                long id = ids.get(random.nextInt(ids.size()));
+                Device patch = new Device();
+                patch.setId(id);
+                patch.setBrand("patched " + i);
+                assertEquals(1, store.updateNonNullFields(patch));
+                expected.put(id, patch.getBrand());
+            }
+        }
+
+        List<Long> expectedIds = new ArrayList<>(expected.keySet());
+        assertEquals(expectedIds, store.findAll().stream().map(Device::getId).collect(Collectors.toList()));
+        List<Long> visited = new ArrayList<>();
+        store.forEach(device -> {
+            visited.add(device.getId());
+            assertEquals(expected.get(device.getId()), device.getBrand());
+        });
+        assertEquals(expectedIds, visited);
+
+        List<Long> paged = new ArrayList<>();
+        long lastId = 0;
+        Slice<Device> slice;
+        do {
+            slice = store.findAfter(lastId, 37);
+            slice.forEach(device -> paged.add(device.getId()));
+            lastId = paged.get(paged.size() - 1);
+        } while (slice.hasNext());
+        assertEquals(expectedIds, paged);
+
+        Page<Device> page = store.findAll(PageRequest.of(3, 25));
+        assertEquals(expected.size(), page.getTotalElements());
+        assertEquals(expectedIds.subList(75, 100), page.getContent().stream().map(Device::getId).collect(Collectors.toList()));
+
+        Map<String, Long> counts = expected.values().stream()
+                .collect(Collectors.groupingBy(brand -> brand, Collectors.counting()));
+        assertEquals(counts, store.countByBrand());
+    }
+
+    @Test
+    public void searches_and_views_in_id_order() {
+        for (int i = 0; i < 12; i++) {
+            create("device " + i, i % 4 == 0 ? "Apple" : "Nokia");
+        }
+        List<Device> apples = store.findByBrandContainingIgnoreCase("PPL");
+        assertEquals(3, apples.size());
+        assertTrue(isSorted(apples.stream().map(Device::getId).collect(Collectors.toList())));
+        assertEquals(SHARDS, apples.stream().map(device -> ShardedDeviceStore.shardOf(device.getId())).distinct().count());
+
+        List<DeviceView> views = store.findViewsByBrandContainingIgnoreCase("ppl", EnumSet.of(DeviceView.Field.ID, DeviceView.Field.NAME));
+        assertEquals(apples.stream().map(Device::getId).collect(Collectors.toList()),
+                views.stream().map(DeviceView::getId).collect(Collectors.toList()));
+        assertEquals(apples.get(0).getName(), views.get(0).getName());
+        assertEquals(null, views.get(0).getBrand());
+
+        List<Long> ids = apples.stream().map(Device::getId).collect(Collectors.toList());
+        ids.add(999L);
+        assertEquals(3, store.findAllById(ids).size());
+        assertEquals(3, store.findViewsById(ids, EnumSet.of(DeviceView.Field.ID)).size());
+        assertEquals(ids.subList(1, 3), store.findIdsByBrand("Apple", ids.get(0), 2));
+        assertEquals(List.of(), store.deleteAllByBrandAndId("Nokia", ids));
+        assertEquals(Set.copyOf(ids.subList(0, 3)), Set.copyOf(store.deleteAllById(ids)));
+        assertEquals(9, store.findAll().size());
+    }
+
+    @Test
+    public void conditional_update_checks_the_version() {
+        Device device = create("3310", "nokia");
+        Device patch = new Device();
+        patch.setId(device.getId());
+        patch.setName("8110");
+        patch.setVersion(1L);
+        assertEquals(0, store.updateNonNullFields(patch));
+        patch.setVersion(0L);
+        assertEquals(1, store.updateNonNullFields(patch));
+        Device updated = store.findById(device.getId()).get();
+        assertEquals("8110", updated.getName());
+        assertEquals("nokia", updated.getBrand());
+        assertEquals(1L, updated.getVersion().longValue());
+    }
+
+    @Test
+    public void create_all_is_one_transaction_on_one_shard() {
+        List<Device> devices = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            devices.add(device("device " + i, "brand"));
+        }
+        store.createAll(devices);
+        assertEquals(1, devices.stream().map(device -> ShardedDeviceStore.shardOf(device.getId())).distinct().count());
+        assertEquals(120, devices.stream().map(Device::getId).distinct().count());
+
+        List<Device> broken = new ArrayList<>();
+        broken.add(device("fine", "brand"));
+        broken.add(device(null, "brand"));
+        try {
+            store.createAll(broken);
+            fail("A Device without name must not be stored");
+        } catch (DataIntegrityViolationException e) {
+            assertEquals(120, store.findAll().size());
+        }
+    }
+
+    private Device create(String name, String brand) {
+        Device device = device(name, brand);
+        store.create(device);
+        return device;
+    }
+
+    private static Device device(String name, String brand) {
+        Device device = new Device();
+        device.setName(name);
+        device.setBrand(brand);
+        return device;
+    }
+
+    private static boolean isSorted(List<Long> ids) {
+        for (int i = 1; i < ids.size(); i++) {
+            if (ids.get(i - 1) >= ids.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
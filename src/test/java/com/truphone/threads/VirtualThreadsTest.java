@@ -0,0 +1,70 @@
+package com.truphone.threads;
+
+import com.phone.device.threads.ThreadsConfiguration;
+import com.phone.device.threads.VirtualThreads;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on any JVM, the expectations follow the feature version of the running one.
+ */
+public class VirtualThreadsTest {
+
+    private static final boolean SUPPORTED = Runtime.version().feature() >= 21;
+
+    @Test
+    public void supported_from_java_21() {
+        assertEquals(SUPPORTED, VirtualThreads.isSupported());
+        assertEquals(SUPPORTED, VirtualThreads.newPerTaskExecutor("test-").isPresent());
+    }
+
+    @Test
+    public void executor_starts_a_named_virtual_thread_per_task() throws Exception {
+        Optional<ExecutorService> executor = VirtualThreads.newPerTaskExecutor("test-virtual-");
+        if (!SUPPORTED) {
+            return;
+        }
+        try {
+            // More blocked tasks than carrier threads, which only completes if blocking parks the virtual threads.
+            int tasks = Runtime.getRuntime().availableProcessors() * 64;
+            CountDownLatch started = new CountDownLatch(tasks);
+            CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < tasks; i++) {
+                executor.get().execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            release.countDown();
+
+            Future<Thread> thread = executor.get().submit(Thread::currentThread);
+            assertTrue(thread.get().getName().startsWith("test-virtual-"));
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread.get()));
+        } finally {
+            executor.get().shutdown();
+        }
+    }
+
+    @Test
+    public void configuration_falls_back_to_platform_threads() {
+        ThreadsConfiguration off = new ThreadsConfiguration(false);
+        assertFalse(off.isVirtual());
+        ThreadsConfiguration on = new ThreadsConfiguration(true);
+        assertEquals(SUPPORTED, on.isVirtual());
+        on.close();
+    }
+}